@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasql.sql.PrimaryKey;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * How to access the records of a table by the primary keys with a certain
+ * set of fields. It is decided once and cached, so that accessing a record
+ * by a key does not need to look up the catalog and plan the access again.
+ */
+class AccessPath {
+
+	// Table name -> the access paths of the table (usually only one)
+	private static final ConcurrentMap<String, AccessPath[]> paths = new ConcurrentHashMap<String, AccessPath[]>();
+
+	/**
+	 * Gets the access path for the given key. It returns null if the table
+	 * does not exist. A path without an index is not cached, since the index
+	 * may be created later (e.g. after loading the data).
+	 */
+	static AccessPath get(PrimaryKey key, Transaction tx) {
+		AccessPath[] tablePaths = paths.get(key.getTableName());
+		if (tablePaths != null) {
+			for (AccessPath path : tablePaths)
+				if (path.isFor(key))
+					return path;
+		}
+
+		TableInfo ti = VanillaDb.catalogMgr().getTableInfo(key.getTableName(), tx);
+		if (ti == null)
+			return null;
+		AccessPath newPath = new AccessPath(key, ti, tx);
+		if (newPath.index() == null)
+			return newPath;
+
+		// Append the new path. Another thread may have added the same one.
+		while (true) {
+			tablePaths = paths.get(key.getTableName());
+			if (tablePaths == null) {
+				if (paths.putIfAbsent(key.getTableName(), new AccessPath[] { newPath }) == null)
+					return newPath;
+			} else {
+				for (AccessPath path : tablePaths)
+					if (path.isFor(key))
+						return path;
+
+				AccessPath[] newPaths = Arrays.copyOf(tablePaths, tablePaths.length + 1);
+				newPaths[tablePaths.length] = newPath;
+				if (paths.replace(key.getTableName(), tablePaths, newPaths))
+					return newPath;
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached paths. It must be called after the schema of
+	 * any table changes, or after an index better than the cached one is
+	 * created.
+	 */
+	static void clear() {
+		paths.clear();
+	}
+
+	private final String[] keyFields;
+	private final TableInfo tableInfo;
+	private final List<String> nonKeyFields;
+	private final IndexInfo index;
+	private final boolean isIndexCoveringKey;
+
+	private AccessPath(PrimaryKey key, TableInfo ti, Transaction tx) {
+		keyFields = new String[key.getNumOfFlds()];
+		for (int i = 0; i < keyFields.length; i++)
+			keyFields[i] = key.getField(i);
+
+		tableInfo = ti;
+		RecordLayout.register(ti.tableName(), ti.schema().fields());
+		nonKeyFields = new ArrayList<String>();
+		for (String fld : ti.schema().fields())
+			if (!key.containsField(fld))
+				nonKeyFields.add(fld);
+
+		// Choose the index whose fields are all in the key and which
+		// covers the most fields of the key
+		IndexInfo bestIndex = null;
+		for (String keyField : keyFields) {
+			for (IndexInfo ii : VanillaDb.catalogMgr().getIndexInfo(ti.tableName(), keyField, tx)) {
+				boolean covered = true;
+				for (String fldName : ii.fieldNames())
+					if (!key.containsField(fldName)) {
+						covered = false;
+						break;
+					}
+
+				if (covered && (bestIndex == null ||
+						ii.fieldNames().size() > bestIndex.fieldNames().size()))
+					bestIndex = ii;
+			}
+		}
+		index = bestIndex;
+		isIndexCoveringKey = bestIndex != null && bestIndex.fieldNames().size() == keyFields.length;
+	}
+
+	TableInfo tableInfo() {
+		return tableInfo;
+	}
+
+	/**
+	 * Returns the fields not in the key, in the order of the schema.
+	 */
+	List<String> nonKeyFields() {
+		return nonKeyFields;
+	}
+
+	/**
+	 * Returns the index for looking up records by keys, or null if the table
+	 * has no such index.
+	 */
+	IndexInfo index() {
+		return index;
+	}
+
+	/**
+	 * Returns if the index covers all the fields of the key. If not, a record
+	 * found by the index must be checked against the key.
+	 */
+	boolean isIndexCoveringKey() {
+		return isIndexCoveringKey;
+	}
+
+	private boolean isFor(PrimaryKey key) {
+		if (key.getNumOfFlds() != keyFields.length)
+			return false;
+		for (int i = 0; i < keyFields.length; i++)
+			if (!keyFields[i].equals(key.getField(i)))
+				return false;
+		return true;
+	}
+}
@@ -20,9 +20,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasql.sql.FieldNotFoundException;
 import org.elasql.sql.PrimaryKey;
@@ -32,16 +36,27 @@ import org.vanilladb.core.sql.Type;
 
 public class CachedRecord implements Record, Serializable {
 
-	private static final long serialVersionUID = 20200107002L;
+	private static final long serialVersionUID = 20261017001L;
 
 	private boolean isDirty, isDeleted, isNewInserted;
 	private long srcTxNum = -1;
 	private boolean isTemp; // the temporary record will not be flushed.
 
 	private PrimaryKey primaryKey;
-	// A Constant is non-serializable
-	private transient Map<String, Constant> nonKeyFldVals = new HashMap<String, Constant>();
-	private List<String> dirtyFlds = new ArrayList<String>();
+	// The values of non-key fields are kept in the slots assigned by the
+	// layout of the table. A null slot means the record does not have the field.
+	// The fields not in the layout are kept in a map, which is created only
+	// when needed. A Constant is non-serializable, so they are written by
+	// field names.
+	private transient RecordLayout layout;
+	private transient Constant[] nonKeyVals;
+	private transient BitSet dirtySlots;
+	private transient Map<String, Constant> extraVals;
+	private transient Set<String> dirtyExtras;
+	// If the values may be shared with the copies of this record. They
+	// must be copied before being modified, so a copy that is only read
+	// never allocates new arrays.
+	private transient volatile boolean isShared;
 
 	public static CachedRecord newRecordWithFldVals(PrimaryKey key, Map<String, Constant> fldVals) {
 		CachedRecord rec = new CachedRecord(key);
@@ -69,18 +84,29 @@ public class CachedRecord implements Record, Serializable {
 
 	public CachedRecord(PrimaryKey primaryKey) {
 		this.primaryKey = primaryKey;
+		this.layout = RecordLayout.forTable(primaryKey.getTableName());
+		this.nonKeyVals = new Constant[layout.size()];
+		this.dirtySlots = new BitSet();
 	}
 
 	/**
 	 * Constructs a new CachedRecord with the same key-value pairs and the same
-	 * meta-data as the given CachedRecord.
+	 * meta-data as the given CachedRecord. The values are shared by the two
+	 * records until either of them is modified.
 	 * 
 	 * @param rec the CachedRecord to be cloned
 	 */
 	public CachedRecord(CachedRecord rec) {
 		primaryKey = rec.primaryKey;
-		nonKeyFldVals = new HashMap<String, Constant>(rec.nonKeyFldVals);
-		dirtyFlds = new ArrayList<String>(rec.dirtyFlds);
+		layout = rec.layout;
+		// Mark the source first, so that it copies the arrays before
+		// modifying them
+		rec.isShared = true;
+		isShared = true;
+		nonKeyVals = rec.nonKeyVals;
+		dirtySlots = rec.dirtySlots;
+		extraVals = rec.extraVals;
+		dirtyExtras = rec.dirtyExtras;
 		isDirty = rec.isDirty;
 		isDeleted = rec.isDeleted;
 		isNewInserted = rec.isNewInserted;
@@ -97,25 +123,48 @@ public class CachedRecord implements Record, Serializable {
 			if (val != null)
 				return val;
 
-			// Check the map
-			return nonKeyFldVals.get(fldName);
+			// Check the slots
+			int slot = layout.slotOf(fldName);
+			if (slot >= 0)
+				return nonKeyVals[slot];
+			return extraVals == null ? null : extraVals.get(fldName);
 		}
 	}
 
 	public void addFldVal(String field, Constant val) {
 		Constant keyVal = primaryKey.getVal(field);
-		if (keyVal == null)
-			nonKeyFldVals.put(field, val);
-		else if (!keyVal.equals(val))
+		if (keyVal == null) {
+			ensureExclusive();
+			int slot = layout.slotOf(field);
+			if (slot >= 0)
+				nonKeyVals[slot] = val;
+			else {
+				if (extraVals == null)
+					extraVals = new HashMap<String, Constant>();
+				extraVals.put(field, val);
+			}
+		} else if (!keyVal.equals(val))
 			throw new UnsupportedOperationException("cannot modify key field: " + field);
 	}
 
 	public Constant removeField(String field) {
 		if (primaryKey.containsField(field))
 			throw new UnsupportedOperationException("cannot remove key field: " + field);
-		Constant val = nonKeyFldVals.remove(field);
-		if (val != null)
-			dirtyFlds.remove(field);
+		int slot = layout.slotOf(field);
+		if (slot < 0) {
+			if (extraVals == null || !extraVals.containsKey(field))
+				return null;
+			ensureExclusive();
+			if (dirtyExtras != null)
+				dirtyExtras.remove(field);
+			return extraVals.remove(field);
+		}
+		Constant val = nonKeyVals[slot];
+		if (val == null)
+			return null;
+		ensureExclusive();
+		nonKeyVals[slot] = null;
+		dirtySlots.clear(slot);
 		return val;
 	}
 
@@ -126,19 +175,47 @@ public class CachedRecord implements Record, Serializable {
 		if (primaryKey.containsField(fldName))
 			throw new UnsupportedOperationException("cannot modify key field: " + fldName);
 
-		if (!nonKeyFldVals.containsKey(fldName))
+		int slot = layout.slotOf(fldName);
+		if (!hasField(slot, fldName))
 			throw new FieldNotFoundException(fldName);
 
 		isDirty = true;
-		if (!dirtyFlds.contains(fldName))
-			dirtyFlds.add(fldName);
+		ensureExclusive();
+		if (slot >= 0) {
+			dirtySlots.set(slot);
+			nonKeyVals[slot] = val;
+		} else {
+			markExtraDirty(fldName);
+			extraVals.put(fldName, val);
+		}
+	}
+
+	/**
+	 * Marks the field as modified without changing its value or the dirty
+	 * flag of the record. It is used to rebuild a record from an encoded form.
+	 * 
+	 * @param fldName the name of a non-key field of this record
+	 */
+	public void markFieldDirty(String fldName) {
+		int slot = layout.slotOf(fldName);
+		if (!hasField(slot, fldName))
+			throw new FieldNotFoundException(fldName);
 
-		nonKeyFldVals.put(fldName, val);
+		ensureExclusive();
+		if (slot >= 0)
+			dirtySlots.set(slot);
+		else
+			markExtraDirty(fldName);
 	}
 
 	public void markAllNonKeyFieldsDirty() {
-		dirtyFlds.clear();
-		dirtyFlds.addAll(nonKeyFldVals.keySet());
+		ensureExclusive();
+		dirtySlots.clear();
+		for (int slot = 0; slot < nonKeyVals.length; slot++)
+			if (nonKeyVals[slot] != null)
+				dirtySlots.set(slot);
+		if (extraVals != null)
+			dirtyExtras = new HashSet<String>(extraVals.keySet());
 	}
 
 	public boolean isDirty() {
@@ -163,28 +240,46 @@ public class CachedRecord implements Record, Serializable {
 		isDirty = true;
 	}
 
+	public void setDirty(boolean isDirty) {
+		this.isDirty = isDirty;
+	}
+
 	public void setTempRecord(boolean isTemp) {
 		this.isTemp = isTemp;
 	}
 
 	public List<String> getFldNames() {
-		List<String> allFields = new ArrayList<String>(nonKeyFldVals.keySet());
+		List<String> allFields = new ArrayList<String>(nonKeyVals.length + primaryKey.getNumOfFlds());
+		for (int slot = 0; slot < nonKeyVals.length; slot++)
+			if (nonKeyVals[slot] != null)
+				allFields.add(layout.fieldName(slot));
+		if (extraVals != null)
+			allFields.addAll(extraVals.keySet());
 		for (int i = 0; i < primaryKey.getNumOfFlds(); i++)
 			allFields.add(primaryKey.getField(i));
 		return allFields;
 	}
 
 	public List<String> getDirtyFldNames() {
-		return new ArrayList<String>(dirtyFlds);
+		List<String> dirtyFlds = new ArrayList<String>(dirtySlots.cardinality());
+		for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1))
+			dirtyFlds.add(layout.fieldName(slot));
+		if (dirtyExtras != null)
+			dirtyFlds.addAll(dirtyExtras);
+		return dirtyFlds;
 	}
 
 	public Map<String, Constant> toFldValMap() {
-		Map<String, Constant> fldVals = new HashMap<String, Constant>(nonKeyFldVals);
+		Map<String, Constant> fldVals = nonKeyFldVals();
 		for (int i = 0; i < primaryKey.getNumOfFlds(); i++)
 			fldVals.put(primaryKey.getField(i), primaryKey.getVal(i));
 		return fldVals;
 	}
 
+	public PrimaryKey getPrimaryKey() {
+		return primaryKey;
+	}
+
 	public long getSrcTxNum() {
 		return srcTxNum;
 	}
@@ -213,7 +308,7 @@ public class CachedRecord implements Record, Serializable {
 		}
 
 		// Other fields
-		for (Map.Entry<String, Constant> entry : nonKeyFldVals.entrySet()) {
+		for (Map.Entry<String, Constant> entry : nonKeyFldVals().entrySet()) {
 			sb.append(entry.getKey());
 			sb.append(": ");
 			sb.append(entry.getValue());
@@ -231,50 +326,126 @@ public class CachedRecord implements Record, Serializable {
 		if (obj == null || !(obj instanceof CachedRecord))
 			return false;
 		CachedRecord rec = (CachedRecord) obj;
-		return rec.primaryKey.equals(this.primaryKey) && rec.nonKeyFldVals.equals(this.nonKeyFldVals)
+		return rec.primaryKey.equals(this.primaryKey) && hasSameNonKeyVals(rec)
 				&& rec.srcTxNum == this.srcTxNum;
 	}
 
 	@Override
 	public int hashCode() {
+		// Hash the non-key fields in the way of Map.hashCode(), so that it
+		// does not depend on where the fields are kept
+		int valsHashCode = 0;
+		for (int slot = 0; slot < nonKeyVals.length; slot++)
+			if (nonKeyVals[slot] != null)
+				valsHashCode += layout.fieldName(slot).hashCode() ^ nonKeyVals[slot].hashCode();
+		if (extraVals != null)
+			valsHashCode += extraVals.hashCode();
+
 		int hashCode = 17;
 		hashCode = 31 * hashCode + primaryKey.hashCode();
-		hashCode = 31 * hashCode + nonKeyFldVals.hashCode();
+		hashCode = 31 * hashCode + valsHashCode;
 		hashCode = 31 * hashCode + (int) (srcTxNum ^ (srcTxNum >>> 32));
 		return hashCode;
 	}
+
+	private boolean hasField(int slot, String fldName) {
+		if (slot >= 0)
+			return nonKeyVals[slot] != null;
+		return extraVals != null && extraVals.containsKey(fldName);
+	}
+
+	private void markExtraDirty(String fldName) {
+		if (dirtyExtras == null)
+			dirtyExtras = new HashSet<String>();
+		dirtyExtras.add(fldName);
+	}
+
+	private Map<String, Constant> nonKeyFldVals() {
+		Map<String, Constant> fldVals = new HashMap<String, Constant>();
+		for (int slot = 0; slot < nonKeyVals.length; slot++)
+			if (nonKeyVals[slot] != null)
+				fldVals.put(layout.fieldName(slot), nonKeyVals[slot]);
+		if (extraVals != null)
+			fldVals.putAll(extraVals);
+		return fldVals;
+	}
+
+	private void ensureExclusive() {
+		if (isShared) {
+			nonKeyVals = nonKeyVals.clone();
+			dirtySlots = (BitSet) dirtySlots.clone();
+			if (extraVals != null)
+				extraVals = new HashMap<String, Constant>(extraVals);
+			if (dirtyExtras != null)
+				dirtyExtras = new HashSet<String>(dirtyExtras);
+			isShared = false;
+		}
+	}
+
+	private boolean hasSameNonKeyVals(CachedRecord rec) {
+		// The records may be created before and after the layout of the
+		// table is registered
+		if (layout != rec.layout)
+			return nonKeyFldVals().equals(rec.nonKeyFldVals());
+
+		if (!Arrays.equals(nonKeyVals, rec.nonKeyVals))
+			return false;
+		boolean hasExtras = extraVals != null && !extraVals.isEmpty();
+		boolean otherHasExtras = rec.extraVals != null && !rec.extraVals.isEmpty();
+		if (hasExtras != otherHasExtras)
+			return false;
+		return !hasExtras || extraVals.equals(rec.extraVals);
+	}
 	
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
-		out.writeInt(nonKeyFldVals.size());
 
-		// Write out all elements in the proper order
-		for (Map.Entry<String, Constant> entry : nonKeyFldVals.entrySet()) {
-			String fld = entry.getKey();
-			Constant val = entry.getValue();
-			byte[] bytes = val.asBytes();
-			out.writeObject(fld);
-			out.writeInt(val.getType().getSqlType());
-			out.writeInt(val.getType().getArgument());
-			out.writeInt(bytes.length);
-			out.write(bytes);
-		}
+		// Slots are local to a process, so the fields are written by names
+		int numFlds = extraVals == null ? 0 : extraVals.size();
+		for (Constant val : nonKeyVals)
+			if (val != null)
+				numFlds++;
+		out.writeInt(numFlds);
+
+		for (int slot = 0; slot < nonKeyVals.length; slot++)
+			if (nonKeyVals[slot] != null)
+				writeField(out, layout.fieldName(slot), nonKeyVals[slot], dirtySlots.get(slot));
+		if (extraVals != null)
+			for (Map.Entry<String, Constant> entry : extraVals.entrySet())
+				writeField(out, entry.getKey(), entry.getValue(),
+						dirtyExtras != null && dirtyExtras.contains(entry.getKey()));
+	}
+
+	private void writeField(ObjectOutputStream out, String fldName, Constant val,
+			boolean isFldDirty) throws IOException {
+		byte[] bytes = val.asBytes();
+		out.writeObject(fldName);
+		out.writeBoolean(isFldDirty);
+		out.writeInt(val.getType().getSqlType());
+		out.writeInt(val.getType().getArgument());
+		out.writeInt(bytes.length);
+		out.write(bytes);
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
-		int numFlds = in.readInt();
-		nonKeyFldVals = new HashMap<String, Constant>(numFlds);
+		layout = RecordLayout.forTable(primaryKey.getTableName());
+		nonKeyVals = new Constant[layout.size()];
+		dirtySlots = new BitSet();
 
-		// Read in all elements and rebuild the map
+		// Read in all elements and put them into the local slots
+		int numFlds = in.readInt();
 		for (int i = 0; i < numFlds; i++) {
 			String fld = (String) in.readObject();
+			boolean isFldDirty = in.readBoolean();
 			int sqlType = in.readInt();
 			int argument = in.readInt();
 			byte[] bytes = new byte[in.readInt()];
-			in.read(bytes);
+			in.readFully(bytes);
 			Constant val = Constant.newInstance(Type.newInstance(sqlType, argument), bytes);
-			nonKeyFldVals.put(fld, val);
+			addFldVal(fld, val);
+			if (isFldDirty)
+				markFieldDirty(fld);
 		}
 	}
 }
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns each field in the schema of a table a slot, so that a
+ * {@link CachedRecord} can keep its values in an array indexed by the slots.
+ * The layout of a table is fixed once it is registered with the schema of the
+ * table, which happens when the table is first accessed (see
+ * {@link AccessPath}). A layout never changes afterwards, so it can be read
+ * without synchronization.<br>
+ * <br>
+ * The fields not in the layout (e.g. the ones added for migrations, or all
+ * the fields of a table not accessed yet) are kept by the records
+ * themselves.
+ */
+class RecordLayout {
+
+	private static final RecordLayout EMPTY = new RecordLayout(new String[0]);
+
+	private static final ConcurrentMap<String, RecordLayout> layouts = new ConcurrentHashMap<String, RecordLayout>();
+
+	/**
+	 * Returns the layout of the table, or an empty layout if the table has
+	 * not been registered.
+	 */
+	static RecordLayout forTable(String tableName) {
+		RecordLayout layout = layouts.get(tableName);
+		return layout == null ? EMPTY : layout;
+	}
+
+	/**
+	 * Fixes the layout of the table with the given fields. The layout is
+	 * replaced only if the fields are different from the registered ones
+	 * (e.g. after the table is re-created). The records created before keep
+	 * the old layout.
+	 */
+	static void register(String tableName, Collection<String> fldNames) {
+		String[] names = fldNames.toArray(new String[fldNames.size()]);
+		RecordLayout layout = layouts.get(tableName);
+		if (layout == null || !Arrays.equals(layout.fieldNames, names))
+			layouts.put(tableName, new RecordLayout(names));
+	}
+
+	private final String[] fieldNames;
+	// Only read after construction
+	private final Map<String, Integer> slots;
+
+	private RecordLayout(String[] fieldNames) {
+		this.fieldNames = fieldNames;
+		this.slots = new HashMap<String, Integer>(fieldNames.length * 4 / 3 + 1);
+		for (int slot = 0; slot < fieldNames.length; slot++)
+			slots.put(fieldNames[slot], slot);
+	}
+
+	/**
+	 * Returns the slot of the field, or -1 if the field is not in the layout.
+	 */
+	int slotOf(String fldName) {
+		Integer slot = slots.get(fldName);
+		return slot == null ? -1 : slot;
+	}
+
+	String fieldName(int slot) {
+		return fieldNames[slot];
+	}
+
+	/**
+	 * Returns the number of slots.
+	 */
+	int size() {
+		return fieldNames.length;
+	}
+}
@@ -18,17 +18,18 @@ package org.elasql.cache;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.elasql.server.Elasql;
 import org.elasql.sql.PrimaryKey;
-import org.elasql.sql.PrimaryKeyBuilder;
 import org.elasql.storage.tx.concurrency.ConservativeOrderedCcMgr;
+import org.elasql.util.ElasqlProperties;
 import org.vanilladb.core.query.algebra.Plan;
 import org.vanilladb.core.query.algebra.SelectPlan;
 import org.vanilladb.core.query.algebra.SelectScan;
@@ -38,22 +39,57 @@ import org.vanilladb.core.query.algebra.index.IndexSelectPlan;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.ConstantRange;
-import org.vanilladb.core.sql.Schema;
 import org.vanilladb.core.storage.index.Index;
 import org.vanilladb.core.storage.index.SearchKey;
 import org.vanilladb.core.storage.index.SearchRange;
-import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordId;
 import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.concurrency.ConcurrencyMgr;
 
 /**
  * The CURD interfaces to VanillaCore.
  */
 public class VanillaCoreCrud {
+	
+	/**
+	 * Reads a record by looking up the index and fetching the record
+	 * directly, with the index and the fields decided once per table. If it
+	 * is disabled, each read plans a select query on the key.
+	 */
+	public static final boolean ENABLE_ACCESS_PATH_CACHE;
+	
+	static {
+		ENABLE_ACCESS_PATH_CACHE = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				VanillaCoreCrud.class.getName() + ".ENABLE_ACCESS_PATH_CACHE", true);
+	}
+	
+	/**
+	 * Clears the cached access paths. It must be called after the schema of
+	 * any table changes, or after an index better than the cached one is
+	 * created. Creating the first index of a table needs no call, since the
+	 * paths without indexes are not cached.
+	 */
+	public static void clearAccessPaths() {
+		AccessPath.clear();
+	}
 
 	public static CachedRecord read(PrimaryKey key, Transaction tx) {
+		if (ENABLE_ACCESS_PATH_CACHE) {
+			AccessPath path = AccessPath.get(key, tx);
+			if (path != null && path.index() != null)
+				return readByIndex(key, path, tx);
+		}
+		
+		return readByPlan(key, tx);
+	}
+	
+	/**
+	 * Reads a record by planning a select query on the key, without the
+	 * cached access paths.
+	 */
+	static CachedRecord readByPlan(PrimaryKey key, Transaction tx) {
 		String tblName = key.getTableName();
 		TablePlan tp = new TablePlan(tblName, tx);
 		Plan selectPlan = null;
@@ -81,9 +117,44 @@ public class VanillaCoreCrud {
 		return rec;
 	}
 	
+	private static CachedRecord readByIndex(PrimaryKey key, AccessPath path, Transaction tx) {
+		IndexInfo ii = path.index();
+		Index index = ii.open(tx);
+		RecordFile recordFile = path.tableInfo().open(tx, false);
+		CachedRecord rec = null;
+		
+		index.beforeFirst(new SearchRange(key.toSearchKey(ii.fieldNames())));
+		while (index.next()) {
+			recordFile.moveToRecordId(index.getDataRecordId());
+			if (path.isIndexCoveringKey() || matches(key, recordFile)) {
+				rec = new CachedRecord(key);
+				for (String fld : path.nonKeyFields())
+					rec.addFldVal(fld, recordFile.getVal(fld));
+				break;
+			}
+		}
+		index.close();
+		recordFile.close();
+		
+		tx.endStatement();
+		
+		return rec;
+	}
+	
+	/**
+	 * Reads the records of the given keys, which must be in the same table.
+	 * The keys are sorted by the fields of the index and probed in a single
+	 * index session. Then, the records are fetched in the order of record
+	 * ids.
+	 * 
+	 * @param keys the keys of the records
+	 * @param tx the transaction
+	 * @return the records found
+	 */
 	public static Map<PrimaryKey, CachedRecord> batchRead(Set<PrimaryKey> keys, Transaction tx) {
-		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
-		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
+		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>(keys.size() * 4 / 3 + 1);
+		if (keys.isEmpty())
+			return recordMap;
 
 		// Check if all record keys are in the same table
 		PrimaryKey representative = null;
@@ -96,89 +167,61 @@ public class VanillaCoreCrud {
 				throw new RuntimeException("request keys are not in the same table");
 		}
 
-		// Open an index
-		IndexInfo ii = null;
-
 		// We only need one index
-		for (int i = 0; i < representative.getNumOfFlds(); i++) {
-			String fldName = representative.getField(i);
-			List<IndexInfo> iis = Elasql.catalogMgr().getIndexInfo(tblName, fldName, tx);
-			if (iis != null && iis.size() > 0) {
-				ii = iis.get(0);
-				break;
-			}
-		}
-		
-		if (ii == null)
+		AccessPath path = AccessPath.get(representative, tx);
+		if (path == null || path.index() == null)
 			throw new RuntimeException("cannot find an index for " + representative);
+		final List<String> indexedFlds = path.index().fieldNames();
 
-		// Search record ids for record keys
-		// Map<RecordId, Set<RecordKey>> ridToSearchKey = new HashMap<RecordId,
-		// Set<RecordKey>>();
-		Set<RecordId> searchRidSet = new HashSet<RecordId>(50000);
-		List<RecordId> searchRids = new ArrayList<RecordId>();
-		RecordId rid = null;
+		// Sort the keys so that the index is traversed forward
+		List<PrimaryKey> sortedKeys = sortByFields(keys, indexedFlds);
 
-		for (PrimaryKey key : keys) {
-			SearchKey searchKey = key.toSearchKey(ii.fieldNames());
-			Index index = ii.open(tx);
-			index.beforeFirst(new SearchRange(searchKey));
+		// Search record ids for record keys. Keys sharing the indexed fields
+		// find the same records.
+		Map<RecordId, List<PrimaryKey>> ridToKeys = new HashMap<RecordId, List<PrimaryKey>>(keys.size() * 4 / 3 + 1);
+		Index index = path.index().open(tx);
+		for (PrimaryKey key : sortedKeys) {
+			index.beforeFirst(new SearchRange(key.toSearchKey(indexedFlds)));
 
-			if (index.next()) {
-				rid = index.getDataRecordId();
-				searchRidSet.add(rid);
-			} else {
-				throw new RuntimeException("Cannot find a record for " + key);
+			boolean found = false;
+			while (index.next()) {
+				addKey(ridToKeys, index.getDataRecordId(), key);
+				found = true;
+				
+				// A key matches only one record if the index covers it
+				if (path.isIndexCoveringKey())
+					break;
 			}
-
-			index.close();
-			// If we did not release index locks here, this search would cause deadlock.
-			ccMgr.releaseIndexLocks();
+			if (!found)
+				throw new RuntimeException("Cannot find a record for " + key);
 		}
-		searchRids.addAll(searchRidSet);
+		index.close();
+		releaseIndexLocks(tx);
 
 		// Sort the record ids
+		List<RecordId> searchRids = new ArrayList<RecordId>(ridToKeys.keySet());
 		Collections.sort(searchRids);
 
 		// Open a record file
-		TableInfo ti = VanillaDb.catalogMgr().getTableInfo(tblName, tx);
-		Schema sch = ti.schema();
-		RecordFile recordFile = ti.open(tx, false);
-		CachedRecord record = null;
-
-		for (RecordId id : searchRids) {
-
-			// Skip the record that has been found
-			// if (recordMap.containsKey(searchKey))
-			// continue;
+		RecordFile recordFile = path.tableInfo().open(tx, false);
 
+		for (RecordId rid : searchRids) {
 			// Move to the record
-			recordFile.moveToRecordId(id);
-			
-			// Construct a RecordKey
-			PrimaryKeyBuilder keyBuilder = new PrimaryKeyBuilder(representative.getTableName());
-			for (int i = 0; i < representative.getNumOfFlds(); i++) {
-				String fldName = representative.getField(i);
-				keyBuilder.addFldVal(fldName, recordFile.getVal(fldName));
-			}
-			PrimaryKey targetKey = keyBuilder.build();
+			recordFile.moveToRecordId(rid);
 			
-			// Check if the key is included
-			if (keys.contains(targetKey) && !recordMap.containsKey(targetKey)) {
-
-				// Construct a CachedRecord
-				record = new CachedRecord(targetKey);
-				for (String fld : sch.fields()) {
-					if (!targetKey.containsField(fld)) {
-						record.addFldVal(fld, recordFile.getVal(fld));
-					}
-				}
-				record.setSrcTxNum(tx.getTransactionNumber());
+			// Check which key the record belongs to
+			PrimaryKey key = findMatchedKey(ridToKeys.get(rid), recordFile, path);
+			if (key == null || recordMap.containsKey(key))
+				continue;
 
-				// Put the record to the map
-				recordMap.put(targetKey, record);
+			// Construct a CachedRecord
+			CachedRecord record = new CachedRecord(key);
+			for (String fld : path.nonKeyFields())
+				record.addFldVal(fld, recordFile.getVal(fld));
+			record.setSrcTxNum(tx.getTransactionNumber());
 
-			}
+			// Put the record to the map
+			recordMap.put(key, record);
 		}
 		recordFile.close();
 		
@@ -312,6 +355,196 @@ public class VanillaCoreCrud {
 		// VanillaDdDb.statMgr().countRecordUpdates(tblname, 1);
 	}
 
+	/**
+	 * Updates the dirty fields of the given records. The records are grouped
+	 * by tables. For each table, the record ids are looked up through an
+	 * index first, and then the records are updated in the order of record
+	 * ids with the record file and the modified indexes opened only once.
+	 * 
+	 * @param records the records to be updated
+	 * @param tx the transaction
+	 */
+	public static void batchUpdate(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
+		for (Map.Entry<String, List<PrimaryKey>> entry : groupByTable(records.keySet()).entrySet()) {
+			String tblName = entry.getKey();
+			List<PrimaryKey> keys = entry.getValue();
+			
+			// Fall back to update one by one if there is no index to look up
+			AccessPath path = AccessPath.get(keys.get(0), tx);
+			if (path == null || path.index() == null) {
+				for (PrimaryKey key : keys)
+					update(key, records.get(key), tx);
+				continue;
+			}
+			
+			Map<RecordId, List<PrimaryKey>> ridToKeys = lookUpRecordIds(keys, path.index(), tx);
+			List<RecordId> rids = new ArrayList<RecordId>(ridToKeys.keySet());
+			Collections.sort(rids);
+			
+			RecordFile recordFile = path.tableInfo().open(tx, true);
+			Map<String, Index> openedIndexes = new HashMap<String, Index>();
+			
+			for (RecordId rid : rids) {
+				recordFile.moveToRecordId(rid);
+				PrimaryKey key = findMatchedKey(ridToKeys.get(rid), recordFile, path);
+				if (key == null)
+					continue;
+				
+				// Update the record file
+				CachedRecord rec = records.get(key);
+				List<String> dirtyFlds = rec.getDirtyFldNames();
+				Map<String, Constant> oldValMap = new HashMap<String, Constant>();
+				for (String fldName : dirtyFlds) {
+					oldValMap.put(fldName, recordFile.getVal(fldName));
+					recordFile.setVal(fldName, rec.getVal(fldName));
+				}
+				
+				// Update the indexes on the dirty fields
+				Map<String, IndexInfo> modifiedIndexes = new HashMap<String, IndexInfo>();
+				for (String fldName : dirtyFlds)
+					for (IndexInfo ii : VanillaDb.catalogMgr().getIndexInfo(tblName, fldName, tx))
+						modifiedIndexes.put(ii.indexName(), ii);
+				
+				for (IndexInfo ii : modifiedIndexes.values()) {
+					Index index = openIndex(ii, openedIndexes, tx);
+					
+					Map<String, Constant> oldFldVals = new HashMap<String, Constant>();
+					Map<String, Constant> newFldVals = new HashMap<String, Constant>();
+					for (String fldName : ii.fieldNames()) {
+						Constant newVal = recordFile.getVal(fldName);
+						Constant oldVal = oldValMap.get(fldName);
+						oldFldVals.put(fldName, oldVal != null? oldVal : newVal);
+						newFldVals.put(fldName, newVal);
+					}
+					
+					index.delete(new SearchKey(ii.fieldNames(), oldFldVals), rid, true);
+					index.insert(new SearchKey(ii.fieldNames(), newFldVals), rid, true);
+				}
+				
+				// Each record works like a statement on the indexes
+				releaseIndexLocks(tx);
+			}
+			
+			for (Index index : openedIndexes.values())
+				index.close();
+			recordFile.close();
+		}
+		
+		tx.endStatement();
+	}
+	
+	/**
+	 * Inserts the given records. The records are grouped by tables. For each
+	 * table, the records are inserted into the record file first, and then
+	 * into the indexes on their fields, with each index opened only once.
+	 * 
+	 * @param records the records to be inserted
+	 * @param tx the transaction
+	 */
+	public static void batchInsert(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
+		for (Map.Entry<String, List<PrimaryKey>> entry : groupByTable(records.keySet()).entrySet()) {
+			String tblName = entry.getKey();
+			List<PrimaryKey> keys = entry.getValue();
+			
+			// Insert the records into the record file
+			AccessPath path = AccessPath.get(keys.get(0), tx);
+			if (path == null)
+				throw new RuntimeException("cannot find the table " + tblName);
+			RecordFile recordFile = path.tableInfo().open(tx, true);
+			List<RecordId> rids = new ArrayList<RecordId>(keys.size());
+			for (PrimaryKey key : keys) {
+				CachedRecord rec = records.get(key);
+				recordFile.insert();
+				for (String fldName : rec.getFldNames())
+					recordFile.setVal(fldName, rec.getVal(fldName));
+				rids.add(recordFile.currentRecordId());
+			}
+			recordFile.close();
+			
+			// Insert the records into the indexes on their fields
+			Map<String, Index> openedIndexes = new HashMap<String, Index>();
+			for (int i = 0; i < keys.size(); i++) {
+				CachedRecord rec = records.get(keys.get(i));
+				Map<String, IndexInfo> recIndexes = new HashMap<String, IndexInfo>();
+				for (String fldName : rec.getFldNames())
+					for (IndexInfo ii : VanillaDb.catalogMgr().getIndexInfo(tblName, fldName, tx))
+						recIndexes.put(ii.indexName(), ii);
+				
+				Map<String, Constant> fldVals = rec.toFldValMap();
+				for (IndexInfo ii : recIndexes.values()) {
+					Index index = openIndex(ii, openedIndexes, tx);
+					index.insert(new SearchKey(ii.fieldNames(), fldVals), rids.get(i), true);
+				}
+				releaseIndexLocks(tx);
+			}
+			
+			for (Index index : openedIndexes.values())
+				index.close();
+		}
+		
+		tx.endStatement();
+	}
+	
+	/**
+	 * Deletes the records of the given keys. The keys are grouped by tables.
+	 * For each table, the record ids are looked up through an index first,
+	 * and then the records are deleted in the order of record ids with the
+	 * record file and the indexes opened only once.
+	 * 
+	 * @param keys the keys of the records to be deleted
+	 * @param tx the transaction
+	 */
+	public static void batchDelete(Collection<PrimaryKey> keys, Transaction tx) {
+		for (Map.Entry<String, List<PrimaryKey>> entry : groupByTable(keys).entrySet()) {
+			String tblName = entry.getKey();
+			List<PrimaryKey> tblKeys = entry.getValue();
+			
+			// Fall back to delete one by one if there is no index to look up
+			AccessPath path = AccessPath.get(tblKeys.get(0), tx);
+			if (path == null || path.index() == null) {
+				for (PrimaryKey key : tblKeys)
+					delete(key, tx);
+				continue;
+			}
+			
+			Map<RecordId, List<PrimaryKey>> ridToKeys = lookUpRecordIds(tblKeys, path.index(), tx);
+			List<RecordId> rids = new ArrayList<RecordId>(ridToKeys.keySet());
+			Collections.sort(rids);
+			
+			RecordFile recordFile = path.tableInfo().open(tx, true);
+			List<IndexInfo> allIndexes = getAllIndexes(tblName, tx);
+			Index[] indexes = new Index[allIndexes.size()];
+			for (int i = 0; i < indexes.length; i++)
+				indexes[i] = allIndexes.get(i).open(tx);
+			
+			for (RecordId rid : rids) {
+				recordFile.moveToRecordId(rid);
+				if (findMatchedKey(ridToKeys.get(rid), recordFile, path) == null)
+					continue;
+				
+				// Delete the record from every index
+				for (int i = 0; i < indexes.length; i++) {
+					IndexInfo ii = allIndexes.get(i);
+					Map<String, Constant> fldValMap = new HashMap<String, Constant>();
+					for (String fldName : ii.fieldNames())
+						fldValMap.put(fldName, recordFile.getVal(fldName));
+					indexes[i].delete(new SearchKey(ii.fieldNames(), fldValMap), rid, true);
+				}
+				
+				// Delete the record from the record file
+				recordFile.delete();
+				
+				releaseIndexLocks(tx);
+			}
+			
+			for (Index index : indexes)
+				index.close();
+			recordFile.close();
+		}
+		
+		tx.endStatement();
+	}
+
 	public static void delete(PrimaryKey key, Transaction tx) {
 		String tblName = key.getTableName();
 		TablePlan tp = new TablePlan(tblName, tx);
@@ -380,6 +613,118 @@ public class VanillaCoreCrud {
 		// VanillaDdDb.statMgr().countRecordUpdates(tblname, count);
 	}
 	
+	private static Map<String, List<PrimaryKey>> groupByTable(Collection<PrimaryKey> keys) {
+		Map<String, List<PrimaryKey>> groups = new LinkedHashMap<String, List<PrimaryKey>>();
+		for (PrimaryKey key : keys) {
+			List<PrimaryKey> group = groups.get(key.getTableName());
+			if (group == null) {
+				group = new ArrayList<PrimaryKey>();
+				groups.put(key.getTableName(), group);
+			}
+			group.add(key);
+		}
+		return groups;
+	}
+	
+	/**
+	 * Looks up the ids of the records matching the given keys. The index may
+	 * not cover all the fields of the keys, in which case a record id may be
+	 * found by several keys sharing the indexed fields. So the record of each
+	 * id should be checked by
+	 * {@link #findMatchedKey(List, RecordFile, AccessPath)} before use.
+	 */
+	private static Map<RecordId, List<PrimaryKey>> lookUpRecordIds(List<PrimaryKey> keys,
+			IndexInfo ii, Transaction tx) {
+		Map<RecordId, List<PrimaryKey>> ridToKeys = new HashMap<RecordId, List<PrimaryKey>>(keys.size() * 4 / 3 + 1);
+		
+		// Probe the keys in order so that the index is traversed forward
+		Index index = ii.open(tx);
+		for (PrimaryKey key : sortByFields(keys, ii.fieldNames())) {
+			index.beforeFirst(new SearchRange(key.toSearchKey(ii.fieldNames())));
+			while (index.next())
+				addKey(ridToKeys, index.getDataRecordId(), key);
+		}
+		index.close();
+		releaseIndexLocks(tx);
+		
+		return ridToKeys;
+	}
+	
+	private static List<PrimaryKey> sortByFields(Collection<PrimaryKey> keys, final List<String> flds) {
+		List<PrimaryKey> sortedKeys = new ArrayList<PrimaryKey>(keys);
+		Collections.sort(sortedKeys, new Comparator<PrimaryKey>() {
+			@Override
+			public int compare(PrimaryKey k1, PrimaryKey k2) {
+				for (String fld : flds) {
+					int result = k1.getVal(fld).compareTo(k2.getVal(fld));
+					if (result != 0)
+						return result;
+				}
+				return 0;
+			}
+		});
+		return sortedKeys;
+	}
+	
+	private static void addKey(Map<RecordId, List<PrimaryKey>> ridToKeys, RecordId rid, PrimaryKey key) {
+		List<PrimaryKey> keys = ridToKeys.get(rid);
+		if (keys == null) {
+			// Usually only one key finds a record
+			keys = new ArrayList<PrimaryKey>(1);
+			ridToKeys.put(rid, keys);
+		}
+		keys.add(key);
+	}
+	
+	/**
+	 * Finds the key of the record at the current position of the record file
+	 * among the keys that found the record through the index of the path.
+	 * 
+	 * @return the matched key, or null if none of the keys matches
+	 */
+	private static PrimaryKey findMatchedKey(List<PrimaryKey> candidates, RecordFile recordFile,
+			AccessPath path) {
+		// Only one key can find a record through an index covering the keys
+		if (path.isIndexCoveringKey())
+			return candidates.get(0);
+		
+		for (PrimaryKey key : candidates)
+			if (matches(key, recordFile))
+				return key;
+		return null;
+	}
+	
+	private static boolean matches(PrimaryKey key, RecordFile recordFile) {
+		for (int i = 0; i < key.getNumOfFlds(); i++)
+			if (!key.getVal(i).equals(recordFile.getVal(key.getField(i))))
+				return false;
+		return true;
+	}
+	
+	private static List<IndexInfo> getAllIndexes(String tblName, Transaction tx) {
+		// An index on multiple fields is found once for each field
+		Map<String, IndexInfo> allIndexes = new LinkedHashMap<String, IndexInfo>();
+		for (String indexedFld : VanillaDb.catalogMgr().getIndexedFields(tblName, tx))
+			for (IndexInfo ii : VanillaDb.catalogMgr().getIndexInfo(tblName, indexedFld, tx))
+				allIndexes.put(ii.indexName(), ii);
+		return new ArrayList<IndexInfo>(allIndexes.values());
+	}
+	
+	private static Index openIndex(IndexInfo ii, Map<String, Index> openedIndexes, Transaction tx) {
+		Index index = openedIndexes.get(ii.indexName());
+		if (index == null) {
+			index = ii.open(tx);
+			openedIndexes.put(ii.indexName(), index);
+		}
+		return index;
+	}
+	
+	private static void releaseIndexLocks(Transaction tx) {
+		ConcurrencyMgr ccMgr = tx.concurrencyMgr();
+		if (ccMgr instanceof ConservativeOrderedCcMgr)
+			((ConservativeOrderedCcMgr) ccMgr).releaseIndexLocks();
+	}
+	
 	private static IndexSelectPlan selectByBestMatchedIndex(String tblName,
 			TablePlan tablePlan, PrimaryKey key, Transaction tx) {
 
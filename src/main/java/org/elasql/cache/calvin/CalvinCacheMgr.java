@@ -15,12 +15,15 @@
  *******************************************************************************/
 package org.elasql.cache.calvin;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.elasql.cache.CachedRecord;
 import org.elasql.cache.VanillaCoreCrud;
@@ -34,23 +37,27 @@ import org.vanilladb.core.storage.tx.Transaction;
  */
 public class CalvinCacheMgr {
 	
-	private static class KeyRecordPair {
-		PrimaryKey key;
-		CachedRecord record;
-		
-		KeyRecordPair(PrimaryKey key, CachedRecord record) {
-			this.key = key;
-			this.record = record;
-		}
-	}
-	
 	// For single thread
 	private Transaction tx;
 	private Map<PrimaryKey, CachedRecord> cachedRecords;
 	private Set<PrimaryKey> writeKeys;
 	
 	// For multi-threading
-	private BlockingQueue<KeyRecordPair> inbox;
+	private final ReentrantLock inboxLock = new ReentrantLock();
+	private final Condition recordArrived = inboxLock.newCondition();
+	// The records from remote nodes, guarded by inboxLock
+	private Map<PrimaryKey, CachedRecord> inbox;
+	// The key(s) the transaction thread is waiting for, guarded by inboxLock
+	private PrimaryKey awaitedKey;
+	private Set<PrimaryKey> awaitedKeys;
+	// The number of awaited keys that must arrive to wake up the thread
+	private int awaitedCount;
+	// The keys of the set given to awaitSomeRemote, kept across the calls
+	// until all of them are taken: the ones not arrived yet, and the ones
+	// arrived but not taken yet. Guarded by inboxLock.
+	private Set<PrimaryKey> batchSource;
+	private Set<PrimaryKey> batchPendingKeys;
+	private List<PrimaryKey> batchArrivedKeys;
 
 	CalvinCacheMgr(CalvinPostOffice postOffice, Transaction tx) {
 		this.tx = tx;
@@ -62,8 +69,14 @@ public class CalvinCacheMgr {
 	 * Prepare for receiving the records from remote nodes. This must be called before starting
 	 * receiving those records.
 	 */
-	void createInboxForRemotes() {
-		inbox = new LinkedBlockingQueue<KeyRecordPair>();
+	void createInboxForRemotes(int expectedCount) {
+		inboxLock.lock();
+		try {
+			// Avoid rehashing while the records arrive
+			inbox = new HashMap<PrimaryKey, CachedRecord>(expectedCount * 4 / 3 + 1);
+		} finally {
+			inboxLock.unlock();
+		}
 	}
 	
 	/**
@@ -97,29 +110,139 @@ public class CalvinCacheMgr {
 		if (rec != null)
 			return rec;
 		
-		if (inbox == null)
-			throw new RuntimeException("tx." + tx.getTransactionNumber() + " needs to"
-					+ " call prepareForRemotes() before receiving remote records.");
-		
+		inboxLock.lock();
 		try {
-			String name = Thread.currentThread().getName();
-			Thread.currentThread().setName(name + " waits for " + key + " from remote.");
+			checkInbox();
 			
-			// Wait for remote records
-			KeyRecordPair pair = inbox.take();
-			while (!pair.key.equals(key)) {
-				cachedRecords.put(pair.key, pair.record);
-				pair = inbox.take();
+			// Wait for the record
+			rec = inbox.remove(key);
+			if (rec == null) {
+				awaitedKey = key;
+				flushPushesBeforeWaiting();
+				rec = inbox.remove(key);
 			}
-			rec = pair.record;
+			while (rec == null) {
+				recordArrived.await();
+				rec = inbox.remove(key);
+			}
+			cachedRecords.put(key, rec);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			awaitedKey = null;
+			inboxLock.unlock();
+		}
+
+		return rec;
+	}
+	
+	/**
+	 * Waits until the records of all the given keys arrive, and puts them
+	 * into the given map. Unlike calling {@link #readFromRemote(PrimaryKey)}
+	 * for each key, the transaction thread is woken up only once, after
+	 * all the records have arrived.
+	 * 
+	 * @param keys the keys of the remote records
+	 * @param readings the map to put the records into
+	 */
+	public void awaitAllRemote(Collection<PrimaryKey> keys, Map<PrimaryKey, CachedRecord> readings) {
+		inboxLock.lock();
+		try {
+			checkInbox();
 			
-			Thread.currentThread().setName(name);
+			for (PrimaryKey key : keys) {
+				if (cachedRecords.containsKey(key) || inbox.containsKey(key))
+					continue;
+				if (awaitedKeys == null)
+					awaitedKeys = new HashSet<PrimaryKey>();
+				awaitedKeys.add(key);
+			}
+			
+			// The last arriving record wakes up this thread
+			if (awaitedKeys != null) {
+				awaitedCount = awaitedKeys.size();
+				flushPushesBeforeWaiting();
+				while (awaitedCount > 0)
+					recordArrived.await();
+			}
 			
+			for (PrimaryKey key : keys) {
+				CachedRecord rec = cachedRecords.get(key);
+				if (rec == null) {
+					rec = inbox.remove(key);
+					cachedRecords.put(key, rec);
+				}
+				readings.put(key, rec);
+			}
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			awaitedKeys = null;
+			inboxLock.unlock();
 		}
+	}
 
-		return rec;
+	/**
+	 * Waits until the records of at least {@code minCount} of the given keys
+	 * (or all of them if there are fewer) have arrived. The arrived records
+	 * are put into the given map and their keys are removed from the given
+	 * set. It lets a transaction process the records in batches while the
+	 * rest are still on the way.<br>
+	 * <br>
+	 * The given set is scanned only by the first call. The keys not arrived
+	 * are kept until the set becomes empty, so that the later calls with the
+	 * same set only take the records arrived since the previous one. The set
+	 * must not be changed by others in the meantime.
+	 * 
+	 * @param keys the keys of the remote records not received yet
+	 * @param readings the map to put the arrived records into
+	 * @param minCount the min number of records to wait for
+	 */
+	public void awaitSomeRemote(Set<PrimaryKey> keys, Map<PrimaryKey, CachedRecord> readings, int minCount) {
+		inboxLock.lock();
+		try {
+			checkInbox();
+			
+			if (batchSource != keys) {
+				batchSource = keys;
+				batchPendingKeys = new HashSet<PrimaryKey>();
+				batchArrivedKeys = new ArrayList<PrimaryKey>();
+				for (PrimaryKey key : keys) {
+					if (cachedRecords.containsKey(key) || inbox.containsKey(key))
+						batchArrivedKeys.add(key);
+					else
+						batchPendingKeys.add(key);
+				}
+			}
+			
+			awaitedCount = Math.min(minCount, keys.size()) - batchArrivedKeys.size();
+			if (awaitedCount > 0)
+				flushPushesBeforeWaiting();
+			while (awaitedCount > 0)
+				recordArrived.await();
+			
+			for (PrimaryKey key : batchArrivedKeys) {
+				CachedRecord rec = cachedRecords.get(key);
+				if (rec == null) {
+					rec = inbox.remove(key);
+					cachedRecords.put(key, rec);
+				}
+				readings.put(key, rec);
+				keys.remove(key);
+			}
+			batchArrivedKeys.clear();
+			
+			if (keys.isEmpty()) {
+				batchSource = null;
+				batchPendingKeys = null;
+				batchArrivedKeys = null;
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			awaitedCount = 0;
+			inboxLock.unlock();
+		}
 	}
 
 	public void update(PrimaryKey key, CachedRecord rec) {
@@ -150,17 +273,30 @@ public class CalvinCacheMgr {
 	}
 	
 	public void flush() {
+		List<PrimaryKey> deletedKeys = new ArrayList<PrimaryKey>();
+		Map<PrimaryKey, CachedRecord> insertedRecs = new HashMap<PrimaryKey, CachedRecord>();
+		Map<PrimaryKey, CachedRecord> updatedRecs = new HashMap<PrimaryKey, CachedRecord>();
+		
 		for (PrimaryKey key : writeKeys) {
 			CachedRecord rec = cachedRecords.get(key);
 			
 			if (rec.isDeleted())
-				VanillaCoreCrud.delete(key, tx);
+				deletedKeys.add(key);
 			else if (rec.isNewInserted())
-				VanillaCoreCrud.insert(key, rec, tx);
+				insertedRecs.put(key, rec);
 			else if (rec.isDirty())
-				VanillaCoreCrud.update(key, rec, tx);
+				updatedRecs.put(key, rec);
 		}
 		
+		// Write in batches, so that each table is accessed in
+		// the order of record ids
+		if (!deletedKeys.isEmpty())
+			VanillaCoreCrud.batchDelete(deletedKeys, tx);
+		if (!updatedRecs.isEmpty())
+			VanillaCoreCrud.batchUpdate(updatedRecs, tx);
+		if (!insertedRecs.isEmpty())
+			VanillaCoreCrud.batchInsert(insertedRecs, tx);
+		
 		writeKeys.clear();
 	}
 	
@@ -169,8 +305,45 @@ public class CalvinCacheMgr {
 	}
 	
 	void receiveRemoteRecord(PrimaryKey key, CachedRecord rec) {
+		inboxLock.lock();
+		try {
+			if (inbox == null)
+				throw new RuntimeException("No inbox for " + key + " on Tx." + tx.getTransactionNumber());
+			inbox.put(key, rec);
+			
+			// Only wake up the transaction thread if it is waiting for this
+			if (key.equals(awaitedKey))
+				recordArrived.signal();
+			else if (awaitedKeys != null && awaitedKeys.remove(key) && --awaitedCount == 0)
+				recordArrived.signal();
+			else if (batchPendingKeys != null && batchPendingKeys.remove(key)) {
+				batchArrivedKeys.add(key);
+				if (--awaitedCount == 0)
+					recordArrived.signal();
+			}
+		} finally {
+			inboxLock.unlock();
+		}
+	}
+	
+	private void checkInbox() {
 		if (inbox == null)
-			throw new RuntimeException("No inbox for " + key + " on Tx." + tx.getTransactionNumber());
-		inbox.add(new KeyRecordPair(key, rec));
+			throw new RuntimeException("tx." + tx.getTransactionNumber() + " needs to"
+					+ " call createInboxForRemotes() before receiving remote records.");
+	}
+	
+	// The other nodes running this transaction may be waiting for the
+	// records it pushed, so they should not wait to be merged. It is called
+	// once before a wait with the inbox lock held, and releases the lock
+	// while flushing, since the flush works on the aggregators and the
+	// network. The records arriving meanwhile are counted as usual, so the
+	// caller must set what it awaits before calling this.
+	private void flushPushesBeforeWaiting() {
+		inboxLock.unlock();
+		try {
+			Elasql.connectionMgr().flushTupleSetsOf(tx.getTransactionNumber());
+		} finally {
+			inboxLock.lock();
+		}
 	}
 }
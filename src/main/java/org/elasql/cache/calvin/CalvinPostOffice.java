@@ -24,15 +24,38 @@ import org.vanilladb.core.storage.tx.Transaction;
 public class CalvinPostOffice implements RemoteRecordReceiver {
 
 	public static final int NUM_DISPATCHERS;
+	
+	/**
+	 * Delivers remote records to the transactions directly on the threads
+	 * receiving them, instead of going through the dispatchers.
+	 */
+	public static final boolean ENABLE_DIRECT_DELIVERY;
+
+	/**
+	 * The number of the transactions above the low water mark whose
+	 * mailboxes are kept in the ring. It only works with direct delivery.
+	 */
+	public static final int MAILBOX_RING_SIZE;
 
 	static {
 		NUM_DISPATCHERS = ElasqlProperties.getLoader()
 				.getPropertyAsInteger(CalvinPostOffice.class.getName() + ".NUM_DISPATCHERS", 1);
+		ENABLE_DIRECT_DELIVERY = ElasqlProperties.getLoader()
+				.getPropertyAsBoolean(CalvinPostOffice.class.getName() + ".ENABLE_DIRECT_DELIVERY", false);
+		MAILBOX_RING_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(CalvinPostOffice.class.getName() + ".MAILBOX_RING_SIZE", 4096);
 	}
 
-	private RemoteRecordDispatcher[] dispatchers = new RemoteRecordDispatcher[NUM_DISPATCHERS];
+	private RemoteRecordDispatcher[] dispatchers;
+	private RemoteRecordMailboxes mailboxes;
 
 	public CalvinPostOffice() {
+		if (ENABLE_DIRECT_DELIVERY) {
+			mailboxes = new RemoteRecordMailboxes(MAILBOX_RING_SIZE);
+			return;
+		}
+		
+		dispatchers = new RemoteRecordDispatcher[NUM_DISPATCHERS];
 		for (int i = 0; i < NUM_DISPATCHERS; i++) {
 			dispatchers[i] = new RemoteRecordDispatcher(i);
 			Elasql.taskMgr().runTask(dispatchers[i]);
@@ -40,11 +63,25 @@ public class CalvinPostOffice implements RemoteRecordReceiver {
 	}
 
 	public CalvinCacheMgr createCacheMgr(Transaction tx, boolean willHaveRemote) {
+		return createCacheMgr(tx, willHaveRemote, 16);
+	}
+
+	/**
+	 * Creates a cache manager for the given transaction.
+	 * 
+	 * @param tx the transaction
+	 * @param willHaveRemote whether the transaction will receive remote records
+	 * @param expectedRemoteReads the expected number of remote records, used
+	 * for sizing the inbox
+	 * @return the cache manager
+	 */
+	public CalvinCacheMgr createCacheMgr(Transaction tx, boolean willHaveRemote,
+			int expectedRemoteReads) {
 		CalvinCacheMgr cacheMgr = new CalvinCacheMgr(this, tx);
 
 		if (willHaveRemote) {
 			// Register this CacheMgr for remote records
-			cacheMgr.createInboxForRemotes();
+			cacheMgr.createInboxForRemotes(expectedRemoteReads);
 			registerCacheMgr(tx.getTransactionNumber(), cacheMgr);
 		}
 
@@ -52,22 +89,42 @@ public class CalvinPostOffice implements RemoteRecordReceiver {
 	}
 
 	public void skipTransaction(long txNum) {
+		if (mailboxes != null) {
+			mailboxes.retire(txNum);
+			return;
+		}
+		
 		int id = (int) (txNum % NUM_DISPATCHERS);
 		dispatchers[id].ungisterTransaction(txNum);
 	}
 	
 	@Override
 	public void cacheRemoteRecord(Tuple t) {
+		if (mailboxes != null) {
+			mailboxes.deliver(t.rec.getSrcTxNum(), t.key, t.rec);
+			return;
+		}
+		
 		int id = (int) (t.rec.getSrcTxNum() % NUM_DISPATCHERS);
 		dispatchers[id].cacheRemoteRecord(t.key, t.rec);
 	}
 
 	void registerCacheMgr(long txNum, CalvinCacheMgr cacheMgr) {
+		if (mailboxes != null) {
+			mailboxes.register(txNum, cacheMgr);
+			return;
+		}
+		
 		int id = (int) (txNum % NUM_DISPATCHERS);
 		dispatchers[id].registerCacheMgr(txNum, cacheMgr);
 	}
 
 	void notifyTxCommitted(long txNum) {
+		if (mailboxes != null) {
+			mailboxes.retire(txNum);
+			return;
+		}
+		
 		int id = (int) (txNum % NUM_DISPATCHERS);
 		dispatchers[id].ungisterTransaction(txNum);
 	}
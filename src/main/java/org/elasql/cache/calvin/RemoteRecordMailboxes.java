@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache.calvin;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+
+/**
+ * Delivers remote records directly to the cache managers of the transactions
+ * on the calling threads, instead of going through the event loops of
+ * {@link RemoteRecordDispatcher}.<br>
+ * <br>
+ * Each transaction that has not retired has a mailbox. A mailbox keeps the
+ * records arriving before the transaction registers its cache manager. A
+ * retired mailbox is kept until the low water mark passes it, so that the
+ * records arriving late are dropped.<br>
+ * <br>
+ * The mailboxes of the transactions right above the low water mark are kept
+ * in a ring indexed by the transaction numbers, so finding a mailbox needs
+ * no lookup in a map. A slot is reused once the low water mark passes the
+ * transaction of its mailbox. The mailboxes of the transactions too far
+ * ahead of the low water mark are kept in a map until the ring covers them.
+ */
+class RemoteRecordMailboxes {
+
+	private static class PendingRecord {
+		PrimaryKey key;
+		CachedRecord record;
+
+		PendingRecord(PrimaryKey key, CachedRecord record) {
+			this.key = key;
+			this.record = record;
+		}
+	}
+
+	private static class Mailbox {
+		final long txNum;
+		volatile CalvinCacheMgr owner;
+		volatile boolean retired;
+		final Queue<PendingRecord> pendings = new ConcurrentLinkedQueue<PendingRecord>();
+
+		Mailbox(long txNum) {
+			this.txNum = txNum;
+		}
+	}
+
+	private final AtomicReferenceArray<Mailbox> ring;
+	private final int mask;
+	// The mailboxes beyond the ring. They are only created and moved to the
+	// ring while holding the monitor of this object.
+	private final ConcurrentHashMap<Long, Mailbox> overflow = new ConcurrentHashMap<Long, Mailbox>();
+
+	// All the transactions with numbers not larger than this have retired
+	private final AtomicLong lowWaterMark = new AtomicLong(Elasql.START_TX_NUMBER - 1);
+
+	/**
+	 * Creates the mailboxes with a ring of the given size, which is rounded
+	 * up to a power of two.
+	 * 
+	 * @param ringSize the number of transactions above the low water mark
+	 * that the ring can hold
+	 */
+	RemoteRecordMailboxes(int ringSize) {
+		int capacity = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+		ring = new AtomicReferenceArray<Mailbox>(capacity);
+		mask = capacity - 1;
+	}
+
+	void deliver(long txNum, PrimaryKey key, CachedRecord rec) {
+		Mailbox mailbox = getMailbox(txNum);
+		if (mailbox == null || mailbox.retired)
+			return;
+
+		CalvinCacheMgr owner = mailbox.owner;
+		if (owner != null) {
+			owner.receiveRemoteRecord(key, rec);
+		} else {
+			mailbox.pendings.add(new PendingRecord(key, rec));
+
+			// The owner may have registered after the first check
+			if (mailbox.owner != null)
+				transferPendings(mailbox);
+		}
+	}
+
+	void register(long txNum, CalvinCacheMgr cacheMgr) {
+		Mailbox mailbox = getMailbox(txNum);
+		if (mailbox == null || mailbox.retired)
+			throw new IllegalStateException("tx." + txNum + " has retired");
+
+		mailbox.owner = cacheMgr;
+		transferPendings(mailbox);
+	}
+
+	void retire(long txNum) {
+		Mailbox mailbox = getMailbox(txNum);
+		if (mailbox == null)
+			return;
+
+		mailbox.retired = true;
+		mailbox.owner = null;
+		mailbox.pendings.clear();
+
+		advanceLowWaterMark();
+	}
+
+	long getLowWaterMark() {
+		return lowWaterMark.get();
+	}
+
+	/**
+	 * Returns the number of the mailboxes that have not been reclaimed. It
+	 * scans the whole ring, so it is only for tests and debugging.
+	 */
+	int size() {
+		long mark = lowWaterMark.get();
+		int size = overflow.size();
+		for (int slot = 0; slot < ring.length(); slot++) {
+			Mailbox mailbox = ring.get(slot);
+			if (mailbox != null && mailbox.txNum > mark)
+				size++;
+		}
+		return size;
+	}
+
+	private Mailbox getMailbox(long txNum) {
+		if (txNum <= lowWaterMark.get())
+			return null;
+
+		Mailbox mailbox = ring.get((int) txNum & mask);
+		if (mailbox != null && mailbox.txNum == txNum)
+			return mailbox;
+
+		return getOrCreateMailbox(txNum);
+	}
+
+	private synchronized Mailbox getOrCreateMailbox(long txNum) {
+		long mark = lowWaterMark.get();
+		if (txNum <= mark)
+			return null;
+
+		Mailbox mailbox = overflow.isEmpty() ? null : overflow.get(txNum);
+		if (txNum > mark + ring.length()) {
+			// Too far ahead to take a slot
+			if (mailbox == null) {
+				mailbox = new Mailbox(txNum);
+				overflow.put(txNum, mailbox);
+			}
+		} else {
+			int slot = (int) txNum & mask;
+			Mailbox current = ring.get(slot);
+			if (current != null && current.txNum == txNum)
+				return current;
+
+			// The current mailbox of the slot, if any, belongs to a
+			// transaction below the low water mark
+			if (mailbox == null)
+				mailbox = new Mailbox(txNum);
+			else
+				overflow.remove(txNum);
+			ring.set(slot, mailbox);
+		}
+
+		// The low water mark may have passed the transaction before
+		// the mailbox is put
+		if (txNum <= lowWaterMark.get())
+			return null;
+		return mailbox;
+	}
+
+	private void transferPendings(Mailbox mailbox) {
+		CalvinCacheMgr owner = mailbox.owner;
+		if (owner == null)
+			return;
+
+		// Each pending record is polled by exactly one thread
+		PendingRecord pending = mailbox.pendings.poll();
+		while (pending != null) {
+			owner.receiveRemoteRecord(pending.key, pending.record);
+			pending = mailbox.pendings.poll();
+		}
+	}
+
+	// Finds the mailbox of the transaction without creating one
+	private Mailbox findMailbox(long txNum) {
+		Mailbox mailbox = ring.get((int) txNum & mask);
+		if (mailbox != null && mailbox.txNum == txNum)
+			return mailbox;
+
+		mailbox = overflow.isEmpty() ? null : overflow.get(txNum);
+		if (mailbox != null)
+			return mailbox;
+
+		// It may have been moved to the ring in the meantime
+		mailbox = ring.get((int) txNum & mask);
+		return mailbox != null && mailbox.txNum == txNum ? mailbox : null;
+	}
+
+	private void advanceLowWaterMark() {
+		long mark = lowWaterMark.get();
+		while (true) {
+			Mailbox next = findMailbox(mark + 1);
+			if (next == null || !next.retired)
+				return;
+
+			if (lowWaterMark.compareAndSet(mark, mark + 1)) {
+				if (!ring.compareAndSet((int) next.txNum & mask, next, null))
+					overflow.remove(next.txNum, next);
+			}
+			mark = lowWaterMark.get();
+		}
+	}
+}
@@ -5,6 +5,8 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +15,7 @@ import org.elasql.cache.RemoteRecordReceiver;
 import org.elasql.cache.VanillaCoreCrud;
 import org.elasql.remote.groupcomm.Tuple;
 import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.server.Elasql;
 import org.elasql.sql.PrimaryKey;
 import org.vanilladb.core.storage.tx.Transaction;
 
@@ -37,11 +40,15 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 	
 	private Map<PrimaryKey, CachedRecord> recordCache;
 
-	private final Object anchors[] = new Object[1009];
+	// Use explicit locks instead of monitors, so that a transaction running on
+	// a virtual thread will not be pinned to its carrier thread while waiting
+	private final ReentrantLock anchors[] = new ReentrantLock[1009];
+	private final Condition recordArrived[] = new Condition[1009];
 
 	public TPartCacheMgr() {
 		for (int i = 0; i < anchors.length; ++i) {
-			anchors[i] = new Object();
+			anchors[i] = new ReentrantLock();
+			recordArrived[i] = anchors[i].newCondition();
 		}
 		
 		recordCache = new ConcurrentHashMap<PrimaryKey, CachedRecord>(FusionTable.EXPECTED_MAX_SIZE + 1000);
@@ -68,35 +75,43 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 //		}).start();
 	}
 
-	private Object prepareAnchor(Object o) {
+	private int prepareAnchor(Object o) {
 		int hash = o.hashCode() % anchors.length;
 		if (hash < 0) {
 			hash += anchors.length;
 		}
-		return anchors[hash];
+		return hash;
 	}
 
 	CachedRecord takeFromTx(PrimaryKey key, long src, long dest) {
 //		Timer.getLocalTimer().startComponentTimer("Read from Tx");
 //		try {
 			CachedEntryKey k = new CachedEntryKey(key, src, dest);
-			synchronized (prepareAnchor(k)) {
-				try {
-					// Debug: Tracing the waiting key
-//					Thread.currentThread().setName("Tx." + dest + " waits for pushing of " + key
-//							+ " from tx." + src);
-					// wait if the record has not delivered
-					while (!exchange.containsKey(k)) {
-						prepareAnchor(k).wait();
-					}
+			int anchor = prepareAnchor(k);
+			
+			// The pushes of this transaction should not wait to be merged,
+			// since the other nodes may be waiting for them. Flush them
+			// before locking the anchor, which the arriving records need.
+			if (!exchange.containsKey(k))
+				Elasql.connectionMgr().flushTupleSetsOf(dest);
+			
+			anchors[anchor].lock();
+			try {
+				// Debug: Tracing the waiting key
+//				Thread.currentThread().setName("Tx." + dest + " waits for pushing of " + key
+//						+ " from tx." + src);
+				// wait if the record has not delivered
+				while (!exchange.containsKey(k))
+					recordArrived[anchor].await();
 
-					// Debug: Tracing the waiting key
-//					Thread.currentThread().setName("Tx." + dest);
-					
-					return exchange.remove(k);
-				} catch (InterruptedException e) {
-					throw new RuntimeException();
-				}
+				// Debug: Tracing the waiting key
+//				Thread.currentThread().setName("Tx." + dest);
+				
+				return exchange.remove(k);
+			} catch (InterruptedException e) {
+				throw new RuntimeException();
+			} finally {
+				anchors[anchor].unlock();
 			}
 //		} finally {
 //			Timer.getLocalTimer().stopComponentTimer("Read from Tx");
@@ -109,9 +124,13 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 					"The record for %s is null (from Tx.%d to Tx.%d)", key, src, dest));
 		
 		CachedEntryKey k = new CachedEntryKey(key, src, dest);
-		synchronized (prepareAnchor(k)) {
+		int anchor = prepareAnchor(k);
+		anchors[anchor].lock();
+		try {
 			exchange.put(k, rec);
-			prepareAnchor(k).notifyAll();
+			recordArrived[anchor].signalAll();
+		} finally {
+			anchors[anchor].unlock();
 		}
 	}
 
@@ -17,6 +17,11 @@ public final class MigrationSettings {
 	public static final int CHUNK_SIZE_IN_COUNT;
 	public static final int CHUNK_SIZE;
 	
+	// The max number of records in a frame of a chunk. A chunk is sent
+	// as a single tuple set if it is 0.
+	public static final int CHUNK_FRAME_SIZE_IN_COUNT;
+	public static final boolean COMPRESS_CHUNK_FRAMES;
+	
 	static {
 		ENABLE_MIGRATION = ElasqlProperties.getLoader().getPropertyAsBoolean(
 				MigrationSettings.class.getName() + ".ENABLE_MIGRATION", false);
@@ -39,5 +44,11 @@ public final class MigrationSettings {
 		CHUNK_SIZE_IN_COUNT = ElasqlProperties.getLoader().getPropertyAsInteger(
 				MigrationSettings.class.getName() + ".CHUNK_SIZE_IN_COUNT", 40000);
 		CHUNK_SIZE = USE_BYTES_FOR_CHUNK_SIZE? CHUNK_SIZE_IN_BYTES : CHUNK_SIZE_IN_COUNT;
+		
+		// Chunk frames
+		CHUNK_FRAME_SIZE_IN_COUNT = ElasqlProperties.getLoader().getPropertyAsInteger(
+				MigrationSettings.class.getName() + ".CHUNK_FRAME_SIZE_IN_COUNT", 0);
+		COMPRESS_CHUNK_FRAMES = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				MigrationSettings.class.getName() + ".COMPRESS_CHUNK_FRAMES", false);
 	}
 }
@@ -196,10 +196,7 @@ public class OnePhaseBgPushProcedure extends CalvinStoredProcedure<OnePhaseBgPus
 		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
 
 		// Receive the data from the source node and save them
-		for (PrimaryKey k : pushingKeys) {
-			CachedRecord rec = cacheMgr.readFromRemote(k);
-			recordMap.put(k, rec);
-		}
+		cacheMgr.awaitAllRemote(pushingKeys, recordMap);
 		
 		return recordMap;
 	}
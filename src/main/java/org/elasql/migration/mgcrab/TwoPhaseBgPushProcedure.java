@@ -264,7 +264,7 @@ public class TwoPhaseBgPushProcedure extends CalvinStoredProcedure<TwoPhaseBgPus
 					+ " records to the dest. node. (Node." + paramHelper.getDestNodeId() + ")");
 
 		// Push to the destination
-		Elasql.connectionMgr().pushTupleSet(paramHelper.getDestNodeId(), ts);
+		Elasql.connectionMgr().pushMigrationChunk(paramHelper.getDestNodeId(), ts);
 		
 	}
 	
@@ -276,10 +276,7 @@ public class TwoPhaseBgPushProcedure extends CalvinStoredProcedure<TwoPhaseBgPus
 		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
 
 		// Receive the data from the source node and save them
-		for (PrimaryKey k : pushingKeys) {
-			CachedRecord rec = cacheMgr.readFromRemote(k);
-			recordMap.put(k, rec);
-		}
+		cacheMgr.awaitAllRemote(pushingKeys, recordMap);
 		
 		return recordMap;
 	}
@@ -9,6 +9,7 @@ import java.util.logging.Logger;
 
 import org.elasql.cache.CachedRecord;
 import org.elasql.cache.VanillaCoreCrud;
+import org.elasql.migration.MigrationSettings;
 import org.elasql.procedure.calvin.CalvinStoredProcedure;
 import org.elasql.remote.groupcomm.TupleSet;
 import org.elasql.schedule.calvin.ExecutionPlan;
@@ -121,8 +122,7 @@ public class BgPushProcedure extends CalvinStoredProcedure<BgPushParamHelper> {
 			
 			readAndPushInSource();
 		} else if (localNodeId == paramHelper.getDestNodeId()) {
-			Map<PrimaryKey, CachedRecord> readCache = receiveInDest();
-			insertInDest(readCache);
+			receiveAndInsertInDest();
 		}
 		
 		long time = System.nanoTime() - start;
@@ -184,11 +184,11 @@ public class BgPushProcedure extends CalvinStoredProcedure<BgPushParamHelper> {
 					+ " records to the dest. node. (Node." + paramHelper.getDestNodeId() + ")");
 
 		// Push to the destination
-		Elasql.connectionMgr().pushTupleSet(paramHelper.getDestNodeId(), ts);
+		Elasql.connectionMgr().pushMigrationChunk(paramHelper.getDestNodeId(), ts);
 		
 	}
 	
-	private Map<PrimaryKey, CachedRecord> receiveInDest() {
+	private void receiveAndInsertInDest() {
 		if (logger.isLoggable(Level.INFO))
 			logger.info("BG pushing tx. " + txNum + " is receiving " + pushingKeys.size()
 					+ " records from the source node. (Node." + paramHelper.getSourceNodeId() + ")");
@@ -198,28 +198,28 @@ public class BgPushProcedure extends CalvinStoredProcedure<BgPushParamHelper> {
 		sources.add(paramHelper.getSourceNodeId());
 		sendMigrationPullRequests(sources);
 		
-		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
-
-		// Receive the data from the source node and save them
-		for (PrimaryKey k : pushingKeys) {
-			CachedRecord rec = cacheMgr.readFromRemote(k);
-			recordMap.put(k, rec);
+		// If the chunk is sent in frames, store the records of each frame
+		// while the rest are still on the way
+		int batchSize = MigrationSettings.CHUNK_FRAME_SIZE_IN_COUNT > 0?
+				MigrationSettings.CHUNK_FRAME_SIZE_IN_COUNT : pushingKeys.size();
+		Set<PrimaryKey> remainingKeys = new HashSet<PrimaryKey>(pushingKeys);
+		while (!remainingKeys.isEmpty()) {
+			Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
+			cacheMgr.awaitSomeRemote(remainingKeys, recordMap, batchSize);
+			insertInDest(recordMap);
+			cacheMgr.flush();
 		}
-		
-		return recordMap;
 	}
 	
 	private void insertInDest(Map<PrimaryKey, CachedRecord> cachedRecords) {
 		if (logger.isLoggable(Level.INFO))
-			logger.info("BG pushing tx. " + txNum + " is storing " + pushingKeys.size()
+			logger.info("BG pushing tx. " + txNum + " is storing " + cachedRecords.size()
 					+ " records to the local storage.");
 
 		// Store the cached records
-		for (PrimaryKey key : pushingKeys) {
-			CachedRecord rec = cachedRecords.get(key);
-			
-			if (rec == null)
-				throw new RuntimeException("Something wrong: " + key);
+		for (Map.Entry<PrimaryKey, CachedRecord> entry : cachedRecords.entrySet()) {
+			PrimaryKey key = entry.getKey();
+			CachedRecord rec = entry.getValue();
 
 			// Flush them to the local storage engine
 			if (rec.getVal("exists").equals(TRUE)) {
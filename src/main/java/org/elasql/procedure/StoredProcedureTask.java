@@ -23,6 +23,7 @@ public abstract class StoredProcedureTask<S extends StoredProcedure<?>> extends
 	protected int clientId;
 	protected int connectionId;
 	protected long txNum;
+	protected long requestId;
 
 	public StoredProcedureTask(int cid, int connId, long txNum, S sp) {
 		this.txNum = txNum;
@@ -36,4 +37,11 @@ public abstract class StoredProcedureTask<S extends StoredProcedure<?>> extends
 	public long getTxNum() {
 		return txNum;
 	}
+
+	/**
+	 * Sets the request id of the call, which is sent back with the response.
+	 */
+	public void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
 }
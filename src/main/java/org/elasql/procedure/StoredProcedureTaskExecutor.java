@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.procedure;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.server.VanillaDb;
+
+/**
+ * Decides which threads run the stored procedure tasks handed over by the
+ * schedulers.
+ */
+public class StoredProcedureTaskExecutor {
+	private static Logger logger = Logger.getLogger(StoredProcedureTaskExecutor.class.getName());
+	
+	public static final int TASK_MANAGER = 0, VIRTUAL_THREADS = 1;
+	
+	/**
+	 * The backend running stored procedure tasks.<br>
+	 * 0 - the threads of the task manager of VanillaCore<br>
+	 * 1 - a virtual thread for each task. It falls back to the task manager if
+	 * the JVM does not support virtual threads (before Java 21).
+	 */
+	public static final int BACKEND;
+	
+	private static final ExecutorService VIRTUAL_THREAD_EXECUTOR;
+
+	static {
+		BACKEND = ElasqlProperties.getLoader().getPropertyAsInteger(
+				StoredProcedureTaskExecutor.class.getName() + ".BACKEND", TASK_MANAGER);
+		
+		ExecutorService executor = null;
+		if (BACKEND == VIRTUAL_THREADS) {
+			executor = newVirtualThreadExecutor();
+			if (executor == null && logger.isLoggable(Level.WARNING))
+				logger.warning("virtual threads are not supported by this JVM, "
+						+ "falls back to the task manager");
+		}
+		VIRTUAL_THREAD_EXECUTOR = executor;
+	}
+	
+	/**
+	 * Runs the given task with the configured backend.
+	 * 
+	 * @param task
+	 *            the stored procedure task to run
+	 */
+	public static void execute(StoredProcedureTask<?> task) {
+		if (VIRTUAL_THREAD_EXECUTOR != null)
+			VIRTUAL_THREAD_EXECUTOR.execute(task);
+		else
+			VanillaDb.taskMgr().runTask(task);
+	}
+	
+	/**
+	 * Checks if the tasks are run by virtual threads. The components that
+	 * block a task should avoid waiting inside a {@code synchronized} block
+	 * in this case, which pins the virtual thread to its carrier thread.
+	 * 
+	 * @return true if the tasks are run by virtual threads
+	 */
+	public static boolean isUsingVirtualThreads() {
+		return VIRTUAL_THREAD_EXECUTOR != null;
+	}
+	
+	private static ExecutorService newVirtualThreadExecutor() {
+		// Executors.newVirtualThreadPerTaskExecutor() is only available
+		// since Java 21, so we look it up at runtime.
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	private StoredProcedureTaskExecutor() {
+		// Static methods only
+	}
+}
@@ -54,6 +54,7 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 	private ExecutionPlan execPlan;
 	private Transaction tx;
 	private boolean isCommitted = false;
+	private boolean areLocksRequested = false;
 
 	public CalvinStoredProcedure(long txNum, H paramHelper) {
 		super(paramHelper);
@@ -104,7 +105,8 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 			tx.addLifecycleListener(new DdRecoveryMgr(tx.getTransactionNumber()));
 
 			// create a cache manager
-			cacheMgr = postOffice.createCacheMgr(tx, execPlan.hasRemoteReads());
+			cacheMgr = postOffice.createCacheMgr(tx, execPlan.hasRemoteReads(),
+					execPlan.getRemoteReadKeys().size() + execPlan.getIncomingMigratingKeys().size());
 
 			// For special transactions
 			executeLogicInScheduler(tx);
@@ -161,7 +163,26 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 		ccMgr.bookWriteKeys(execPlan.getIncomingMigratingKeys());
 	}
 
+	/**
+	 * Requests the booked locks without blocking the calling thread. The
+	 * callback is invoked once all the locks are granted, and then
+	 * {@link #execute()} will not wait for the locks again.
+	 * 
+	 * @param onLocksReady
+	 *            the callback invoked when all the locks are granted
+	 * @see ConservativeOrderedCcMgr#requestLocksAsync(Runnable)
+	 */
+	public void requestConservativeLocksAsync(Runnable onLocksReady) {
+		areLocksRequested = true;
+		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
+		ccMgr.requestLocksAsync(onLocksReady);
+	}
+
 	private void getConservativeLocks() {
+		// The locks might have been requested asynchronously
+		if (areLocksRequested)
+			return;
+		
 		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
 		ccMgr.requestLocks();
 	}
@@ -304,6 +325,16 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 		return tx;
 	}
 
+	/**
+	 * Rolls back the transaction created by {@link #prepare(Object...)}, if
+	 * any. It is called by the scheduler when the preparation fails, since
+	 * the procedure will never be executed.
+	 */
+	public void rollbackFailedPreparation() {
+		if (tx != null)
+			tx.rollback();
+	}
+
 	protected void sendMigrationPullRequests(Set<Integer> targetNodes) {
 		for (Integer nodeId : targetNodes) {
 			// Construct pushing tuple set
@@ -361,10 +392,7 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 
 	private void collectRemoteReadings(Set<PrimaryKey> keys, Map<PrimaryKey, CachedRecord> readingCache) {
 		// Read remote records
-		for (PrimaryKey k : keys) {
-			CachedRecord rec = cacheMgr.readFromRemote(k);
-			readingCache.put(k, rec);
-		}
+		cacheMgr.awaitAllRemote(keys, readingCache);
 	}
 
 	private void performInsertionForMigrations(Set<PrimaryKey> migratingKeys,
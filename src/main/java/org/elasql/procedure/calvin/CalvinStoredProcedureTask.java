@@ -54,7 +54,7 @@ public class CalvinStoredProcedureTask
 //		}
 
 		if (sp.willResponseToClients()) {
-			Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, rs);
+			Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, requestId, rs);
 		}
 		
 		// For Debugging
@@ -28,7 +28,7 @@ public class NaiveStoredProcedureTask extends StoredProcedureTask<NaiveStoredPro
 
 	public void run() {
 		SpResultSet rs = sp.execute();
-		Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, rs);
+		Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, requestId, rs);
 	}
 	
 	public void lockConservatively() {
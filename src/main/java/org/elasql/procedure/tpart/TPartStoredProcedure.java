@@ -102,6 +102,16 @@ public abstract class TPartStoredProcedure<H extends StoredProcedureParamHelper>
 		ccMgr.bookWriteKeys(plan.getCacheDeletions());
 	}
 
+	/**
+	 * Rolls back the transaction of this procedure, if it has been created.
+	 * It is called by the scheduler when the preparation fails, since the
+	 * procedure will never be executed.
+	 */
+	public void rollbackFailedPreparation() {
+		if (tx != null)
+			tx.rollback();
+	}
+
 	private void getConservativeLocks() {
 		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
 		
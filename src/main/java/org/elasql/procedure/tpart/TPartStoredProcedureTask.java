@@ -48,7 +48,7 @@ public class TPartStoredProcedureTask
 
 		if (tsp.isMaster()) {
 			if (clientId != -1)
-				Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, rs);
+				Elasql.connectionMgr().sendClientResponse(clientId, connectionId, txNum, requestId, rs);
 
 			// TODO: Uncomment this when the migration module is migrated
 //			if (tsp.getProcedureType() == ProcedureType.MIGRATION) {
@@ -18,6 +18,11 @@ package org.elasql.remote.groupcomm;
 import java.io.Serializable;
 
 import org.vanilladb.core.remote.storedprocedure.SpResultSet;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.Record;
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VarcharConstant;
 
 /**
  * The commit message that server sends back to client after executing the
@@ -26,14 +31,71 @@ import org.vanilladb.core.remote.storedprocedure.SpResultSet;
  */
 public class ClientResponse implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 20261017001L;
 
 	public static final int COMMITTED = 0, ROLLED_BACK = 1;
 
+	/**
+	 * The field of the result set of a rejected call, which tells why the
+	 * call is rejected.
+	 */
+	public static final String REJECT_REASON_FIELD = "reject_reason";
+
+	private static final int MAX_REASON_LENGTH = 100;
+
+	/**
+	 * The only record in the result set of a rejected call.
+	 */
+	private static class RejectionRecord implements Record, Serializable {
+
+		private static final long serialVersionUID = 20261017001L;
+
+		private final Constant reason;
+
+		RejectionRecord(String reason) {
+			if (reason.length() > MAX_REASON_LENGTH)
+				reason = reason.substring(0, MAX_REASON_LENGTH);
+			this.reason = new VarcharConstant(reason);
+		}
+
+		@Override
+		public Constant getVal(String fldName) {
+			if (REJECT_REASON_FIELD.equals(fldName))
+				return reason;
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the response of a call that is rejected before being ordered,
+	 * so that the client does not wait for it forever. Its result set is not
+	 * committed and has a single record telling the reason in
+	 * {@link #REJECT_REASON_FIELD}. The response has no transaction number.
+	 * 
+	 * @param spc
+	 *            the rejected call
+	 * @param reason
+	 *            why the call is rejected
+	 * @return the response
+	 */
+	public static ClientResponse newRejection(StoredProcedureCall spc, String reason) {
+		Schema schema = new Schema();
+		schema.addField(REJECT_REASON_FIELD, Type.VARCHAR(MAX_REASON_LENGTH));
+		ClientResponse response = new ClientResponse(spc.getClientId(), spc.getConnectionId(),
+				-1, spc.getRequestId(),
+				new SpResultSet(false, schema, new RejectionRecord(reason)));
+		response.rejected = true;
+		return response;
+	}
+
 	private long txNum;
 
 	private int clientId, rteId;
 
+	private long requestId;
+
+	private boolean rejected;
+
 	private ElasqlSpResultSet result;
 
 	public ClientResponse(int clientId, int rteId, long txNum, SpResultSet result) {
@@ -43,6 +105,11 @@ public class ClientResponse implements Serializable {
 		this.result = new ElasqlSpResultSet(result);
 	}
 
+	public ClientResponse(int clientId, int rteId, long txNum, long requestId, SpResultSet result) {
+		this(clientId, rteId, txNum, result);
+		this.requestId = requestId;
+	}
+
 	public long getTxNum() {
 		return txNum;
 	}
@@ -51,6 +118,15 @@ public class ClientResponse implements Serializable {
 		return result;
 	}
 
+	/**
+	 * Returns if the call is rejected before being ordered (e.g. shed by an
+	 * overloaded sequencer). A rejected call never runs and never gets
+	 * another response.
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
 	public int getClientId() {
 		return clientId;
 	}
@@ -59,6 +135,14 @@ public class ClientResponse implements Serializable {
 		this.clientId = clientId;
 	}
 
+	/**
+	 * Returns the request id of the call that this response answers, or 0 if
+	 * the call did not carry one.
+	 */
+	public long getRequestId() {
+		return requestId;
+	}
+
 	public int getRteId() {
 		return rteId;
 	}
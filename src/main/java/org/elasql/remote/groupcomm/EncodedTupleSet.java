@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.remote.groupcomm;
+
+import java.io.Serializable;
+
+/**
+ * A {@link TupleSet} encoded by {@link TupleSetCodec}, so that it can be
+ * sent as a single byte array.
+ */
+public class EncodedTupleSet implements Serializable {
+
+	private static final long serialVersionUID = 20261017001L;
+
+	private byte[] bytes;
+
+	public EncodedTupleSet(TupleSet tupleSet) {
+		this.bytes = TupleSetCodec.encode(tupleSet);
+	}
+
+	public TupleSet decode() {
+		return TupleSetCodec.decode(bytes);
+	}
+
+	public int size() {
+		return bytes.length;
+	}
+}
@@ -27,7 +27,10 @@ public class StoredProcedureCall implements Serializable {
 
 	public static int PID_NO_OPERATION = Integer.MIN_VALUE;
 
-	private static final long serialVersionUID = 8807383803517134106L;
+	// The first parameter of a schedule hint
+	private static final String SCHEDULE_HINT_TAG = "schedule-hint";
+
+	private static final long serialVersionUID = 20261017001L;
 
 	private Object[] objs;
 
@@ -35,10 +38,32 @@ public class StoredProcedureCall implements Serializable {
 
 	private int clientId, pid = PID_NO_OPERATION, connectionId = -1;
 
+	// Identifies the call among the calls of the client node, so that the
+	// response can be matched to it. 0 means that the client does not use it.
+	private long requestId;
+
 	public static StoredProcedureCall getNoOpStoredProcCall(int clienId) {
 		return new StoredProcedureCall(clienId);
 	}
 
+	/**
+	 * Creates a hint telling the T-Part schedulers how to batch the requests
+	 * after it. Since it is delivered in the total order, all the nodes apply
+	 * it at the same position. It is a no-op call for the other schedulers.
+	 * 
+	 * @param batchSize
+	 *            the number of requests in a batch from now on
+	 * @param cut
+	 *            whether to schedule the pending requests now, even if there
+	 *            are not enough of them
+	 * @return the hint
+	 */
+	public static StoredProcedureCall getScheduleHintCall(int batchSize, boolean cut) {
+		StoredProcedureCall spc = new StoredProcedureCall(-1);
+		spc.objs = new Object[] { SCHEDULE_HINT_TAG, batchSize, cut };
+		return spc;
+	}
+
 	StoredProcedureCall(int clienId) {
 		this.clientId = clienId;
 	}
@@ -76,6 +101,14 @@ public class StoredProcedureCall implements Serializable {
 		return connectionId;
 	}
 
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
+
 	public int getPid() {
 		return pid;
 	}
@@ -83,6 +116,19 @@ public class StoredProcedureCall implements Serializable {
 	public boolean isNoOpStoredProcCall() {
 		return pid == PID_NO_OPERATION;
 	}
+
+	public boolean isScheduleHintCall() {
+		return pid == PID_NO_OPERATION && objs != null && objs.length == 3
+				&& SCHEDULE_HINT_TAG.equals(objs[0]);
+	}
+
+	public int getHintedBatchSize() {
+		return (Integer) objs[1];
+	}
+
+	public boolean isHintedCut() {
+		return (Boolean) objs[2];
+	}
 	
 	@Override
 	public String toString() {
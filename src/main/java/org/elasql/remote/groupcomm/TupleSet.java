@@ -55,6 +55,15 @@ public class TupleSet implements Serializable {
 		tuples.add(new Tuple(key, srcTxNum, destTxNum, rec));
 	}
 
+	/**
+	 * Appends the tuples of another set without cloning their records again.
+	 * 
+	 * @param tuples the tuples of another set
+	 */
+	public void addTuples(List<Tuple> tuples) {
+		this.tuples.addAll(tuples);
+	}
+
 	public int sinkId() {
 		return sinkId;
 	}
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.remote.groupcomm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Type;
+
+/**
+ * Encodes a {@link TupleSet} into a compact binary form and decodes it back.
+ * It is much smaller than the Java serialization of a {@link TupleSet},
+ * which writes the class descriptors and every value as
+ * type/argument/length/bytes.<br>
+ * <br>
+ * The format:
+ * <ul>
+ * <li>Table and field names are written once per message. Later occurrences
+ * are written as the indices in the order they first appear.</li>
+ * <li>Integers, lengths and transaction numbers are written as varints.</li>
+ * <li>Each constant is written as a one-byte tag followed by a form
+ * specialized for its type.</li>
+ * <li>The metadata, which is rare, is still written by Java
+ * serialization.</li>
+ * </ul>
+ */
+public class TupleSetCodec {
+
+	// Constant tags. The highest bit marks a dirty field of a record.
+	private static final int TAG_INTEGER = 0, TAG_BIGINT = 1, TAG_DOUBLE = 2,
+			TAG_VARCHAR = 3, TAG_OTHER = 4;
+	static final int TAG_DIRTY = 0x80;
+
+	// Record flags
+	private static final int REC_DIRTY = 1, REC_DELETED = 2, REC_NEW_INSERTED = 4,
+			REC_TEMP = 8, REC_OWN_KEY = 16;
+
+	public static byte[] encode(TupleSet tupleSet) {
+		Output out = new Output();
+		out.writeSignedVarLong(tupleSet.sinkId());
+
+		Serializable metadata = tupleSet.getMetadata();
+		if (metadata == null) {
+			out.writeByte(0);
+		} else {
+			out.writeByte(1);
+			out.writeBytes(serialize(metadata));
+		}
+
+		List<Tuple> tuples = tupleSet.getTupleSet();
+		out.writeVarInt(tuples.size());
+		for (Tuple t : tuples) {
+			out.writeSignedVarLong(t.srcTxNum);
+			out.writeSignedVarLong(t.destTxNum);
+			writeKey(out, t.key);
+			writeRecord(out, t.key, t.rec);
+		}
+
+		return out.toByteArray();
+	}
+
+	public static TupleSet decode(byte[] bytes) {
+		Input in = new Input(bytes);
+		TupleSet tupleSet = new TupleSet((int) in.readSignedVarLong());
+
+		if (in.readByte() != 0)
+			tupleSet.setMetadata((Serializable) deserialize(in.readBytes()));
+
+		int numOfTuples = in.readVarInt();
+		List<Tuple> tuples = tupleSet.getTupleSet();
+		for (int i = 0; i < numOfTuples; i++) {
+			long srcTxNum = in.readSignedVarLong();
+			long destTxNum = in.readSignedVarLong();
+			PrimaryKey key = readKey(in);
+			CachedRecord rec = readRecord(in, key);
+			tuples.add(new Tuple(key, srcTxNum, destTxNum, rec));
+		}
+
+		return tupleSet;
+	}
+
+	private static void writeKey(Output out, PrimaryKey key) {
+		out.writeName(key.getTableName());
+		out.writeVarInt(key.getNumOfFlds());
+		for (int i = 0; i < key.getNumOfFlds(); i++) {
+			out.writeName(key.getField(i));
+			writeConstant(out, key.getVal(i), false);
+		}
+	}
+
+	private static PrimaryKey readKey(Input in) {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(in.readName());
+		int numOfFlds = in.readVarInt();
+		for (int i = 0; i < numOfFlds; i++) {
+			String fld = in.readName();
+			builder.addFldVal(fld, readConstant(in, in.readByte()));
+		}
+		return builder.build();
+	}
+
+	private static void writeRecord(Output out, PrimaryKey tupleKey, CachedRecord rec) {
+		PrimaryKey key = rec.getPrimaryKey();
+		boolean hasOwnKey = !key.equals(tupleKey);
+
+		int flags = recordFlags(rec);
+		if (hasOwnKey)
+			flags |= REC_OWN_KEY;
+		out.writeByte(flags);
+		out.writeSignedVarLong(rec.getSrcTxNum());
+		if (hasOwnKey)
+			writeKey(out, key);
+
+		// A deleted record hides its values from getVal(), so take them
+		// from the map
+		Map<String, Constant> fldVals = rec.toFldValMap();
+		Set<String> dirtyFlds = dirtyFldSetOf(rec);
+		out.writeVarInt(fldVals.size() - key.getNumOfFlds());
+		for (Map.Entry<String, Constant> entry : fldVals.entrySet()) {
+			if (key.containsField(entry.getKey()))
+				continue;
+			out.writeName(entry.getKey());
+			writeConstant(out, entry.getValue(), dirtyFlds.contains(entry.getKey()));
+		}
+	}
+
+	/**
+	 * Returns the dirty fields of the record as a set, so that the fields
+	 * can be checked one by one while writing the record.
+	 */
+	static Set<String> dirtyFldSetOf(CachedRecord rec) {
+		List<String> dirtyFlds = rec.getDirtyFldNames();
+		if (dirtyFlds.isEmpty())
+			return Collections.emptySet();
+		return new HashSet<String>(dirtyFlds);
+	}
+
+	private static CachedRecord readRecord(Input in, PrimaryKey tupleKey) {
+		int flags = in.readByte();
+		long srcTxNum = in.readSignedVarLong();
+		PrimaryKey key = (flags & REC_OWN_KEY) != 0 ? readKey(in) : tupleKey;
+
+		CachedRecord rec = new CachedRecord(key);
+		int numOfFlds = in.readVarInt();
+		for (int i = 0; i < numOfFlds; i++) {
+			String fld = in.readName();
+			int tag = in.readByte();
+			rec.addFldVal(fld, readConstant(in, tag));
+			if ((tag & TAG_DIRTY) != 0)
+				rec.markFieldDirty(fld);
+		}
+
+		applyRecordFlags(rec, flags);
+		rec.setSrcTxNum(srcTxNum);
+		return rec;
+	}
+
+	static int recordFlags(CachedRecord rec) {
+		int flags = 0;
+		if (rec.isDirty())
+			flags |= REC_DIRTY;
+		if (rec.isDeleted())
+			flags |= REC_DELETED;
+		if (rec.isNewInserted())
+			flags |= REC_NEW_INSERTED;
+		if (rec.isTemp())
+			flags |= REC_TEMP;
+		return flags;
+	}
+
+	static void applyRecordFlags(CachedRecord rec, int flags) {
+		if ((flags & REC_DELETED) != 0)
+			rec.delete();
+		if ((flags & REC_NEW_INSERTED) != 0)
+			rec.setNewInserted();
+		rec.setDirty((flags & REC_DIRTY) != 0);
+		rec.setTempRecord((flags & REC_TEMP) != 0);
+	}
+
+	static void writeConstant(Output out, Constant val, boolean isDirty) {
+		int dirtyBit = isDirty ? TAG_DIRTY : 0;
+		Type type = val.getType();
+		switch (type.getSqlType()) {
+		case Types.INTEGER:
+			out.writeByte(TAG_INTEGER | dirtyBit);
+			out.writeSignedVarLong((Integer) val.asJavaVal());
+			break;
+		case Types.BIGINT:
+			out.writeByte(TAG_BIGINT | dirtyBit);
+			out.writeSignedVarLong((Long) val.asJavaVal());
+			break;
+		case Types.DOUBLE:
+			out.writeByte(TAG_DOUBLE | dirtyBit);
+			out.writeLong(Double.doubleToLongBits((Double) val.asJavaVal()));
+			break;
+		case Types.VARCHAR:
+			out.writeByte(TAG_VARCHAR | dirtyBit);
+			out.writeVarInt(type.getArgument());
+			out.writeBytes(val.asBytes());
+			break;
+		default:
+			out.writeByte(TAG_OTHER | dirtyBit);
+			out.writeSignedVarLong(type.getSqlType());
+			out.writeVarInt(type.getArgument());
+			out.writeBytes(val.asBytes());
+		}
+	}
+
+	static Constant readConstant(Input in, int tag) {
+		switch (tag & ~TAG_DIRTY) {
+		case TAG_INTEGER:
+			return new IntegerConstant((int) in.readSignedVarLong());
+		case TAG_BIGINT:
+			return new BigIntConstant(in.readSignedVarLong());
+		case TAG_DOUBLE:
+			return new DoubleConstant(Double.longBitsToDouble(in.readLong()));
+		case TAG_VARCHAR:
+			Type varchar = Type.VARCHAR(in.readVarInt());
+			return Constant.newInstance(varchar, in.readBytes());
+		case TAG_OTHER:
+			int sqlType = (int) in.readSignedVarLong();
+			Type type = Type.newInstance(sqlType, in.readVarInt());
+			return Constant.newInstance(type, in.readBytes());
+		default:
+			throw new IllegalArgumentException("unknown constant tag: " + tag);
+		}
+	}
+
+	private static byte[] serialize(Serializable obj) {
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			out.writeObject(obj);
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("fails to serialize " + obj, e);
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException("fails to deserialize the metadata", e);
+		}
+	}
+
+	static class Output {
+		private byte[] buf = new byte[256];
+		private int pos;
+		private Map<String, Integer> names = new HashMap<String, Integer>();
+
+		void writeByte(int b) {
+			ensureCapacity(1);
+			buf[pos++] = (byte) b;
+		}
+
+		void writeVarInt(int v) {
+			writeVarLong(v & 0xFFFFFFFFL);
+		}
+
+		void writeVarLong(long v) {
+			ensureCapacity(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		// Zig-zag encoding keeps small negative numbers short
+		void writeSignedVarLong(long v) {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		void writeLong(long v) {
+			ensureCapacity(8);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				buf[pos++] = (byte) (v >>> shift);
+		}
+
+		void writeBytes(byte[] bytes) {
+			writeVarInt(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+
+		void writeName(String name) {
+			Integer id = names.get(name);
+			if (id != null) {
+				writeVarInt(id);
+			} else {
+				// A new name is written right after its index
+				int newId = names.size();
+				names.put(name, newId);
+				writeVarInt(newId);
+				writeBytes(name.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, pos);
+		}
+
+		private void ensureCapacity(int size) {
+			if (pos + size > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + size));
+		}
+	}
+
+	static class Input {
+		private final byte[] buf;
+		private int pos;
+		private List<String> names = new ArrayList<String>();
+
+		Input(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int readByte() {
+			return buf[pos++] & 0xFF;
+		}
+
+		int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		long readVarLong() {
+			long v = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+		}
+
+		long readSignedVarLong() {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		long readLong() {
+			long v = 0;
+			for (int i = 0; i < 8; i++)
+				v = (v << 8) | (buf[pos++] & 0xFF);
+			return v;
+		}
+
+		byte[] readBytes() {
+			int length = readVarInt();
+			byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+			pos += length;
+			return bytes;
+		}
+
+		String readName() {
+			int id = readVarInt();
+			if (id < names.size())
+				return names.get(id);
+
+			String name = new String(readBytes(), StandardCharsets.UTF_8);
+			names.add(name);
+			return name;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.remote.groupcomm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.remote.groupcomm.TupleSetCodec.Input;
+import org.elasql.remote.groupcomm.TupleSetCodec.Output;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.vanilladb.core.sql.Constant;
+
+/**
+ * A part of a large {@link TupleSet} (e.g. a migration chunk) that is sent as
+ * a message by itself, so that the receiver can process the tuples of a frame
+ * before the rest arrive.<br>
+ * <br>
+ * The tuples in a frame are grouped by their tables and each group is written
+ * column by column, which makes the values of the same field adjacent and
+ * easy to compress. The frame can then be compressed by Deflate. The tuples
+ * in a frame are decoded in the order of the groups, not in the order they
+ * were added.
+ */
+public class TupleSetFrame implements Serializable {
+
+	private static final long serialVersionUID = 20261017001L;
+
+	// The tag of a field that a record does not have
+	private static final int TAG_ABSENT = 0x7F;
+
+	private static class Group {
+		String tableName;
+		String[] keyFields;
+		Set<String> columns = new LinkedHashSet<String>();
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		List<Map<String, Constant>> fldVals = new ArrayList<Map<String, Constant>>();
+		List<Set<String>> dirtyFlds = new ArrayList<Set<String>>();
+
+		Group(PrimaryKey key) {
+			tableName = key.getTableName();
+			keyFields = new String[key.getNumOfFlds()];
+			for (int i = 0; i < keyFields.length; i++)
+				keyFields[i] = key.getField(i);
+		}
+
+		void add(Tuple t) {
+			Map<String, Constant> vals = t.rec.toFldValMap();
+			for (String keyField : keyFields)
+				vals.remove(keyField);
+			columns.addAll(vals.keySet());
+
+			tuples.add(t);
+			fldVals.add(vals);
+			dirtyFlds.add(TupleSetCodec.dirtyFldSetOf(t.rec));
+		}
+	}
+
+	/**
+	 * Splits the tuple set into frames with at most the given number of
+	 * tuples each. The tuple set must not have metadata, and the record of
+	 * each tuple must have the same key as the tuple.
+	 *
+	 * @param tupleSet
+	 *            the tuple set to split
+	 * @param maxTuplesPerFrame
+	 *            the max number of tuples in a frame
+	 * @param compress
+	 *            whether to compress the frames
+	 * @return the frames
+	 */
+	public static List<TupleSetFrame> split(TupleSet tupleSet, int maxTuplesPerFrame, boolean compress) {
+		if (tupleSet.getMetadata() != null)
+			throw new IllegalArgumentException("a tuple set with metadata cannot be split");
+
+		List<Tuple> tuples = tupleSet.getTupleSet();
+		List<TupleSetFrame> frames = new ArrayList<TupleSetFrame>();
+		for (int start = 0; start < tuples.size(); start += maxTuplesPerFrame) {
+			int end = Math.min(start + maxTuplesPerFrame, tuples.size());
+			frames.add(new TupleSetFrame(tuples.subList(start, end), compress));
+		}
+		return frames;
+	}
+
+	private byte[] bytes;
+	private int rawLength;
+	private boolean isCompressed;
+	private int numOfTuples;
+
+	private TupleSetFrame(List<Tuple> tuples, boolean compress) {
+		byte[] raw = encode(tuples);
+		rawLength = raw.length;
+		numOfTuples = tuples.size();
+		isCompressed = compress;
+		bytes = compress ? deflate(raw) : raw;
+	}
+
+	public TupleSet decode() {
+		byte[] raw = isCompressed ? inflate(bytes, rawLength) : bytes;
+		return decode(raw);
+	}
+
+	public int size() {
+		return bytes.length;
+	}
+
+	public int getNumOfTuples() {
+		return numOfTuples;
+	}
+
+	private static byte[] encode(List<Tuple> tuples) {
+		Map<String, Group> groups = new LinkedHashMap<String, Group>();
+		for (Tuple t : tuples) {
+			if (!t.rec.getPrimaryKey().equals(t.key))
+				throw new IllegalArgumentException("the record of " + t.key + " has another key");
+
+			String groupName = groupNameOf(t.key);
+			Group group = groups.get(groupName);
+			if (group == null) {
+				group = new Group(t.key);
+				groups.put(groupName, group);
+			}
+			group.add(t);
+		}
+
+		Output out = new Output();
+		out.writeVarInt(groups.size());
+		for (Group group : groups.values()) {
+			out.writeName(group.tableName);
+			out.writeVarInt(group.keyFields.length);
+			for (String keyField : group.keyFields)
+				out.writeName(keyField);
+			out.writeVarInt(group.columns.size());
+			for (String column : group.columns)
+				out.writeName(column);
+			out.writeVarInt(group.tuples.size());
+
+			// Tuple and record headers
+			for (Tuple t : group.tuples)
+				out.writeSignedVarLong(t.srcTxNum);
+			for (Tuple t : group.tuples)
+				out.writeSignedVarLong(t.destTxNum);
+			for (Tuple t : group.tuples)
+				out.writeByte(TupleSetCodec.recordFlags(t.rec));
+			for (Tuple t : group.tuples)
+				out.writeSignedVarLong(t.rec.getSrcTxNum());
+
+			// Key columns
+			for (int i = 0; i < group.keyFields.length; i++)
+				for (Tuple t : group.tuples)
+					TupleSetCodec.writeConstant(out, t.key.getVal(i), false);
+
+			// Non-key columns
+			for (String column : group.columns) {
+				for (int row = 0; row < group.tuples.size(); row++) {
+					Constant val = group.fldVals.get(row).get(column);
+					if (val == null)
+						out.writeByte(TAG_ABSENT);
+					else
+						TupleSetCodec.writeConstant(out, val, group.dirtyFlds.get(row).contains(column));
+				}
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	private static TupleSet decode(byte[] raw) {
+		Input in = new Input(raw);
+		TupleSet tupleSet = new TupleSet(-1);
+		List<Tuple> tuples = tupleSet.getTupleSet();
+
+		int numOfGroups = in.readVarInt();
+		for (int g = 0; g < numOfGroups; g++) {
+			String tableName = in.readName();
+			String[] keyFields = new String[in.readVarInt()];
+			for (int i = 0; i < keyFields.length; i++)
+				keyFields[i] = in.readName();
+			String[] columns = new String[in.readVarInt()];
+			for (int i = 0; i < columns.length; i++)
+				columns[i] = in.readName();
+			int numOfRows = in.readVarInt();
+
+			long[] srcTxNums = new long[numOfRows];
+			long[] destTxNums = new long[numOfRows];
+			int[] recFlags = new int[numOfRows];
+			long[] recSrcTxNums = new long[numOfRows];
+			for (int row = 0; row < numOfRows; row++)
+				srcTxNums[row] = in.readSignedVarLong();
+			for (int row = 0; row < numOfRows; row++)
+				destTxNums[row] = in.readSignedVarLong();
+			for (int row = 0; row < numOfRows; row++)
+				recFlags[row] = in.readByte();
+			for (int row = 0; row < numOfRows; row++)
+				recSrcTxNums[row] = in.readSignedVarLong();
+
+			// Rebuild the keys column by column
+			PrimaryKeyBuilder[] builders = new PrimaryKeyBuilder[numOfRows];
+			for (int row = 0; row < numOfRows; row++)
+				builders[row] = new PrimaryKeyBuilder(tableName);
+			for (String keyField : keyFields)
+				for (int row = 0; row < numOfRows; row++)
+					builders[row].addFldVal(keyField, TupleSetCodec.readConstant(in, in.readByte()));
+
+			CachedRecord[] recs = new CachedRecord[numOfRows];
+			for (int row = 0; row < numOfRows; row++)
+				recs[row] = new CachedRecord(builders[row].build());
+			for (String column : columns) {
+				for (int row = 0; row < numOfRows; row++) {
+					int tag = in.readByte();
+					if (tag == TAG_ABSENT)
+						continue;
+					recs[row].addFldVal(column, TupleSetCodec.readConstant(in, tag));
+					if ((tag & TupleSetCodec.TAG_DIRTY) != 0)
+						recs[row].markFieldDirty(column);
+				}
+			}
+
+			for (int row = 0; row < numOfRows; row++) {
+				TupleSetCodec.applyRecordFlags(recs[row], recFlags[row]);
+				recs[row].setSrcTxNum(recSrcTxNums[row]);
+				tuples.add(new Tuple(recs[row].getPrimaryKey(), srcTxNums[row], destTxNums[row], recs[row]));
+			}
+		}
+
+		return tupleSet;
+	}
+
+	private static String groupNameOf(PrimaryKey key) {
+		StringBuilder sb = new StringBuilder(key.getTableName());
+		for (int i = 0; i < key.getNumOfFlds(); i++)
+			sb.append(',').append(key.getField(i));
+		return sb.toString();
+	}
+
+	private static byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+
+			// Incompressible data can grow slightly
+			byte[] buf = new byte[raw.length + raw.length / 100 + 64];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				length += deflater.deflate(buf, length, buf.length - length);
+			}
+			return Arrays.copyOf(buf, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] compressed, int rawLength) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] raw = new byte[rawLength];
+			int length = 0;
+			while (length < rawLength && !inflater.finished()) {
+				int inflated = inflater.inflate(raw, length, rawLength - length);
+				if (inflated == 0 && inflater.needsInput())
+					break;
+				length += inflated;
+			}
+			if (length != rawLength)
+				throw new RuntimeException("a frame is truncated");
+			return raw;
+		} catch (DataFormatException e) {
+			throw new RuntimeException("fails to decompress a frame", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
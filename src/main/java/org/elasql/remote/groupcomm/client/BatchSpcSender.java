@@ -16,93 +16,205 @@
 package org.elasql.remote.groupcomm.client;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.elasql.remote.groupcomm.StoredProcedureCall;
 import org.elasql.remote.groupcomm.server.ConnectionMgr;
 import org.elasql.util.ElasqlProperties;
+import org.elasql.util.Histogram;
 import org.vanilladb.comm.client.VanillaCommClient;
 import org.vanilladb.comm.view.ProcessType;
 
+/**
+ * Sends the stored procedure calls of the clients to the sequencer in
+ * batches. A batch is sent when it reaches the target size or when its
+ * oldest call has waited for the max waiting time.<br>
+ * <br>
+ * If {@code TARGET_LATENCY} is set, the batching is adaptive: the target size
+ * follows the observed arrival rate of the calls, so that a batch takes about
+ * the target latency to fill up. A light load gets small batches that are
+ * sent almost immediately, and a heavy load gets large batches up to
+ * {@code COMM_BATCH_SIZE}.
+ */
 class BatchSpcSender implements Runnable {
 	private static Logger logger = Logger.getLogger(BatchSpcSender.class.getName());
 
 	private final static int COMM_BATCH_SIZE;
 	private final static long MAX_WAITING_TIME; // in ms
+	private final static long TARGET_LATENCY; // in us, 0 disables adaptive batching
 
 	static {
-		COMM_BATCH_SIZE = ElasqlProperties.getLoader()
-				.getPropertyAsInteger(BatchSpcSender.class.getName() + ".BATCH_SIZE", 1);
+		COMM_BATCH_SIZE = loadCommBatchSize();
 		MAX_WAITING_TIME = ElasqlProperties.getLoader()
 				.getPropertyAsInteger(BatchSpcSender.class.getName() + ".MAX_WAITING_TIME", 1000);
+		TARGET_LATENCY = ElasqlProperties.getLoader()
+				.getPropertyAsLong(BatchSpcSender.class.getName() + ".TARGET_LATENCY", 0);
 	}
 
-	private AtomicInteger numOfQueuedSpcs = new AtomicInteger(0);
-	private Queue<StoredProcedureCall> spcQueue = new ConcurrentLinkedQueue<StoredProcedureCall>();
+	// The weight of the newest observation of the arrival rate
+	private static final double RATE_SMOOTHING = 0.2;
+	private static final int BATCH_SIZE_BUCKETS = 16;
+	private static final int DELAY_BUCKETS = 24;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition batchReady = lock.newCondition();
+	// Guarded by lock
+	private List<StoredProcedureCall> spcQueue = new ArrayList<StoredProcedureCall>();
+	private long[] arrivalTimes = new long[16];
+	private int targetBatchSize;
+
+	private final int maxBatchSize;
+	private final long maxWaitNanos;
+	private final long targetLatencyNanos; // 0 disables adaptive batching
+
 	private VanillaCommClient commClient;
 	private long lastSendingTime;
+	private double arrivalRate; // calls per nanosecond
 	private int nodeId;
 
+	private final Histogram batchSizes = new Histogram(BATCH_SIZE_BUCKETS);
+	private final Histogram queueingDelays = new Histogram(DELAY_BUCKETS); // in us
+
 	public BatchSpcSender(int id, VanillaCommClient client) {
+		this(id, client, COMM_BATCH_SIZE, TimeUnit.MILLISECONDS.toNanos(MAX_WAITING_TIME),
+				TimeUnit.MICROSECONDS.toNanos(TARGET_LATENCY));
+	}
+
+	BatchSpcSender(int id, VanillaCommClient client, int maxBatchSize, long maxWaitNanos,
+			long targetLatencyNanos) {
 		commClient = client;
-		lastSendingTime = System.currentTimeMillis();
+		lastSendingTime = System.nanoTime();
 		nodeId = id;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = maxWaitNanos;
+		this.targetLatencyNanos = targetLatencyNanos;
+		targetBatchSize = targetLatencyNanos > 0? 1 : maxBatchSize;
+	}
+
+	static int loadCommBatchSize() {
+		// BATCH_SIZE is the old name of COMM_BATCH_SIZE
+		return ElasqlProperties.getLoader().getPropertyAsInteger(
+				BatchSpcSender.class.getName() + ".COMM_BATCH_SIZE",
+				ElasqlProperties.getLoader().getPropertyAsInteger(
+						BatchSpcSender.class.getName() + ".BATCH_SIZE", 1));
 	}
 
 	@Override
 	public void run() {
 		// periodically send batch of requests
-		if (logger.isLoggable(Level.INFO))
-			logger.info("start batching-request worker thread (batch size = " + COMM_BATCH_SIZE + ")"); 
+		if (logger.isLoggable(Level.INFO)) {
+			if (targetLatencyNanos > 0)
+				logger.info("start batching-request worker thread (max batch size = " + maxBatchSize
+						+ ", target latency = " + TimeUnit.NANOSECONDS.toMicros(targetLatencyNanos) + " us)");
+			else
+				logger.info("start batching-request worker thread (batch size = " + maxBatchSize + ")");
+		}
 
 		while (true)
 			sendBatchRequestToDb();
 	}
 
 	public void callStoredProc(int connId, int pid, Object... pars) {
-		StoredProcedureCall spc = new StoredProcedureCall(nodeId, connId, pid, pars);
-		spcQueue.add(spc);
-		int size = numOfQueuedSpcs.incrementAndGet();
-		
-		if (size >= COMM_BATCH_SIZE) {
-			synchronized (this) {
-				notifyAll();
-			}
+		enqueue(new StoredProcedureCall(nodeId, connId, pid, pars));
+	}
+
+	void enqueue(StoredProcedureCall spc) {
+		lock.lock();
+		try {
+			int size = spcQueue.size();
+			if (size == arrivalTimes.length)
+				arrivalTimes = Arrays.copyOf(arrivalTimes, size * 2);
+			arrivalTimes[size] = System.nanoTime();
+			spcQueue.add(spc);
+
+			// Wake up the sender for the first call (to start its deadline)
+			// and for a full batch
+			if (size == 0 || size + 1 >= targetBatchSize)
+				batchReady.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getTargetBatchSize() {
+		lock.lock();
+		try {
+			return targetBatchSize;
+		} finally {
+			lock.unlock();
 		}
 	}
-	
-	private void sendBatchRequestToDb() {
-		// Waiting for the queue reaching the threshold
-		int size = numOfQueuedSpcs.get();
-		long currentTime = System.currentTimeMillis();
+
+	/**
+	 * Returns the histogram of the numbers of calls in the sent batches.
+	 */
+	public Histogram getBatchSizeHistogram() {
+		return batchSizes;
+	}
+
+	/**
+	 * Returns the histogram of the time in microseconds that the calls
+	 * waited before being sent.
+	 */
+	public Histogram getQueueingDelayHistogram() {
+		return queueingDelays;
+	}
+
+	void sendBatchRequestToDb() {
+		List<StoredProcedureCall> batchSpc;
+		long currentTime;
+
+		lock.lock();
 		try {
-			while (size < COMM_BATCH_SIZE && (currentTime - lastSendingTime < MAX_WAITING_TIME || size < 1)) {
-				
-				synchronized (this) {
-					wait(100);
-				}
-				
-				size = numOfQueuedSpcs.get();
-				currentTime = System.currentTimeMillis();
+			while (spcQueue.isEmpty())
+				batchReady.await();
+
+			// Wait for the target size until the deadline of the oldest call
+			long deadline = arrivalTimes[0] + (targetLatencyNanos > 0? targetLatencyNanos : maxWaitNanos);
+			currentTime = System.nanoTime();
+			while (spcQueue.size() < targetBatchSize && currentTime < deadline) {
+				batchReady.awaitNanos(deadline - currentTime);
+				currentTime = System.nanoTime();
 			}
-			
-			lastSendingTime = currentTime;
+
+			batchSpc = spcQueue;
+			spcQueue = new ArrayList<StoredProcedureCall>(batchSpc.size() * 2);
+			for (int i = 0; i < batchSpc.size(); i++)
+				queueingDelays.record(TimeUnit.NANOSECONDS.toMicros(currentTime - arrivalTimes[i]));
+
+			if (targetLatencyNanos > 0)
+				adjustTargetBatchSize(batchSpc.size(), currentTime);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+			return;
+		} finally {
+			lock.unlock();
 		}
 
 		// Send a batch of requests
-		List<StoredProcedureCall> batchSpc = new ArrayList<StoredProcedureCall>(size * 2);
-		while (spcQueue.peek() != null) {
-			StoredProcedureCall spc = spcQueue.poll();
-			batchSpc.add(spc);
-		}
-		numOfQueuedSpcs.addAndGet(-batchSpc.size());
-		commClient.sendP2pMessage(ProcessType.SERVER, ConnectionMgr.SEQUENCER_ID, batchSpc.toArray(new StoredProcedureCall[0]));
+		batchSizes.record(batchSpc.size());
+		send(batchSpc.toArray(new StoredProcedureCall[0]));
+	}
+
+	void send(StoredProcedureCall[] batch) {
+		commClient.sendP2pMessage(ProcessType.SERVER, ConnectionMgr.SEQUENCER_ID, batch);
+	}
+
+	private void adjustTargetBatchSize(int lastBatchSize, long currentTime) {
+		long interval = Math.max(currentTime - lastSendingTime, 1);
+		lastSendingTime = currentTime;
+
+		// The calls in the last batch arrived during the interval
+		double observedRate = (double) lastBatchSize / interval;
+		arrivalRate = RATE_SMOOTHING * observedRate + (1 - RATE_SMOOTHING) * arrivalRate;
+
+		long size = Math.round(arrivalRate * targetLatencyNanos);
+		targetBatchSize = (int) Math.max(1, Math.min(size, maxBatchSize));
 	}
 }
@@ -18,21 +18,51 @@ package org.elasql.remote.groupcomm.client;
 import java.io.Serializable;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.elasql.remote.groupcomm.ClientResponse;
 import org.elasql.remote.groupcomm.ElasqlSpResultSet;
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.util.ElasqlProperties;
+import org.elasql.util.PeriodicalJob;
 import org.vanilladb.comm.client.VanillaCommClient;
 import org.vanilladb.comm.client.VanillaCommClientListener;
 import org.vanilladb.comm.view.ProcessType;
 
 public class GroupCommConnection implements VanillaCommClientListener {
+	private static Logger logger = Logger.getLogger(GroupCommConnection.class.getName());
+
+	/**
+	 * The connection id of the calls made by
+	 * {@link #callStoredProcAsync(int, Object...)}.
+	 */
+	public static final int ASYNC_CONNECTION_ID = -1;
+	
+	/**
+	 * The time (in milliseconds) that a call made by
+	 * {@link #callStoredProcAsync(int, Object...)} waits for its response
+	 * before its future fails with a {@link TimeoutException}. 0 means no
+	 * timeout.
+	 */
+	public static final long ASYNC_CALL_TIMEOUT;
+	
+	static {
+		ASYNC_CALL_TIMEOUT = ElasqlProperties.getLoader().getPropertyAsLong(
+				GroupCommConnection.class.getName() + ".ASYNC_CALL_TIMEOUT", 60000);
+	}
 
 	// RTE id -> A blocking queue of responses from servers
 	private Map<Integer, BlockingQueue<ClientResponse>> rteToRespQueue = new ConcurrentHashMap<Integer, BlockingQueue<ClientResponse>>();
 	// RTE id -> The transaction number of the received response last time
 	private Map<Integer, Long> rteToLastTxNum = new ConcurrentHashMap<Integer, Long>();
+	private PendingCallTable pendingCalls = new PendingCallTable(ASYNC_CALL_TIMEOUT * 1000_000);
+	private AtomicLong nextRequestId = new AtomicLong(1);
 	
 	private VanillaCommClient commClient;
 	private BatchSpcSender batchSender;
@@ -52,6 +82,22 @@ public class GroupCommConnection implements VanillaCommClientListener {
 		// Start the batch sender
 		batchSender = new BatchSpcSender(id, commClient);
 		new Thread(null, batchSender, "Batch-Spc-Sender").start();
+		
+		// Fail the asynchronous calls whose responses never come
+		if (ASYNC_CALL_TIMEOUT > 0) {
+			PeriodicalJob expirer = new PeriodicalJob(Math.max(ASYNC_CALL_TIMEOUT / 10, 1), Long.MAX_VALUE,
+					new Runnable() {
+						@Override
+						public void run() {
+							int count = pendingCalls.expire(System.nanoTime());
+							if (count > 0 && logger.isLoggable(Level.WARNING))
+								logger.warning(count + " asynchronous calls time out");
+						}
+					});
+			expirer.setDaemon(true);
+			expirer.setName("Async-Call-Expirer");
+			expirer.start();
+		}
 	}
 
 	public ElasqlSpResultSet callStoredProc(int connId, int pid, Object... pars) {
@@ -72,11 +118,13 @@ public class GroupCommConnection implements VanillaCommClientListener {
 			if (lastTxNumObj != null)
 				lastTxNum = lastTxNumObj;
 
-			while (lastTxNum >= cr.getTxNum())
+			// A rejected call has only one response, which is never stale
+			while (!cr.isRejected() && lastTxNum >= cr.getTxNum())
 				cr = respQueue.take();
 
 			// Record the tx number of the response
-			rteToLastTxNum.put(connId, cr.getTxNum());
+			if (!cr.isRejected())
+				rteToLastTxNum.put(connId, cr.getTxNum());
 			
 			return cr.getResultSet();
 		} catch (InterruptedException e) {
@@ -85,6 +133,40 @@ public class GroupCommConnection implements VanillaCommClientListener {
 		}
 	}
 
+	/**
+	 * Calls a stored procedure without waiting for its response. Any number
+	 * of calls can be outstanding at the same time. Each call carries a
+	 * request id, and the response is matched to the call by it, so the
+	 * responses may arrive in any order.
+	 * 
+	 * @param pid
+	 *            the id of the stored procedure
+	 * @param pars
+	 *            the parameters of the stored procedure
+	 * @return a future completed with the result set when the first response
+	 *         of the call arrives, or failed with a {@link TimeoutException}
+	 *         if no response arrives in {@link #ASYNC_CALL_TIMEOUT}
+	 */
+	public CompletableFuture<ElasqlSpResultSet> callStoredProcAsync(int pid, Object... pars) {
+		long requestId = nextRequestId.getAndIncrement();
+		
+		// Register before sending, since the response may come back at once
+		CompletableFuture<ElasqlSpResultSet> future = pendingCalls.register(requestId, System.nanoTime());
+		
+		StoredProcedureCall spc = new StoredProcedureCall(myId, ASYNC_CONNECTION_ID, pid, pars);
+		spc.setRequestId(requestId);
+		batchSender.enqueue(spc);
+		
+		return future;
+	}
+	
+	/**
+	 * Returns the number of asynchronous calls still waiting for responses.
+	 */
+	public int getNumOfPendingAsyncCalls() {
+		return pendingCalls.size();
+	}
+
 	@Override
 	public void onReceiveP2pMessage(ProcessType senderType, int senderId, Serializable message) {
 		if (senderType == ProcessType.SERVER) {
@@ -92,7 +174,12 @@ public class GroupCommConnection implements VanillaCommClientListener {
 			
 			// Check if this response is for this node
 			if (c.getClientId() == myId) {
-				rteToRespQueue.get(c.getRteId()).add(c);
+				if (c.getRequestId() > 0) {
+					// More than one server may respond to a call. Only the
+					// first one completes the future.
+					pendingCalls.complete(c.getRequestId(), c.getResultSet());
+				} else
+					rteToRespQueue.get(c.getRteId()).add(c);
 			} else {
 				throw new RuntimeException("Something wrong");
 			}
@@ -105,6 +192,17 @@ public class GroupCommConnection implements VanillaCommClientListener {
 		commClient.sendP2pMessage(ProcessType.CLIENT, clientId, message);
 	}
 	
+	/**
+	 * Returns the histograms of the sizes of the sent request batches and the
+	 * time (in microseconds) that the requests waited to be sent.
+	 * 
+	 * @return the description of the histograms
+	 */
+	public String getBatchingStatistics() {
+		return "batch sizes: " + batchSender.getBatchSizeHistogram() +
+				", queueing delays (us): " + batchSender.getQueueingDelayHistogram();
+	}
+	
 	public int getServerCount() {
 		return VanillaCommClient.getServerCount();
 	}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.remote.groupcomm.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import org.elasql.remote.groupcomm.ElasqlSpResultSet;
+
+/**
+ * Keeps the futures of the asynchronous calls waiting for their responses.
+ * A response may never come (e.g. when the sequencer fails), so a call that
+ * has waited longer than the timeout is
+ * completed exceptionally with a {@link TimeoutException} and forgotten by
+ * {@link #expire(long)}. Otherwise, its future would stay in the table
+ * forever.
+ */
+class PendingCallTable {
+	
+	private static class PendingCall {
+		final CompletableFuture<ElasqlSpResultSet> future = new CompletableFuture<ElasqlSpResultSet>();
+		final long registerTime;
+		
+		PendingCall(long registerTime) {
+			this.registerTime = registerTime;
+		}
+	}
+	
+	// Request id -> The call waiting for its response
+	private final Map<Long, PendingCall> calls = new ConcurrentHashMap<Long, PendingCall>();
+	private final long timeoutNanos;
+	
+	/**
+	 * Creates a table of pending calls.
+	 * 
+	 * @param timeoutNanos
+	 *            the time that a call waits for its response, in
+	 *            nanoseconds. 0 means that a call never expires.
+	 */
+	PendingCallTable(long timeoutNanos) {
+		this.timeoutNanos = timeoutNanos;
+	}
+	
+	/**
+	 * Registers a call before sending it.
+	 * 
+	 * @param requestId
+	 *            the request id of the call
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the future completed with the response of the call
+	 */
+	CompletableFuture<ElasqlSpResultSet> register(long requestId, long now) {
+		PendingCall call = new PendingCall(now);
+		calls.put(requestId, call);
+		return call.future;
+	}
+	
+	/**
+	 * Completes the call with its response. Only the first response of a
+	 * call completes it, and a response arriving after the call expires is
+	 * ignored.
+	 * 
+	 * @return true if the response completes a pending call
+	 */
+	boolean complete(long requestId, ElasqlSpResultSet resultSet) {
+		PendingCall call = calls.remove(requestId);
+		if (call == null)
+			return false;
+		return call.future.complete(resultSet);
+	}
+	
+	/**
+	 * Fails the calls that have waited longer than the timeout.
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the number of the expired calls
+	 */
+	int expire(long now) {
+		if (timeoutNanos <= 0)
+			return 0;
+		
+		int count = 0;
+		Iterator<Map.Entry<Long, PendingCall>> iter = calls.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, PendingCall> entry = iter.next();
+			PendingCall call = entry.getValue();
+			if (now - call.registerTime < timeoutNanos)
+				continue;
+			
+			// The response may be completing the call at the same time
+			if (calls.remove(entry.getKey(), call)) {
+				call.future.completeExceptionally(new TimeoutException(
+						"no response for request " + entry.getKey() + " in " + timeoutNanos / 1000_000 + " ms"));
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	int size() {
+		return calls.size();
+	}
+}
@@ -17,20 +17,26 @@ package org.elasql.remote.groupcomm.server;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.elasql.migration.MigrationRangeFinishMessage;
+import org.elasql.migration.MigrationSettings;
 import org.elasql.migration.MigrationSystemController;
 import org.elasql.remote.groupcomm.ClientResponse;
+import org.elasql.remote.groupcomm.EncodedTupleSet;
 import org.elasql.remote.groupcomm.StoredProcedureCall;
 import org.elasql.remote.groupcomm.Tuple;
 import org.elasql.remote.groupcomm.TupleSet;
+import org.elasql.remote.groupcomm.TupleSetFrame;
+import org.elasql.schedule.tpart.AdaptiveBatchSizer;
 import org.elasql.server.Elasql;
 import org.elasql.server.Elasql.ServiceType;
+import org.elasql.util.AdmissionQueue;
+import org.elasql.util.ElasqlProperties;
 import org.vanilladb.comm.server.VanillaCommServer;
 import org.vanilladb.comm.server.VanillaCommServerListener;
 import org.vanilladb.comm.view.ProcessType;
@@ -40,16 +46,88 @@ public class ConnectionMgr implements VanillaCommServerListener {
 	private static Logger logger = Logger.getLogger(ConnectionMgr.class.getName());
 	
 	public static final int SEQUENCER_ID = VanillaCommServer.getServerCount() - 1;
+	
+	/**
+	 * The max number of client request batches waiting for being sent by the
+	 * sequencer as total-ordered messages. 0 means unbounded.
+	 */
+	public static final int TOM_SEND_QUEUE_CAPACITY;
+	
+	/**
+	 * What to do with a client request batch when the TOM send queue is full.
+	 * <br>
+	 * 0 - block the thread receiving client requests<br>
+	 * 1 - reject the batch. Each call in it gets a rejection response (see
+	 * {@link ClientResponse#newRejection(StoredProcedureCall, String)}).
+	 */
+	public static final int TOM_SEND_QUEUE_POLICY;
+	
+	/**
+	 * Whether to send tuple sets in the compact binary form of
+	 * {@link org.elasql.remote.groupcomm.TupleSetCodec} instead of Java
+	 * serialization. A node accepts both forms regardless of this setting.
+	 */
+	public static final boolean ENABLE_TUPLE_SET_CODEC;
+	
+	/**
+	 * The max number of client requests that the sequencer merges into a
+	 * single total-ordered message. The pending client request batches are
+	 * merged until this number is reached. 0 disables merging.
+	 */
+	public static final int TOM_BATCH_MAX_REQUESTS;
+	
+	/**
+	 * The max time in microseconds that the sequencer waits for more client
+	 * requests to merge, after taking the first batch. 0 means it only
+	 * merges the batches that are already waiting.
+	 */
+	public static final long TOM_BATCH_MAX_DELAY_US;
+	
+	/**
+	 * The max time in microseconds that a pushed tuple set may wait to be
+	 * merged with the ones pushed to the same node by other transactions.
+	 * 0 disables merging.
+	 */
+	public static final long TUPLE_SET_MAX_DELAY_US;
+	
+	/**
+	 * The number of tuples that makes a merged tuple set be sent without
+	 * waiting for the max delay.
+	 */
+	public static final int TUPLE_SET_MAX_TUPLES;
+	
+	static {
+		TOM_SEND_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				ConnectionMgr.class.getName() + ".TOM_SEND_QUEUE_CAPACITY", AdmissionQueue.UNBOUNDED);
+		TOM_SEND_QUEUE_POLICY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				ConnectionMgr.class.getName() + ".TOM_SEND_QUEUE_POLICY", AdmissionQueue.BLOCK);
+		ENABLE_TUPLE_SET_CODEC = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				ConnectionMgr.class.getName() + ".ENABLE_TUPLE_SET_CODEC", false);
+		TOM_BATCH_MAX_REQUESTS = ElasqlProperties.getLoader().getPropertyAsInteger(
+				ConnectionMgr.class.getName() + ".TOM_BATCH_MAX_REQUESTS", 0);
+		TOM_BATCH_MAX_DELAY_US = ElasqlProperties.getLoader().getPropertyAsLong(
+				ConnectionMgr.class.getName() + ".TOM_BATCH_MAX_DELAY_US", 0);
+		TUPLE_SET_MAX_DELAY_US = ElasqlProperties.getLoader().getPropertyAsLong(
+				ConnectionMgr.class.getName() + ".TUPLE_SET_MAX_DELAY_US", 0);
+		TUPLE_SET_MAX_TUPLES = ElasqlProperties.getLoader().getPropertyAsInteger(
+				ConnectionMgr.class.getName() + ".TUPLE_SET_MAX_TUPLES", 1000);
+	}
 
 	private VanillaCommServer commServer;
 	private boolean sequencerMode;
-	private BlockingQueue<List<Serializable>> tomSendQueue = new LinkedBlockingQueue<List<Serializable>>();
+	private AdmissionQueue<List<Serializable>> tomSendQueue = new AdmissionQueue<List<Serializable>>(
+			TOM_SEND_QUEUE_CAPACITY, TOM_SEND_QUEUE_POLICY);
 	private boolean areAllServersReady = false;
+	// One for each server, or null if merging is disabled
+	private TupleSetAggregator[] aggregators;
 
 	public ConnectionMgr(int id) {
 		sequencerMode = Elasql.serverId() == SEQUENCER_ID;
 		commServer = new VanillaCommServer(id, this);
 		new Thread(null, commServer, "VanillaComm-Server").start();
+		
+		if (TUPLE_SET_MAX_DELAY_US > 0)
+			createTupleSetAggregators();
 
 		// Only the sequencer needs to wait for all servers ready
 		if (sequencerMode) {
@@ -62,13 +140,85 @@ public class ConnectionMgr implements VanillaCommServerListener {
 		commServer.sendP2pMessage(ProcessType.CLIENT, clientId,
 				new ClientResponse(clientId, rteId, txNum, rs));
 	}
+
+	public void sendClientResponse(int clientId, int rteId, long txNum, long requestId, SpResultSet rs) {
+		commServer.sendP2pMessage(ProcessType.CLIENT, clientId,
+				new ClientResponse(clientId, rteId, txNum, requestId, rs));
+	}
 	
 	public void sendStoredProcedureCall(boolean fromAppiaThread, int pid, Object[] pars) {
 		commServer.sendTotalOrderMessage(new StoredProcedureCall(-1, -1, pid, pars));
 	}
 
 	public void pushTupleSet(int nodeId, TupleSet reading) {
-		commServer.sendP2pMessage(ProcessType.SERVER, nodeId, reading);
+		if (aggregators == null)
+			sendTupleSet(nodeId, reading);
+		else if (reading.getMetadata() == null &&
+				reading.sinkId() != MigrationSystemController.MSG_RANGE_FINISH)
+			aggregators[nodeId].add(reading);
+		else
+			aggregators[nodeId].sendAlone(reading);
+	}
+	
+	/**
+	 * Pushes a migration chunk. The chunk is split into frames if
+	 * {@link MigrationSettings#CHUNK_FRAME_SIZE_IN_COUNT} is set. The frames
+	 * go through the same tuple set aggregator as the other pushes to the
+	 * node, so they are sent after the tuple sets pushed before them.
+	 * 
+	 * @param nodeId the id of the destination node
+	 * @param chunk the records to be migrated
+	 */
+	public void pushMigrationChunk(int nodeId, TupleSet chunk) {
+		if (MigrationSettings.CHUNK_FRAME_SIZE_IN_COUNT <= 0) {
+			pushTupleSet(nodeId, chunk);
+			return;
+		}
+		
+		for (TupleSetFrame frame : TupleSetFrame.split(chunk,
+				MigrationSettings.CHUNK_FRAME_SIZE_IN_COUNT, MigrationSettings.COMPRESS_CHUNK_FRAMES)) {
+			if (aggregators == null)
+				sendFrame(nodeId, frame);
+			else
+				aggregators[nodeId].sendFrame(frame);
+		}
+	}
+	
+	/**
+	 * Sends the tuple sets pushed by the given transaction at once, instead
+	 * of waiting to merge them with the other pushes. It should be called
+	 * before the transaction starts waiting for remote records, since the
+	 * other nodes may be waiting for its pushes in turn.
+	 * 
+	 * @param txNum the transaction going to wait for remote records
+	 */
+	public void flushTupleSetsOf(long txNum) {
+		if (aggregators == null)
+			return;
+		
+		for (TupleSetAggregator aggregator : aggregators)
+			aggregator.flushIfPushedBy(txNum);
+	}
+	
+	void sendFrame(int nodeId, TupleSetFrame frame) {
+		commServer.sendP2pMessage(ProcessType.SERVER, nodeId, frame);
+	}
+	
+	void sendTupleSet(int nodeId, TupleSet reading) {
+		if (ENABLE_TUPLE_SET_CODEC)
+			commServer.sendP2pMessage(ProcessType.SERVER, nodeId, new EncodedTupleSet(reading));
+		else
+			commServer.sendP2pMessage(ProcessType.SERVER, nodeId, reading);
+	}
+
+	/**
+	 * Returns the occupancy of the TOM send queue, including the number of
+	 * shed client request batches.
+	 * 
+	 * @return the description of the occupancy
+	 */
+	public String getTomSendQueueStatistics() {
+		return tomSendQueue.toString();
 	}
 
 	@Override
@@ -97,24 +247,41 @@ public class ConnectionMgr implements VanillaCommServerListener {
 			for (StoredProcedureCall spc : spcs)
 				tomRequest.add(spc);
 			try {
-				tomSendQueue.put(tomRequest);
+				if (!tomSendQueue.admit(tomRequest)) {
+					// Log only the first shedding to avoid flooding the log
+					if (tomSendQueue.getShedCount() == 1 && logger.isLoggable(Level.WARNING))
+						logger.warning("the TOM send queue is full, start shedding client requests");
+					else if (logger.isLoggable(Level.FINE))
+						logger.fine("shed " + spcs.length + " client requests (" + tomSendQueue + ")");
+					
+					// Tell the clients, or they would wait for the responses forever
+					for (StoredProcedureCall spc : spcs)
+						commServer.sendP2pMessage(ProcessType.CLIENT, spc.getClientId(),
+								ClientResponse.newRejection(spc, "the sequencer is overloaded"));
+				}
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
 		} else if (message.getClass().equals(TupleSet.class)) {
-			TupleSet ts = (TupleSet) message;
-			
-			if (ts.sinkId() == MigrationSystemController.MSG_RANGE_FINISH) {
-				Elasql.migraSysControl().onReceiveMigrationRangeFinishMsg(
-						(MigrationRangeFinishMessage) ts.getMetadata());
-				return;
-			}
-			
-			for (Tuple t : ts.getTupleSet())
-				Elasql.remoteRecReceiver().cacheRemoteRecord(t);
+			onReceiveTupleSet((TupleSet) message);
+		} else if (message.getClass().equals(EncodedTupleSet.class)) {
+			onReceiveTupleSet(((EncodedTupleSet) message).decode());
+		} else if (message.getClass().equals(TupleSetFrame.class)) {
+			onReceiveTupleSet(((TupleSetFrame) message).decode());
 		} else
 			throw new IllegalArgumentException();
 	}
+	
+	private void onReceiveTupleSet(TupleSet ts) {
+		if (ts.sinkId() == MigrationSystemController.MSG_RANGE_FINISH) {
+			Elasql.migraSysControl().onReceiveMigrationRangeFinishMsg(
+					(MigrationRangeFinishMessage) ts.getMetadata());
+			return;
+		}
+		
+		for (Tuple t : ts.getTupleSet())
+			Elasql.remoteRecReceiver().cacheRemoteRecord(t);
+	}
 
 	@Override
 	public void onReceiveTotalOrderMessage(long serialNumber, Serializable message) {
@@ -128,13 +295,42 @@ public class ConnectionMgr implements VanillaCommServerListener {
 	}
 	
 	private void createTomSender() {
+		final AdaptiveBatchSizer batchSizer;
+		if (AdaptiveBatchSizer.ENABLED && (Elasql.SERVICE_TYPE == ServiceType.TPART
+				|| Elasql.SERVICE_TYPE == ServiceType.HERMES))
+			batchSizer = new AdaptiveBatchSizer();
+		else
+			batchSizer = null;
+		
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
 				while (true) {
 					try {
-						List<Serializable> messages = tomSendQueue.take();
-						commServer.sendTotalOrderMessages(messages);
+						List<Serializable> messages;
+						long waitNanos = (batchSizer == null) ? -1 : batchSizer.nanosToDeadline(System.nanoTime());
+						if (waitNanos < 0) {
+							messages = tomSendQueue.take();
+						} else {
+							// Wake up to cut the pending batch if no request comes
+							messages = tomSendQueue.poll(waitNanos, TimeUnit.NANOSECONDS);
+							if (messages == null)
+								messages = Collections.emptyList();
+						}
+						if (TOM_BATCH_MAX_REQUESTS > 0 && !messages.isEmpty())
+							messages = mergeTomRequests(messages);
+						if (batchSizer != null) {
+							// Decided here so that all the schedulers see
+							// the same hint after the same requests
+							StoredProcedureCall hint = batchSizer.nextHint(messages.size(),
+									tomSendQueue.size(), System.nanoTime());
+							if (hint != null) {
+								messages = new ArrayList<Serializable>(messages);
+								messages.add(hint);
+							}
+						}
+						if (!messages.isEmpty())
+							commServer.sendTotalOrderMessages(messages);
 					} catch (InterruptedException e) {
 						e.printStackTrace();
 					}
@@ -144,6 +340,42 @@ public class ConnectionMgr implements VanillaCommServerListener {
 		}).start();;
 	}
 	
+	private void createTupleSetAggregators() {
+		aggregators = new TupleSetAggregator[VanillaCommServer.getServerCount()];
+		for (int nodeId = 0; nodeId < aggregators.length; nodeId++) {
+			aggregators[nodeId] = new TupleSetAggregator(this, nodeId,
+					TUPLE_SET_MAX_TUPLES, TUPLE_SET_MAX_DELAY_US);
+			new Thread(null, aggregators[nodeId], "TupleSet-Aggregator-" + nodeId).start();
+		}
+	}
+	
+	/**
+	 * Merges the pending client request batches after the given one into a
+	 * single total-ordered message, until there are TOM_BATCH_MAX_REQUESTS
+	 * requests or TOM_BATCH_MAX_DELAY_US has passed. The order of the
+	 * requests is kept.
+	 */
+	private List<Serializable> mergeTomRequests(List<Serializable> first) throws InterruptedException {
+		if (first.size() >= TOM_BATCH_MAX_REQUESTS)
+			return first;
+		
+		List<Serializable> merged = new ArrayList<Serializable>(first);
+		long deadline = System.nanoTime() + TOM_BATCH_MAX_DELAY_US * 1000;
+		
+		// A batch is never split, so the merged one may be slightly larger
+		// than the limit
+		while (merged.size() < TOM_BATCH_MAX_REQUESTS) {
+			// A waiting batch is returned immediately even if the time is up
+			long waitNanos = Math.max(deadline - System.nanoTime(), 0);
+			List<Serializable> next = tomSendQueue.poll(waitNanos, TimeUnit.NANOSECONDS);
+			if (next == null)
+				break;
+			merged.addAll(next);
+		}
+		
+		return merged;
+	}
+	
 	private void waitForServersReady() {
 		if (logger.isLoggable(Level.INFO))
 			logger.info("wait for all servers to start up comm. module");
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.remote.groupcomm.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasql.remote.groupcomm.Tuple;
+import org.elasql.remote.groupcomm.TupleSet;
+import org.elasql.remote.groupcomm.TupleSetFrame;
+
+/**
+ * Merges the tuple sets pushed to the same node by different transactions
+ * into one message. The merged set is sent when it has enough tuples, when
+ * the oldest tuple in it has waited for the max delay, or when a transaction
+ * that pushed tuples into it starts waiting for remote records (see
+ * {@link #flushIfPushedBy(long)}), since the other nodes may be waiting for
+ * those tuples in turn.<br>
+ * <br>
+ * The messages are swapped out into a queue under the lock and sent by the
+ * thread of this aggregator outside of it, so pushing transactions never
+ * wait for the network. The queue is sent in order, so the receiver sees the
+ * tuples of each transaction in the same order as without merging.
+ */
+class TupleSetAggregator implements Runnable {
+
+	private final ConnectionMgr connMgr;
+	private final int nodeId;
+	private final int maxTuples;
+	private final long maxDelayNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition workArrived = lock.newCondition();
+	// The set being merged, and the transactions that pushed tuples into it
+	private TupleSet pending;
+	private Set<Long> pendingSrcTxNums = new HashSet<Long>();
+	private long deadline;
+	// The messages ready to be sent, in order
+	private List<Serializable> outbox = new ArrayList<Serializable>();
+
+	TupleSetAggregator(ConnectionMgr connMgr, int nodeId, int maxTuples, long maxDelayMicros) {
+		this.connMgr = connMgr;
+		this.nodeId = nodeId;
+		this.maxTuples = maxTuples;
+		this.maxDelayNanos = maxDelayMicros * 1000;
+	}
+
+	void add(TupleSet ts) {
+		lock.lock();
+		try {
+			if (pending == null) {
+				// The receiver does not look at the sink id of normal pushes
+				pending = new TupleSet(-1);
+				deadline = System.nanoTime() + maxDelayNanos;
+				workArrived.signal();
+			}
+			pending.addTuples(ts.getTupleSet());
+			for (Tuple t : ts.getTupleSet())
+				pendingSrcTxNums.add(t.srcTxNum);
+
+			if (pending.size() >= maxTuples)
+				swapOut();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the given set by itself, after the tuples pushed before it. It is
+	 * for the sets that must not be merged, e.g. the ones with metadata.
+	 */
+	void sendAlone(TupleSet ts) {
+		enqueue(ts);
+	}
+
+	/**
+	 * Sends a frame of a migration chunk after the tuples pushed before it.
+	 * The frames take the same path as the tuple sets, so that a chunk never
+	 * overtakes the records pushed before it, e.g. the ones of the
+	 * transactions that read the migrating keys before the migration.
+	 */
+	void sendFrame(TupleSetFrame frame) {
+		enqueue(frame);
+	}
+
+	private void enqueue(Serializable message) {
+		lock.lock();
+		try {
+			swapOut();
+			outbox.add(message);
+			workArrived.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the merged set at once if the given transaction has pushed
+	 * tuples into it.
+	 * 
+	 * @param txNum
+	 *            the transaction going to wait for remote records
+	 */
+	void flushIfPushedBy(long txNum) {
+		lock.lock();
+		try {
+			if (pendingSrcTxNums.contains(txNum))
+				swapOut();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		lock.lock();
+		try {
+			while (true) {
+				while (outbox.isEmpty() && pending == null)
+					workArrived.await();
+
+				// The set may be swapped out by add() while waiting, so
+				// check again
+				if (outbox.isEmpty()) {
+					long waitNanos = deadline - System.nanoTime();
+					if (waitNanos > 0) {
+						workArrived.awaitNanos(waitNanos);
+						continue;
+					}
+					swapOut();
+				}
+
+				List<Serializable> messages = outbox;
+				outbox = new ArrayList<Serializable>();
+				lock.unlock();
+				try {
+					for (Serializable message : messages)
+						send(message);
+				} finally {
+					lock.lock();
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void send(Serializable message) {
+		if (message instanceof TupleSetFrame)
+			connMgr.sendFrame(nodeId, (TupleSetFrame) message);
+		else
+			connMgr.sendTupleSet(nodeId, (TupleSet) message);
+	}
+
+	// The caller must hold the lock
+	private void swapOut() {
+		if (pending != null) {
+			outbox.add(pending);
+			pending = null;
+			pendingSrcTxNums.clear();
+			workArrived.signal();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.schedule;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasql.server.Elasql;
+import org.vanilladb.core.server.task.Task;
+
+/**
+ * Prepares the submitted inputs on multiple worker threads and hands the
+ * results out in the order the inputs were submitted. It lets a scheduler
+ * parallelize the order-independent work of each request (e.g. creating and
+ * preparing stored procedures), while the order-dependent work (e.g. booking
+ * locks) stays on the single thread calling {@link #take()}.<br>
+ * <br>
+ * At most {@code capacity} inputs can be in the pipeline. {@link #submit}
+ * blocks until there is room.
+ *
+ * @param <I>
+ *            the type of inputs
+ * @param <O>
+ *            the type of prepared results
+ */
+public class PreparationPipeline<I, O> {
+
+	public interface Preparer<I, O> {
+
+		O prepare(I input) throws Exception;
+
+	}
+
+	private class Worker extends Task {
+
+		@Override
+		public void run() {
+			try {
+				while (true)
+					unprepared.take().run();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private final Preparer<I, O> preparer;
+	// The inputs waiting for a worker
+	private final BlockingQueue<FutureTask<O>> unprepared;
+	// All the inputs in the pipeline, in the submission order
+	private final BlockingQueue<FutureTask<O>> ordered;
+	private final AtomicInteger peakDepth = new AtomicInteger();
+
+	public PreparationPipeline(int numWorkers, int capacity, Preparer<I, O> preparer) {
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("at least one worker is needed");
+
+		this.preparer = preparer;
+		this.unprepared = new LinkedBlockingQueue<FutureTask<O>>();
+		this.ordered = new ArrayBlockingQueue<FutureTask<O>>(capacity);
+
+		for (int i = 0; i < numWorkers; i++)
+			Elasql.taskMgr().runTask(new Worker());
+	}
+
+	/**
+	 * Submits an input to be prepared by a worker. It blocks if the pipeline
+	 * is full.
+	 *
+	 * @param input
+	 *            the input to be prepared
+	 * @throws InterruptedException
+	 *             if it is interrupted while waiting for room
+	 */
+	public void submit(final I input) throws InterruptedException {
+		FutureTask<O> task = new FutureTask<O>(new Callable<O>() {
+			@Override
+			public O call() throws Exception {
+				return preparer.prepare(input);
+			}
+		});
+
+		// Reserve the position before any worker can finish it
+		ordered.put(task);
+		unprepared.add(task);
+
+		int depth = ordered.size();
+		int peak = peakDepth.get();
+		while (depth > peak && !peakDepth.compareAndSet(peak, depth))
+			peak = peakDepth.get();
+	}
+
+	/**
+	 * Retrieves the result of the earliest submitted input that has not been
+	 * taken, waiting for it to be prepared if necessary.
+	 *
+	 * @return the prepared result
+	 * @throws InterruptedException
+	 *             if it is interrupted while waiting
+	 * @throws ExecutionException
+	 *             if the preparation threw an exception
+	 */
+	public O take() throws InterruptedException, ExecutionException {
+		return ordered.take().get();
+	}
+
+	/**
+	 * Returns the number of inputs in the pipeline, including the ones that
+	 * have been prepared but not taken yet.
+	 *
+	 * @return the number of inputs in the pipeline
+	 */
+	public int getDepth() {
+		return ordered.size();
+	}
+
+	/**
+	 * Returns the number of inputs waiting for an idle worker.
+	 *
+	 * @return the number of inputs waiting for a worker
+	 */
+	public int getUnpreparedDepth() {
+		return unprepared.size();
+	}
+
+	/**
+	 * Returns the max number of inputs that have been in the pipeline at the
+	 * same time.
+	 *
+	 * @return the peak depth
+	 */
+	public int getPeakDepth() {
+		return peakDepth.get();
+	}
+}
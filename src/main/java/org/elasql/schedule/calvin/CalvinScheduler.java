@@ -15,20 +15,24 @@
  *******************************************************************************/
 package org.elasql.schedule.calvin;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.elasql.cache.calvin.CalvinPostOffice;
+import org.elasql.migration.MigrationSettings;
+import org.elasql.procedure.StoredProcedureTaskExecutor;
 import org.elasql.procedure.calvin.CalvinStoredProcedure;
 import org.elasql.procedure.calvin.CalvinStoredProcedureFactory;
 import org.elasql.procedure.calvin.CalvinStoredProcedureTask;
 import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.schedule.PreparationPipeline;
 import org.elasql.schedule.Scheduler;
 import org.elasql.server.Elasql;
 import org.elasql.storage.tx.recovery.DdRecoveryMgr;
-import org.vanilladb.core.server.VanillaDb;
+import org.elasql.util.AdmissionQueue;
+import org.elasql.util.ElasqlProperties;
 import org.vanilladb.core.server.task.Task;
 
 public class CalvinScheduler extends Task implements Scheduler {
@@ -36,8 +40,93 @@ public class CalvinScheduler extends Task implements Scheduler {
 	
 	public static final AtomicLong FIRST_TX_ARRIVAL_TIME = new AtomicLong(-1L);
 	
+	/**
+	 * Whether a transaction requests its locks asynchronously right after
+	 * booking them, and is handed over to the
+	 * {@link StoredProcedureTaskExecutor} only once it gets all the locks.
+	 * Otherwise, it is handed over right after booking its locks, and the
+	 * thread running it waits there for the locks.<br>
+	 * <br>
+	 * The ready transactions must not be run by a bounded pool, since they
+	 * still block on remote records. If all the threads of a pool on one node
+	 * waited for the records from the transactions queued behind the full
+	 * pool of another node, the nodes would deadlock.
+	 */
+	public static final boolean ENABLE_LOCK_READY_DISPATCH;
+	
+	/**
+	 * The number of threads creating and preparing stored procedures. If it
+	 * is larger than 1, the workers prepare the requests in parallel, while
+	 * the scheduler thread logs the requests and books the locks in the order
+	 * of transaction numbers. The preparation stays sequential on a
+	 * stand-alone sequencer or if migrations are enabled (see
+	 * {@link MigrationSettings#ENABLE_MIGRATION}), since preparing a request
+	 * there depends on the requests before it. The mode is decided only by
+	 * the configurations, so that all the nodes decide the same.
+	 */
+	public static final int NUM_PREPARE_WORKERS;
+	
+	/**
+	 * The max number of requests that are being prepared or waiting for
+	 * booking their locks.
+	 */
+	public static final int PREPARE_QUEUE_CAPACITY;
+	
+	/**
+	 * The max number of requests waiting for being scheduled. 0 means
+	 * unbounded. When the queue is full, the thread delivering the
+	 * total-ordered requests blocks. The requests are never shed here since
+	 * all the nodes must schedule the same sequence of requests.
+	 */
+	public static final int SCHEDULE_QUEUE_CAPACITY;
+	
+	static {
+		ENABLE_LOCK_READY_DISPATCH = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				CalvinScheduler.class.getName() + ".ENABLE_LOCK_READY_DISPATCH", false);
+		NUM_PREPARE_WORKERS = ElasqlProperties.getLoader().getPropertyAsInteger(
+				CalvinScheduler.class.getName() + ".NUM_PREPARE_WORKERS", 1);
+		PREPARE_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				CalvinScheduler.class.getName() + ".PREPARE_QUEUE_CAPACITY", 1024);
+		SCHEDULE_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				CalvinScheduler.class.getName() + ".SCHEDULE_QUEUE_CAPACITY", AdmissionQueue.UNBOUNDED);
+	}
+	
+	private static class PreparedCall {
+		StoredProcedureCall call;
+		CalvinStoredProcedure<?> sp;
+		Exception failure;
+		
+		PreparedCall(StoredProcedureCall call, CalvinStoredProcedure<?> sp, Exception failure) {
+			this.call = call;
+			this.sp = sp;
+			this.failure = failure;
+		}
+	}
+	
+	private class PipelineFeeder extends Task {
+		
+		@Override
+		public void run() {
+			StoredProcedureCall call = null;
+			try {
+				while (true) {
+					call = takeNextCall();
+					pipeline.submit(call);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (Exception e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("detect Exception in the scheduler, current sp call: " + call);
+				e.printStackTrace();
+			}
+		}
+	}
+	
 	private CalvinStoredProcedureFactory factory;
-	private BlockingQueue<StoredProcedureCall> spcQueue = new LinkedBlockingQueue<StoredProcedureCall>();
+	private AdmissionQueue<StoredProcedureCall> spcQueue = new AdmissionQueue<StoredProcedureCall>(
+			SCHEDULE_QUEUE_CAPACITY, AdmissionQueue.BLOCK);
+	private volatile PreparationPipeline<StoredProcedureCall, PreparedCall> pipeline;
 
 	public CalvinScheduler(CalvinStoredProcedureFactory factory) {
 		this.factory = factory;
@@ -46,14 +135,63 @@ public class CalvinScheduler extends Task implements Scheduler {
 
 	public void schedule(StoredProcedureCall call) {
 		try {
-			spcQueue.put(call);
+			spcQueue.admit(call);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Returns the number of requests waiting for being scheduled.
+	 * 
+	 * @return the number of requests in the queue
+	 */
+	public int getScheduleQueueDepth() {
+		return spcQueue.size();
+	}
+	
+	/**
+	 * Returns the max number of requests that have been waiting for being
+	 * scheduled at the same time.
+	 * 
+	 * @return the peak depth of the schedule queue
+	 */
+	public int getPeakScheduleQueueDepth() {
+		return spcQueue.getPeakSize();
+	}
+	
+	/**
+	 * Returns the number of requests that are being prepared or waiting for
+	 * booking their locks. It is always 0 if the preparation is sequential.
+	 * 
+	 * @return the number of requests in the preparation pipeline
+	 */
+	public int getPrepareQueueDepth() {
+		PreparationPipeline<StoredProcedureCall, PreparedCall> pipeline = this.pipeline;
+		return pipeline == null? 0 : pipeline.getDepth();
+	}
+	
+	/**
+	 * Returns the max number of requests that have been in the preparation
+	 * pipeline at the same time.
+	 * 
+	 * @return the peak depth of the preparation pipeline
+	 */
+	public int getPeakPrepareQueueDepth() {
+		PreparationPipeline<StoredProcedureCall, PreparedCall> pipeline = this.pipeline;
+		return pipeline == null? 0 : pipeline.getPeakDepth();
+	}
+
 	@Override
 	public void run() {
+		if (NUM_PREPARE_WORKERS > 1 && !Elasql.isStandAloneSequencer()
+				&& !MigrationSettings.ENABLE_MIGRATION)
+			runPipelined();
+		else
+			runSequentially();
+	}
+	
+	private void runSequentially() {
 //		Timer timer = Timer.getLocalTimer();
 		
 		StoredProcedureCall call = null;
@@ -62,51 +200,23 @@ public class CalvinScheduler extends Task implements Scheduler {
 //				timer.reset();
 				
 				// retrieve stored procedure call
-				call = spcQueue.take();
-				if (call.isNoOpStoredProcCall())
-					continue;
+				call = takeNextCall();
 				
 //				timer.startComponentTimer("schedule");
-				
-				if (FIRST_TX_ARRIVAL_TIME.get() == -1L)
-					FIRST_TX_ARRIVAL_TIME.set(System.currentTimeMillis());
 	
 				// create store procedure and prepare
-				CalvinStoredProcedure<?> sp = factory.getStoredProcedure(
-						call.getPid(), call.getTxNum());
-				
-//				timer.startComponentTimer(sp.getClass().getSimpleName() + " prepare");
-				sp.prepare(call.getPars());
-//				timer.stopComponentTimer(sp.getClass().getSimpleName() + " prepare");
+				PreparedCall prepared = prepare(call);
+				if (prepared.failure != null) {
+					skipFailedCall(prepared);
+					continue;
+				}
+				CalvinStoredProcedure<?> sp = prepared.sp;
 				
 				// The sequencer does not go further
 				if (Elasql.isStandAloneSequencer()) 
 					continue;
-	
-				// log request
-				if (!sp.isReadOnly())
-					DdRecoveryMgr.logRequest(call);
-	
-				// if this node doesn't have to participate this transaction,
-				// skip it
-				if (!sp.isParticipating()) {
-//					timer.stopComponentTimer("schedule");
-//					timer.addToGlobalStatistics();
-					continue;
-				}
-	
-				// serialize conservative locking
-//				timer.startComponentTimer("book locks");
-				sp.bookConservativeLocks();
-//				timer.stopComponentTimer("book locks");
-	
-				// create a new task for multi-thread
-				CalvinStoredProcedureTask spt = new CalvinStoredProcedureTask(
-						call.getClientId(), call.getConnectionId(), call.getTxNum(),
-						sp);
-	
-				// hand over to a thread to run the task
-				VanillaDb.taskMgr().runTask(spt);
+				
+				bookAndDispatch(call, sp);
 				
 //				timer.stopComponentTimer("schedule");
 //				timer.addToGlobalStatistics();
@@ -119,4 +229,123 @@ public class CalvinScheduler extends Task implements Scheduler {
 			e.printStackTrace();
 		}
 	}
+	
+	private void runPipelined() {
+		pipeline = new PreparationPipeline<StoredProcedureCall, PreparedCall>(
+				NUM_PREPARE_WORKERS, PREPARE_QUEUE_CAPACITY,
+				new PreparationPipeline.Preparer<StoredProcedureCall, PreparedCall>() {
+					@Override
+					public PreparedCall prepare(StoredProcedureCall call) {
+						return CalvinScheduler.this.prepare(call);
+					}
+				});
+		Elasql.taskMgr().runTask(new PipelineFeeder());
+		
+		// This thread books the locks in the order of transaction numbers
+		StoredProcedureCall call = null;
+		try {
+			while (true) {
+				PreparedCall prepared = pipeline.take();
+				call = prepared.call;
+				if (prepared.failure != null) {
+					skipFailedCall(prepared);
+					continue;
+				}
+				bookAndDispatch(call, prepared.sp);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("detect Exception while preparing the sp call next to " + call);
+			e.getCause().printStackTrace();
+		} catch (Exception e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("detect Exception in the scheduler, current sp call: " + call);
+			e.printStackTrace();
+		}
+	}
+	
+	private StoredProcedureCall takeNextCall() throws InterruptedException {
+		StoredProcedureCall call = spcQueue.take();
+		while (call.isNoOpStoredProcCall())
+			call = spcQueue.take();
+		
+		if (FIRST_TX_ARRIVAL_TIME.get() == -1L)
+			FIRST_TX_ARRIVAL_TIME.set(System.currentTimeMillis());
+		
+		return call;
+	}
+	
+	private PreparedCall prepare(StoredProcedureCall call) {
+		CalvinStoredProcedure<?> sp = null;
+		try {
+			sp = factory.getStoredProcedure(call.getPid(), call.getTxNum());
+			
+//			timer.startComponentTimer(sp.getClass().getSimpleName() + " prepare");
+			sp.prepare(call.getPars());
+//			timer.stopComponentTimer(sp.getClass().getSimpleName() + " prepare");
+			
+			return new PreparedCall(call, sp, null);
+		} catch (Exception e) {
+			// Keep the procedure, so that its transaction can be rolled back
+			return new PreparedCall(call, sp, e);
+		}
+	}
+	
+	/**
+	 * Skips a request that fails to be prepared. The preparation is
+	 * deterministic, so the other nodes skip the request as well.
+	 */
+	private void skipFailedCall(PreparedCall prepared) {
+		StoredProcedureCall call = prepared.call;
+		if (logger.isLoggable(Level.SEVERE))
+			logger.log(Level.SEVERE, "fail to prepare sp call " + call + ", skip it", prepared.failure);
+		
+		// The transaction may have been created before the failure
+		if (prepared.sp != null)
+			prepared.sp.rollbackFailedPreparation();
+		
+		if (!Elasql.isStandAloneSequencer())
+			((CalvinPostOffice) Elasql.remoteRecReceiver()).skipTransaction(call.getTxNum());
+	}
+	
+	// Must be called in the order of transaction numbers
+	private void bookAndDispatch(StoredProcedureCall call, CalvinStoredProcedure<?> sp) {
+		// log request
+		if (!sp.isReadOnly())
+			DdRecoveryMgr.logRequest(call);
+
+		// if this node doesn't have to participate this transaction,
+		// skip it
+		if (!sp.isParticipating())
+			return;
+
+		// serialize conservative locking
+//		timer.startComponentTimer("book locks");
+		sp.bookConservativeLocks();
+//		timer.stopComponentTimer("book locks");
+
+		// create a new task for multi-thread
+		CalvinStoredProcedureTask spt = new CalvinStoredProcedureTask(
+				call.getClientId(), call.getConnectionId(), call.getTxNum(),
+				sp);
+		spt.setRequestId(call.getRequestId());
+
+		// hand over to a thread to run the task
+		if (ENABLE_LOCK_READY_DISPATCH)
+			dispatchWhenLocksReady(sp, spt);
+		else
+			StoredProcedureTaskExecutor.execute(spt);
+	}
+	
+	private void dispatchWhenLocksReady(CalvinStoredProcedure<?> sp,
+			final CalvinStoredProcedureTask spt) {
+		sp.requestConservativeLocksAsync(new Runnable() {
+			@Override
+			public void run() {
+				StoredProcedureTaskExecutor.execute(spt);
+			}
+		});
+	}
 }
@@ -18,13 +18,13 @@ package org.elasql.schedule.naive;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.elasql.procedure.StoredProcedureTaskExecutor;
 import org.elasql.procedure.naive.NaiveStoredProcedure;
 import org.elasql.procedure.naive.NaiveStoredProcedureFactory;
 import org.elasql.procedure.naive.NaiveStoredProcedureTask;
 import org.elasql.remote.groupcomm.StoredProcedureCall;
 import org.elasql.schedule.Scheduler;
 import org.elasql.storage.tx.recovery.DdRecoveryMgr;
-import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.server.task.Task;
 
 public class NaiveScheduler extends Task implements Scheduler {
@@ -66,12 +66,13 @@ public class NaiveScheduler extends Task implements Scheduler {
 				NaiveStoredProcedureTask spt = new NaiveStoredProcedureTask(
 						call.getClientId(), call.getConnectionId(), call.getTxNum(),
 						sp);
+				spt.setRequestId(call.getRequestId());
 
 				// perform conservative locking
 				spt.lockConservatively();
 
 				// hand over to a thread to run the task
-				VanillaDb.taskMgr().runTask(spt);
+				StoredProcedureTaskExecutor.execute(spt);
 
 			} catch (InterruptedException e) {
 				e.printStackTrace();
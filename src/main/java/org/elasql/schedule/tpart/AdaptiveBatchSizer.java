@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.schedule.tpart;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.util.ElasqlProperties;
+
+/**
+ * Decides the sizes of the T-Part scheduling batches on the sequencer. The
+ * schedulers cannot decide by themselves since their queues differ from node
+ * to node, while all of them must cut the batches at the same transactions.
+ * So the sequencer appends a schedule hint (see
+ * {@link StoredProcedureCall#getScheduleHintCall(int, boolean)}) to each
+ * total-ordered message, and the schedulers apply the hints in the total
+ * order.<br>
+ * <br>
+ * The load is judged by the number of client request batches still waiting
+ * for the sequencer after a message is sent. If some are waiting, the batch
+ * size doubles (up to {@link #MAX_BATCH_SIZE}) for better partitioning. The
+ * schedulers cut a batch by themselves once it reaches the size, so a cut is
+ * only hinted when the oldest request of the pending batch has waited for
+ * {@link #MAX_BATCH_DELAY_US}. The batch size then shrinks by one eighth
+ * (down to {@link #MIN_BATCH_SIZE}), since the requests do not come fast
+ * enough to fill it in time. A short pause of the clients therefore does not
+ * throw away the size learned under load.<br>
+ * <br>
+ * Each hint is a no-op call taking a transaction number, so a hint is only
+ * sent when it changes the batch size or cuts the batch.
+ */
+public class AdaptiveBatchSizer {
+
+	/**
+	 * Whether the sequencer sends schedule hints to adapt the batch sizes of
+	 * T-Part. If it is false, the schedulers use a fixed batch size.
+	 */
+	public static final boolean ENABLED;
+
+	public static final int MIN_BATCH_SIZE;
+
+	public static final int MAX_BATCH_SIZE;
+
+	/**
+	 * The max time that a request waits in a pending batch before the batch
+	 * is cut, in microseconds.
+	 */
+	public static final long MAX_BATCH_DELAY_US;
+
+	static {
+		ENABLED = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				AdaptiveBatchSizer.class.getName() + ".ENABLED", false);
+		MIN_BATCH_SIZE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				AdaptiveBatchSizer.class.getName() + ".MIN_BATCH_SIZE", 1);
+		MAX_BATCH_SIZE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				AdaptiveBatchSizer.class.getName() + ".MAX_BATCH_SIZE", 200);
+		MAX_BATCH_DELAY_US = ElasqlProperties.getLoader().getPropertyAsLong(
+				AdaptiveBatchSizer.class.getName() + ".MAX_BATCH_DELAY_US", 10000);
+	}
+
+	private int batchSize;
+
+	// The number of requests sent since the last cut, and the time when the
+	// first of them was sent
+	private int numOfPendingRequests;
+	private long firstPendingTime;
+
+	public AdaptiveBatchSizer() {
+		// Start from the fixed batch size
+		batchSize = Math.max(MIN_BATCH_SIZE, Math.min(TPartScheduler.SCHEDULE_BATCH_SIZE, MAX_BATCH_SIZE));
+	}
+
+	/**
+	 * Creates the hint to append to a total-ordered message. It may be called
+	 * without any new request, when the deadline of the pending batch (see
+	 * {@link #nanosToDeadline(long)}) passes.
+	 *
+	 * @param numOfNewRequests
+	 *            the number of requests in this message
+	 * @param numOfWaitingBatches
+	 *            the number of client request batches waiting for the
+	 *            sequencer after this message
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the hint, or null if no hint is needed
+	 */
+	public StoredProcedureCall nextHint(int numOfNewRequests, int numOfWaitingBatches, long now) {
+		if (numOfPendingRequests == 0 && numOfNewRequests > 0)
+			firstPendingTime = now;
+		numOfPendingRequests += numOfNewRequests;
+
+		int lastSize = batchSize;
+		if (numOfWaitingBatches > 0)
+			batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
+
+		// The schedulers cut the full batches by themselves
+		if (numOfPendingRequests >= batchSize) {
+			numOfPendingRequests %= batchSize;
+			firstPendingTime = now;
+		}
+
+		boolean cut = false;
+		if (numOfPendingRequests > 0 && now - firstPendingTime >= MAX_BATCH_DELAY_US * 1000) {
+			cut = true;
+			numOfPendingRequests = 0;
+			if (numOfWaitingBatches == 0)
+				batchSize = Math.max(batchSize - Math.max(batchSize / 8, 1), MIN_BATCH_SIZE);
+		}
+
+		if (!cut && batchSize == lastSize)
+			return null;
+		return StoredProcedureCall.getScheduleHintCall(batchSize, cut);
+	}
+
+	/**
+	 * Returns the time left before the pending batch should be cut.
+	 *
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the time left in nanoseconds, or -1 if there is no pending
+	 *         request
+	 */
+	public long nanosToDeadline(long now) {
+		if (numOfPendingRequests == 0)
+			return -1;
+		return Math.max(firstPendingTime + MAX_BATCH_DELAY_US * 1000 - now, 0);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+}
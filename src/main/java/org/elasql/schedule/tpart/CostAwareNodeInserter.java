@@ -1,5 +1,6 @@
 package org.elasql.schedule.tpart;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
@@ -34,6 +35,12 @@ public class CostAwareNodeInserter implements BatchNodeInserter {
 	private double[] loadPerPart = new double[PartitionMetaMgr.NUM_PARTITIONS];
 	private PartitionMetaMgr partMgr = Elasql.partitionMetaMgr();
 	
+	// The number of the non-replicated records read by the current task
+	// on each partition, so that the cost of a partition is found without
+	// going through the read set again
+	private int[] readsPerPart = new int[PartitionMetaMgr.NUM_PARTITIONS];
+	private int numOfNonReplicatedReads;
+	
 //	private int[] warehouses = new int[400];
 
 	/**
@@ -87,6 +94,7 @@ public class CostAwareNodeInserter implements BatchNodeInserter {
 		// Evaluate the cost on each part
 		double minCost = Double.MAX_VALUE;
 		int minCostPart = 0;
+		countReadsPerPart(graph, task);
 		
 		for (int partId = 0; partId < partMgr.getCurrentNumOfParts(); partId++) {
 			// for scaling-out experiments
@@ -96,7 +104,7 @@ public class CostAwareNodeInserter implements BatchNodeInserter {
 //			if (isConsolidating && partId > 2)
 //				break;
 			
-			double cost = estimateCost(graph, task, partId);
+			double cost = estimateCost(task, partId);
 			if (cost < minCost) {
 				minCost = cost;
 				minCostPart = partId;
@@ -110,21 +118,25 @@ public class CostAwareNodeInserter implements BatchNodeInserter {
 		loadPerPart[minCostPart] += task.getWeight();
 	}
 	
-	private double estimateCost(TGraph graph, TPartStoredProcedureTask task, int targetPart) {
-		// calculate cross partition edge cost
-		double crossEdgeCost = 0;
+	private void countReadsPerPart(TGraph graph, TPartStoredProcedureTask task) {
+		Arrays.fill(readsPerPart, 0);
+		numOfNonReplicatedReads = 0;
 		
-		// count read edges
 		for (PrimaryKey key : task.getReadSet()) {
-			
 			// Skip replicated records
 			if (partMgr.isFullyReplicated(key))
 				continue;
 			
-			if (graph.getResourcePosition(key).getPartId() != targetPart) {
-				crossEdgeCost++;
-			}
+			readsPerPart[graph.getResourcePosition(key).getPartId()]++;
+			numOfNonReplicatedReads++;
 		}
+	}
+	
+	// countReadsPerPart() must be called for the task first
+	private double estimateCost(TPartStoredProcedureTask task, int targetPart) {
+		// calculate cross partition edge cost
+		// (the read edges from the other partitions)
+		double crossEdgeCost = numOfNonReplicatedReads - readsPerPart[targetPart];
 		
 		// count write-back edges
 //		for (RecordKey key : task.getWriteSet()) {
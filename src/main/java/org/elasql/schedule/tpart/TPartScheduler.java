@@ -6,15 +6,21 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.elasql.migration.MigrationSettings;
+import org.elasql.procedure.StoredProcedureTaskExecutor;
 import org.elasql.procedure.tpart.TPartStoredProcedure;
 import org.elasql.procedure.tpart.TPartStoredProcedure.ProcedureType;
 import org.elasql.procedure.tpart.TPartStoredProcedureFactory;
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
 import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.schedule.PreparationPipeline;
 import org.elasql.schedule.Scheduler;
 import org.elasql.schedule.tpart.graph.Edge;
 import org.elasql.schedule.tpart.graph.TGraph;
@@ -23,14 +29,45 @@ import org.elasql.schedule.tpart.sink.Sinker;
 import org.elasql.server.Elasql;
 import org.elasql.storage.metadata.PartitionMetaMgr;
 import org.elasql.storage.tx.recovery.DdRecoveryMgr;
+import org.elasql.util.AdmissionQueue;
 import org.elasql.util.ElasqlProperties;
-import org.vanilladb.core.server.VanillaDb;
+import org.elasql.util.Histogram;
 import org.vanilladb.core.server.task.Task;
 
 public class TPartScheduler extends Task implements Scheduler {
 	private static Logger logger = Logger.getLogger(TPartScheduler.class.getName());
 
-	private static final int SCHEDULE_BATCH_SIZE;
+	static final int SCHEDULE_BATCH_SIZE;
+	
+	/**
+	 * The max number of requests waiting for being scheduled. 0 means
+	 * unbounded. When the queue is full, the thread delivering the
+	 * total-ordered requests blocks.
+	 */
+	public static final int SCHEDULE_QUEUE_CAPACITY;
+	
+	/**
+	 * The number of threads creating and preparing stored procedures. If it
+	 * is larger than 1, the scheduler runs as a pipeline: the workers prepare
+	 * the requests in parallel, the scheduler thread logs the requests,
+	 * inserts them into the T-graph and sinks it in the order of transaction
+	 * numbers, and another thread dispatches the sunk plans. So the next
+	 * batch can be prepared and inserted while the last one is dispatched.
+	 * The preparation stays sequential on a stand-alone sequencer or if
+	 * migrations are enabled (see {@link MigrationSettings#ENABLE_MIGRATION}),
+	 * since preparing a request there depends on the requests before it. The
+	 * mode is decided only by the configurations, so that all the nodes
+	 * decide the same.
+	 */
+	public static final int NUM_PREPARE_WORKERS;
+	
+	/**
+	 * The max number of requests that are being prepared or waiting for
+	 * being inserted into the T-graph.
+	 */
+	public static final int PREPARE_QUEUE_CAPACITY;
+	
+	private static final int BATCH_SIZE_BUCKETS = 16;
 
 	private TPartStoredProcedureFactory factory;
 	
@@ -39,13 +76,88 @@ public class TPartScheduler extends Task implements Scheduler {
 	static {
 		SCHEDULE_BATCH_SIZE = ElasqlProperties.getLoader()
 				.getPropertyAsInteger(TPartScheduler.class.getName() + ".SCHEDULE_BATCH_SIZE", 10);
+		SCHEDULE_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				TPartScheduler.class.getName() + ".SCHEDULE_QUEUE_CAPACITY", AdmissionQueue.UNBOUNDED);
+		NUM_PREPARE_WORKERS = ElasqlProperties.getLoader().getPropertyAsInteger(
+				TPartScheduler.class.getName() + ".NUM_PREPARE_WORKERS", 1);
+		PREPARE_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				TPartScheduler.class.getName() + ".PREPARE_QUEUE_CAPACITY", 1024);
+	}
+	
+	private static class PreparedCall {
+		StoredProcedureCall call;
+		TPartStoredProcedureTask task;
+		Exception failure;
+		// The procedure that fails to be prepared, if it has been created
+		TPartStoredProcedure<?> failedSp;
+		
+		PreparedCall(StoredProcedureCall call, TPartStoredProcedureTask task, Exception failure,
+				TPartStoredProcedure<?> failedSp) {
+			this.call = call;
+			this.task = task;
+			this.failure = failure;
+			this.failedSp = failedSp;
+		}
+	}
+	
+	private class PipelineFeeder extends Task {
+		
+		@Override
+		public void run() {
+			StoredProcedureCall call = null;
+			try {
+				while (true) {
+					call = spcQueue.take();
+					pipeline.submit(call);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (Exception e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("detect Exception in the scheduler, current sp call: " + call);
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private class Dispatcher extends Task {
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Iterator<TPartStoredProcedureTask> plans = dispatchQueue.take();
+					long start = System.nanoTime();
+					dispatchToTaskMgr(plans);
+					dispatchTime.addAndGet(System.nanoTime() - start);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
-	private BlockingQueue<StoredProcedureCall> spcQueue;
+	private AdmissionQueue<StoredProcedureCall> spcQueue;
 	private BatchNodeInserter inserter;
 	private Sinker sinker;
 	private TGraph graph;
 	private boolean batchingEnabled = true;
+	
+	private volatile PreparationPipeline<StoredProcedureCall, PreparedCall> pipeline;
+	// The sunk plans of each batch, in the order of the batches
+	private BlockingQueue<Iterator<TPartStoredProcedureTask>> dispatchQueue;
+	
+	// The total time (in nanoseconds) spent in each stage
+	private final AtomicLong prepareTime = new AtomicLong();
+	private final AtomicLong insertTime = new AtomicLong();
+	private final AtomicLong sinkTime = new AtomicLong();
+	private final AtomicLong dispatchTime = new AtomicLong();
+	private final AtomicLong numOfSunkBatches = new AtomicLong();
+	
+	// The number of tasks making a batch, which may be changed by the
+	// schedule hints (only accessed by the thread building the T-graph)
+	private int targetBatchSize = SCHEDULE_BATCH_SIZE;
+	private final Histogram batchSizes = new Histogram(BATCH_SIZE_BUCKETS);
 
 	public TPartScheduler(TPartStoredProcedureFactory factory, 
 			BatchNodeInserter inserter, Sinker sinker, TGraph graph) {
@@ -60,7 +172,8 @@ public class TPartScheduler extends Task implements Scheduler {
 		this.sinker = sinker;
 		this.graph = graph;
 		this.batchingEnabled = isBatching;
-		this.spcQueue = new LinkedBlockingQueue<StoredProcedureCall>();
+		this.spcQueue = new AdmissionQueue<StoredProcedureCall>(
+				SCHEDULE_QUEUE_CAPACITY, AdmissionQueue.BLOCK);
 		
 		// Clear the dump dir
 //		dumpDir.mkdirs();
@@ -72,46 +185,89 @@ public class TPartScheduler extends Task implements Scheduler {
 
 	public void schedule(StoredProcedureCall call) {
 		try {
-			spcQueue.put(call);
+			spcQueue.admit(call);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Returns the number of requests waiting for being scheduled.
+	 * 
+	 * @return the number of requests in the queue
+	 */
+	public int getScheduleQueueDepth() {
+		return spcQueue.size();
+	}
+	
+	/**
+	 * Returns the max number of requests that have been waiting for being
+	 * scheduled at the same time.
+	 * 
+	 * @return the peak depth of the schedule queue
+	 */
+	public int getPeakScheduleQueueDepth() {
+		return spcQueue.getPeakSize();
+	}
+
+	/**
+	 * Returns the number of requests that are being prepared or waiting for
+	 * being inserted into the T-graph. It is always 0 if the preparation is
+	 * sequential.
+	 * 
+	 * @return the number of requests in the preparation pipeline
+	 */
+	public int getPrepareQueueDepth() {
+		PreparationPipeline<StoredProcedureCall, PreparedCall> pipeline = this.pipeline;
+		return pipeline == null? 0 : pipeline.getDepth();
+	}
+	
+	/**
+	 * Returns the total time spent in each stage of scheduling, summed over
+	 * the threads of the stage: preparing the requests, inserting them into
+	 * the T-graph, sinking the T-graph and dispatching the plans.
+	 * 
+	 * @return the description of the stage times
+	 */
+	public String getStageStatistics() {
+		return String.format("batches: %d, prepare: %d ms, insert: %d ms, sink: %d ms, dispatch: %d ms",
+				numOfSunkBatches.get(), TimeUnit.NANOSECONDS.toMillis(prepareTime.get()),
+				TimeUnit.NANOSECONDS.toMillis(insertTime.get()), TimeUnit.NANOSECONDS.toMillis(sinkTime.get()),
+				TimeUnit.NANOSECONDS.toMillis(dispatchTime.get()));
+	}
+
+	/**
+	 * Returns the histogram of the numbers of tasks in the sunk batches.
+	 * 
+	 * @return the histogram of batch sizes
+	 */
+	public Histogram getBatchSizeHistogram() {
+		return batchSizes;
+	}
 
 	public void run() {
+		if (NUM_PREPARE_WORKERS > 1 && !Elasql.isStandAloneSequencer()
+				&& !MigrationSettings.ENABLE_MIGRATION)
+			runPipelined();
+		else
+			runSequentially();
+	}
+	
+	private void runSequentially() {
 		List<TPartStoredProcedureTask> batchedTasks = new LinkedList<TPartStoredProcedureTask>();
 		
 		while (true) {
 			try {
 				// blocked if the queue is empty
 				StoredProcedureCall call = spcQueue.take();
-				TPartStoredProcedureTask task = createStoredProcedureTask(call);
-
-				// schedules the utility procedures directly without T-Part
-				// module
-				if (task.getProcedureType() == ProcedureType.UTILITY) {
-//					VanillaDb.taskMgr().runTask(task);
+				PreparedCall prepared = createStoredProcedureTask(call);
+				if (prepared.failure != null) {
+					skipFailedCall(prepared);
 					continue;
 				}
-
-				// TODO: Uncomment this when the migration module is migrated
-//				if (task.getProcedureType() == ProcedureType.MIGRATION) {
-//					// Process and dispatch it immediately
-//					processMigrationTx(task);
-//					continue;
-//				}
-
-				if (task.getProcedureType() == ProcedureType.NORMAL) {
-					batchedTasks.add(task);
-				}
-				
-				// sink current t-graph if # pending tx exceeds threshold
-				if ((batchingEnabled && batchedTasks.size() >= SCHEDULE_BATCH_SIZE)
-						|| !batchingEnabled) {
-					processBatch(batchedTasks);
-					batchedTasks.clear();
-				}
-
+				TPartStoredProcedureTask task = prepared.task;
+				logRequest(call, task);
+				scheduleTask(call, task, batchedTasks);
 			} catch (InterruptedException ex) {
 				if (logger.isLoggable(Level.SEVERE))
 					logger.severe("fail to dequeue task");
@@ -119,9 +275,115 @@ public class TPartScheduler extends Task implements Scheduler {
 		}
 	}
 	
+	private void runPipelined() {
+		pipeline = new PreparationPipeline<StoredProcedureCall, PreparedCall>(
+				NUM_PREPARE_WORKERS, PREPARE_QUEUE_CAPACITY,
+				new PreparationPipeline.Preparer<StoredProcedureCall, PreparedCall>() {
+					@Override
+					public PreparedCall prepare(StoredProcedureCall call) {
+						return createStoredProcedureTask(call);
+					}
+				});
+		dispatchQueue = new LinkedBlockingQueue<Iterator<TPartStoredProcedureTask>>();
+		Elasql.taskMgr().runTask(new PipelineFeeder());
+		Elasql.taskMgr().runTask(new Dispatcher());
+		
+		// This thread logs, inserts and sinks the requests in the order
+		// of transaction numbers
+		List<TPartStoredProcedureTask> batchedTasks = new LinkedList<TPartStoredProcedureTask>();
+		StoredProcedureCall call = null;
+		try {
+			while (true) {
+				PreparedCall prepared = pipeline.take();
+				call = prepared.call;
+				if (prepared.failure != null) {
+					skipFailedCall(prepared);
+					continue;
+				}
+				logRequest(call, prepared.task);
+				scheduleTask(call, prepared.task, batchedTasks);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("detect Exception while preparing the sp call next to " + call);
+			e.getCause().printStackTrace();
+		} catch (Exception e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("detect Exception in the scheduler, current sp call: " + call);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Skips a request that fails to be prepared. The preparation is
+	 * deterministic, so the other nodes skip the request as well.
+	 */
+	private void skipFailedCall(PreparedCall prepared) {
+		if (logger.isLoggable(Level.SEVERE))
+			logger.log(Level.SEVERE, "fail to prepare sp call " + prepared.call + ", skip it",
+					prepared.failure);
+		
+		// The transaction may have been created before the failure
+		if (prepared.failedSp != null)
+			prepared.failedSp.rollbackFailedPreparation();
+	}
+	
+	// Must be called in the order of transaction numbers
+	private void scheduleTask(StoredProcedureCall call, TPartStoredProcedureTask task,
+			List<TPartStoredProcedureTask> batchedTasks) {
+		if (call.isScheduleHintCall()) {
+			applyScheduleHint(call, batchedTasks);
+			return;
+		}
+		
+		// schedules the utility procedures directly without T-Part
+		// module
+		if (task.getProcedureType() == ProcedureType.UTILITY) {
+//			VanillaDb.taskMgr().runTask(task);
+			return;
+		}
+
+		// TODO: Uncomment this when the migration module is migrated
+//		if (task.getProcedureType() == ProcedureType.MIGRATION) {
+//			// Process and dispatch it immediately
+//			processMigrationTx(task);
+//			return;
+//		}
+
+		if (task.getProcedureType() == ProcedureType.NORMAL) {
+			batchedTasks.add(task);
+		}
+		
+		// sink current t-graph if # pending tx exceeds threshold
+		if ((batchingEnabled && batchedTasks.size() >= targetBatchSize)
+				|| !batchingEnabled) {
+			processBatch(batchedTasks);
+			batchedTasks.clear();
+		}
+	}
+	
+	// Must be called in the order of transaction numbers
+	private void applyScheduleHint(StoredProcedureCall hint, List<TPartStoredProcedureTask> batchedTasks) {
+		if (!batchingEnabled)
+			return;
+		
+		targetBatchSize = hint.getHintedBatchSize();
+		if (batchedTasks.isEmpty())
+			return;
+		
+		if (hint.isHintedCut() || batchedTasks.size() >= targetBatchSize) {
+			processBatch(batchedTasks);
+			batchedTasks.clear();
+		}
+	}
+	
 	private void processBatch(List<TPartStoredProcedureTask> batchedTasks) {
 		// Insert the batch of tasks
+		long start = System.nanoTime();
 		inserter.insertBatch(graph, batchedTasks);
+		insertTime.addAndGet(System.nanoTime() - start);
 		
 		// Debug
 //		printGraphStatistics();
@@ -132,8 +394,20 @@ public class TPartScheduler extends Task implements Scheduler {
 		
 		// Sink the graph
 		if (graph.getTxNodes().size() != 0) {
+			start = System.nanoTime();
 			Iterator<TPartStoredProcedureTask> plansTter = sinker.sink(graph);
-			dispatchToTaskMgr(plansTter);
+			sinkTime.addAndGet(System.nanoTime() - start);
+			numOfSunkBatches.incrementAndGet();
+			batchSizes.record(batchedTasks.size());
+			
+			if (dispatchQueue != null) {
+				// The plans are dispatched in the order of the batches
+				dispatchQueue.add(plansTter);
+			} else {
+				start = System.nanoTime();
+				dispatchToTaskMgr(plansTter);
+				dispatchTime.addAndGet(System.nanoTime() - start);
+			}
 		}
 	}
 	
@@ -148,24 +422,39 @@ public class TPartScheduler extends Task implements Scheduler {
 //		dispatchToTaskMgr(plansTter);
 //	}
 
-	private TPartStoredProcedureTask createStoredProcedureTask(StoredProcedureCall call) {
-		if (call.isNoOpStoredProcCall()) {
-			return new TPartStoredProcedureTask(call.getClientId(), call.getConnectionId(), call.getTxNum(), null);
-		} else {
-			TPartStoredProcedure<?> sp = factory.getStoredProcedure(call.getPid(), call.getTxNum());
-			sp.prepare(call.getPars());
-
-			if (!sp.isReadOnly())
-				DdRecoveryMgr.logRequest(call);
-
-			return new TPartStoredProcedureTask(call.getClientId(), call.getConnectionId(), call.getTxNum(), sp);
+	// May be called by multiple threads at the same time
+	private PreparedCall createStoredProcedureTask(StoredProcedureCall call) {
+		long start = System.nanoTime();
+		TPartStoredProcedure<?> sp = null;
+		try {
+			TPartStoredProcedureTask task;
+			if (call.isNoOpStoredProcCall()) {
+				task = new TPartStoredProcedureTask(call.getClientId(), call.getConnectionId(), call.getTxNum(), null);
+			} else {
+				sp = factory.getStoredProcedure(call.getPid(), call.getTxNum());
+				sp.prepare(call.getPars());
+				task = new TPartStoredProcedureTask(call.getClientId(), call.getConnectionId(), call.getTxNum(), sp);
+			}
+			task.setRequestId(call.getRequestId());
+			return new PreparedCall(call, task, null, null);
+		} catch (Exception e) {
+			// Keep the procedure, so that its transaction can be rolled back
+			return new PreparedCall(call, null, e, sp);
+		} finally {
+			prepareTime.addAndGet(System.nanoTime() - start);
 		}
 	}
+	
+	// Must be called in the order of transaction numbers
+	private void logRequest(StoredProcedureCall call, TPartStoredProcedureTask task) {
+		if (task.getProcedure() != null && !task.isReadOnly())
+			DdRecoveryMgr.logRequest(call);
+	}
 
 	private void dispatchToTaskMgr(Iterator<TPartStoredProcedureTask> plans) {
 		while (plans.hasNext()) {
 			TPartStoredProcedureTask p = plans.next();
-			VanillaDb.taskMgr().runTask(p);
+			StoredProcedureTaskExecutor.execute(p);
 		}
 	}
 	
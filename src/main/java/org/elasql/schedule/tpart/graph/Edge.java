@@ -12,6 +12,15 @@ public class Edge {
 		this.resource = res;
 	}
 
+	/**
+	 * Reuses this edge for another target and resource. Only the graph that
+	 * owns the edge should do this, after the edge has been cleared.
+	 */
+	void reset(Node target, PrimaryKey res) {
+		this.target = target;
+		this.resource = res;
+	}
+
 	public Node getTarget() {
 		return target;
 	}
@@ -1,15 +1,17 @@
 package org.elasql.schedule.tpart.graph;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class Node {
 
-	private Set<Edge> writeEdges;
+	// Edges are never equal to each other (see equals()), so a list holds
+	// the same edges as a set would without hashing them
+	private List<Edge> writeEdges;
 	private int partId;
 
 	public Node() {
-		writeEdges = new HashSet<Edge>();
+		writeEdges = new ArrayList<Edge>();
 	}
 	
 	public abstract double getWeight();
@@ -18,7 +20,7 @@ public abstract class Node {
 	
 	public abstract long getTxNum();
 
-	public Set<Edge> getWriteEdges() {
+	public List<Edge> getWriteEdges() {
 		return writeEdges;
 	}
 
@@ -1,7 +1,7 @@
 package org.elasql.schedule.tpart.graph;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -14,9 +14,15 @@ import org.elasql.storage.metadata.PartitionMetaMgr;
 public class TGraph {
 
 	protected SinkNode[] sinkNodes;
-	private List<TxNode> txNodes = new LinkedList<TxNode>();
+	private List<TxNode> txNodes = new ArrayList<TxNode>();
 	protected Map<PrimaryKey, TxNode> resPos = new HashMap<PrimaryKey, TxNode>();
 
+	// The nodes and edges are reused across batches, since a graph is
+	// cleared after each sink
+	private List<TxNode> freeNodes = new ArrayList<TxNode>();
+	private List<Edge> edgePool = new ArrayList<Edge>();
+	private int numOfUsedEdges = 0;
+
 	protected PartitionMetaMgr parMeta;
 
 	// Statistics (lazy evaluation)
@@ -42,7 +48,7 @@ public class TGraph {
 	 * @param assignedPartId the destination partition for the task
 	 */
 	public void insertTxNode(TPartStoredProcedureTask task, int assignedPartId) {
-		TxNode node = new TxNode(task, assignedPartId);
+		TxNode node = newTxNode(task, assignedPartId);
 		txNodes.add(node);
 
 		// Establish forward pushing edges
@@ -57,8 +63,8 @@ public class TGraph {
 				else
 					targetNode = getResourcePosition(res);
 
-				node.addReadEdges(new Edge(targetNode, res));
-				targetNode.addWriteEdges(new Edge(node, res));
+				node.addReadEdges(newEdge(targetNode, res));
+				targetNode.addWriteEdges(newEdge(node, res));
 			}
 		}
 
@@ -78,7 +84,7 @@ public class TGraph {
 		for (Entry<PrimaryKey, TxNode> resPosPair : resPos.entrySet()) {
 			PrimaryKey res = resPosPair.getKey();
 			TxNode node = resPosPair.getValue();
-			node.addWriteBackEdges(new Edge(sinkNodes[parMeta.getPartition(res)], res));
+			node.addWriteBackEdges(newEdge(sinkNodes[parMeta.getPartition(res)], res));
 		}
 		resPos.clear();
 	}
@@ -88,13 +94,52 @@ public class TGraph {
 		for (int i = 0; i < sinkNodes.length; i++)
 			sinkNodes[i].getWriteEdges().clear();
 
-		// remove all tx nodes
+		// return all tx nodes and edges to the pools
+		for (TxNode node : txNodes) {
+			node.release();
+			freeNodes.add(node);
+		}
 		txNodes.clear();
+		for (int i = 0; i < numOfUsedEdges; i++)
+			edgePool.get(i).reset(null, null);
+		numOfUsedEdges = 0;
 
 		// reset the statistics
 		isStatsCalculated = false;
 	}
 
+	/**
+	 * Gets an edge from the pool of the graph. An edge of the graph should be
+	 * created by this method (instead of the constructor of {@link Edge}),
+	 * so that it is reused after the graph is cleared.
+	 * 
+	 * @param target the target node of the edge
+	 * @param res    the key of the resource on the edge
+	 * @return the edge
+	 */
+	protected Edge newEdge(Node target, PrimaryKey res) {
+		if (numOfUsedEdges < edgePool.size()) {
+			Edge edge = edgePool.get(numOfUsedEdges++);
+			edge.reset(target, res);
+			return edge;
+		}
+
+		Edge edge = new Edge(target, res);
+		edgePool.add(edge);
+		numOfUsedEdges++;
+		return edge;
+	}
+
+	private TxNode newTxNode(TPartStoredProcedureTask task, int partId) {
+		TxNode node;
+		if (freeNodes.isEmpty())
+			node = new TxNode(task, partId);
+		else
+			node = freeNodes.remove(freeNodes.size() - 1);
+		node.reset(task, partId, txNodes.size());
+		return node;
+	}
+
 	/**
 	 * Get the node that produce the latest version of specified resource.
 	 * 
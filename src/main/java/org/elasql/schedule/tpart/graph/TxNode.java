@@ -1,29 +1,59 @@
 package org.elasql.schedule.tpart.graph;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
 
 public class TxNode extends Node {
 	
-	private Set<Edge> readEdges;
-	private Set<Edge> writeBackEdges;
+	private List<Edge> readEdges;
+	private List<Edge> writeBackEdges;
 	
 	private TPartStoredProcedureTask txTask;
+	private int id;
 	
 	public TxNode(TPartStoredProcedureTask txTask, int partId) {
 		this.txTask = txTask;
-		readEdges = new HashSet<Edge>();
-		writeBackEdges = new HashSet<Edge>();
+		readEdges = new ArrayList<Edge>();
+		writeBackEdges = new ArrayList<Edge>();
 		setPartId(partId);
 	}
 
-	public Set<Edge> getReadEdges() {
+	/**
+	 * Reuses this node for another task. The node must have been released,
+	 * so its edge lists are empty but keep their capacity.
+	 */
+	void reset(TPartStoredProcedureTask txTask, int partId, int id) {
+		this.txTask = txTask;
+		this.id = id;
+		setPartId(partId);
+	}
+
+	/**
+	 * Releases the task and the edges, so that a node waiting in the pool of
+	 * a graph does not keep them reachable.
+	 */
+	void release() {
+		txTask = null;
+		readEdges.clear();
+		getWriteEdges().clear();
+		writeBackEdges.clear();
+	}
+
+	/**
+	 * Returns the position of this node in the graph, which is also the order
+	 * of the insertion.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public List<Edge> getReadEdges() {
 		return readEdges;
 	}
 
-	public Set<Edge> getWriteBackEdges() {
+	public List<Edge> getWriteBackEdges() {
 		return writeBackEdges;
 	}
 
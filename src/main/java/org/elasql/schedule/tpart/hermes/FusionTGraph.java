@@ -4,7 +4,6 @@ import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import org.elasql.schedule.tpart.graph.Edge;
 import org.elasql.schedule.tpart.graph.Node;
 import org.elasql.schedule.tpart.graph.TGraph;
 import org.elasql.schedule.tpart.graph.TxNode;
@@ -34,7 +33,7 @@ public class FusionTGraph extends TGraph {
 				TxNode handler = resPos.remove(key);
 				if (handler != null) {
 					int originalLocation = parMeta.getPartition(key);
-					handler.addWriteBackEdges(new Edge(sinkNodes[originalLocation], key));
+					handler.addWriteBackEdges(newEdge(sinkNodes[originalLocation], key));
 				} else
 					noOneHandledKeys.add(key);
 			}
@@ -43,8 +42,8 @@ public class FusionTGraph extends TGraph {
 			TxNode lastNode = getLastInsertedTxNode();
 			for (PrimaryKey key : noOneHandledKeys) {
 				int originalLocation = parMeta.getPartition(key);
-				lastNode.addReadEdges(new Edge(getResourcePosition(key), key));
-				lastNode.addWriteBackEdges(new Edge(sinkNodes[originalLocation], key));
+				lastNode.addReadEdges(newEdge(getResourcePosition(key), key));
+				lastNode.addWriteBackEdges(newEdge(sinkNodes[originalLocation], key));
 			}
 		}
 		
@@ -59,7 +58,7 @@ public class FusionTGraph extends TGraph {
 //				node.addWriteBackEdges(new Edge(sinkNodes[parMeta.getPartition(res)], res));
 //			else
 			// Put the records on where they are
-				node.addWriteBackEdges(new Edge(sinkNodes[node.getPartId()], res));
+				node.addWriteBackEdges(newEdge(sinkNodes[node.getPartId()], res));
 		}
 		
 		// Clear the resource map for the next run
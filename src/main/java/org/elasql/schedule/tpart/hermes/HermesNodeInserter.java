@@ -31,6 +31,12 @@ public class HermesNodeInserter implements BatchNodeInserter {
 	private Set<Integer> overloadedParts = new HashSet<Integer>();
 	private Set<Integer> saturatedParts = new HashSet<Integer>();
 	private int overloadedThreshold;
+	
+	// The number of the edges of the current task (or node) from or to each
+	// partition, so that the remote edges for a partition are counted
+	// without going through the edges again
+	private int[] edgesPerPart = new int[PartitionMetaMgr.NUM_PARTITIONS];
+	private int numOfCountedEdges;
 
 	@Override
 	public void insertBatch(TGraph graph, List<TPartStoredProcedureTask> tasks) {
@@ -76,11 +82,12 @@ public class HermesNodeInserter implements BatchNodeInserter {
 	private void insertAccordingRemoteEdges(TGraph graph, TPartStoredProcedureTask task) {
 		int bestPartId = 0;
 		int minRemoteEdgeCount = task.getReadSet().size();
+		countReadEdgesPerPart(graph, task);
 		
 		for (int partId = 0; partId < partMgr.getCurrentNumOfParts(); partId++) {
 			
 			// Count the number of remote edge
-			int remoteEdgeCount = countRemoteReadEdge(graph, task, partId);
+			int remoteEdgeCount = numOfCountedEdges - edgesPerPart[partId];
 			
 			// Find the node in which the tx has fewest remote edges.
 			if (remoteEdgeCount < minRemoteEdgeCount) {
@@ -94,20 +101,18 @@ public class HermesNodeInserter implements BatchNodeInserter {
 		loadPerPart[bestPartId]++;
 	}
 	
-	private int countRemoteReadEdge(TGraph graph, TPartStoredProcedureTask task, int partId) {
-		int remoteEdgeCount = 0;
+	private void countReadEdgesPerPart(TGraph graph, TPartStoredProcedureTask task) {
+		Arrays.fill(edgesPerPart, 0);
+		numOfCountedEdges = 0;
 		
 		for (PrimaryKey key : task.getReadSet()) {
 			// Skip replicated records
 			if (partMgr.isFullyReplicated(key))
 				continue;
 			
-			if (graph.getResourcePosition(key).getPartId() != partId) {
-				remoteEdgeCount++;
-			}
+			edgesPerPart[graph.getResourcePosition(key).getPartId()]++;
+			numOfCountedEdges++;
 		}
-		
-		return remoteEdgeCount;
 	}
 	
 	private List<TxNode> findTxNodesOnOverloadedParts(TGraph graph, int batchSize) {
@@ -146,7 +151,8 @@ public class HermesNodeInserter implements BatchNodeInserter {
 			if (!overloadedParts.contains(currentPartId))
 				continue;
 			
-			int currentRemoteEdges = countRemoteReadWriteEdges(node, currentPartId);
+			countReadWriteEdgesPerPart(node);
+			int currentRemoteEdges = numOfCountedEdges - edgesPerPart[currentPartId];
 			int bestDelta = increaseTolerence + 1;
 			int bestPartId = currentPartId;
 			
@@ -165,7 +171,7 @@ public class HermesNodeInserter implements BatchNodeInserter {
 					continue;
 				
 				// Count remote edges
-				int remoteEdgeCount = countRemoteReadWriteEdges(node, partId);
+				int remoteEdgeCount = numOfCountedEdges - edgesPerPart[partId];
 				
 				// Calculate the difference
 				int delta = remoteEdgeCount - currentRemoteEdges;
@@ -206,25 +212,24 @@ public class HermesNodeInserter implements BatchNodeInserter {
 		return nextCandidates;
 	}
 	
-	private int countRemoteReadWriteEdges(TxNode node, int homePartId) {
-		int count = 0;
+	private void countReadWriteEdgesPerPart(TxNode node) {
+		Arrays.fill(edgesPerPart, 0);
+		numOfCountedEdges = 0;
 		
 		for (Edge readEdge : node.getReadEdges()) {
 			// Skip replicated records
 			if (partMgr.isFullyReplicated(readEdge.getResourceKey()))
 				continue;
 			
-			if (readEdge.getTarget().getPartId() != homePartId)
-				count++;
+			edgesPerPart[readEdge.getTarget().getPartId()]++;
+			numOfCountedEdges++;
 		}
 		
 		for (Edge writeEdge : node.getWriteEdges()) {
-			if (writeEdge.getTarget().getPartId() != homePartId)
-				count++;
+			edgesPerPart[writeEdge.getTarget().getPartId()]++;
+			numOfCountedEdges++;
 		}
 		
 		// Note: We do not consider write back edges because Hermes will make it local
-		
-		return count;
 	}
 }
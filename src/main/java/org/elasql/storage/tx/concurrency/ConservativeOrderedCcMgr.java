@@ -18,26 +18,122 @@ package org.elasql.storage.tx.concurrency;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.elasql.sql.PrimaryKey;
 import org.elasql.storage.tx.concurrency.ConservativeOrderedLockTable.LockType;
+import org.elasql.util.ElasqlProperties;
+import org.elasql.util.PeriodicalJob;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.record.RecordId;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.concurrency.ConcurrencyMgr;
 
 public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
+	private static Logger logger = Logger.getLogger(ConservativeOrderedCcMgr.class.getName());
+	
+	/**
+	 * The period (in milliseconds) of logging the statistics of the lock
+	 * table. 0 means no report.
+	 */
+	public static final long STATISTICS_REPORT_PERIOD;
+	
+	/**
+	 * Books the indexes of the tables of the booked keys in the lock table,
+	 * together with the keys. A transaction reading a table gets a shared
+	 * lock on its indexes, and a transaction writing a table gets an
+	 * exclusive one. The locks are granted in the deterministic order and
+	 * held until the transaction ends, so a transaction holding them skips
+	 * the crabbing locks on the index blocks and no phantom can happen. On
+	 * the other hand, the transactions writing the same table run one by
+	 * one. All the index accesses of a booking transaction must be on the
+	 * tables of its booked keys, as the record accesses through
+	 * {@link org.elasql.cache.VanillaCoreCrud} are.
+	 */
+	public static final boolean ENABLE_INDEX_BOOKING;
+	
 	protected static ConservativeOrderedLockTable lockTbl = new ConservativeOrderedLockTable();
 	
+	static {
+		ENABLE_INDEX_BOOKING = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				ConservativeOrderedCcMgr.class.getName() + ".ENABLE_INDEX_BOOKING", false);
+		STATISTICS_REPORT_PERIOD = ElasqlProperties.getLoader().getPropertyAsLong(
+				ConservativeOrderedCcMgr.class.getName() + ".STATISTICS_REPORT_PERIOD", 0);
+		
+		if (STATISTICS_REPORT_PERIOD > 0) {
+			PeriodicalJob reporter = new PeriodicalJob(STATISTICS_REPORT_PERIOD, Long.MAX_VALUE,
+					new Runnable() {
+						@Override
+						public void run() {
+							if (logger.isLoggable(Level.INFO))
+								logger.info("lock table statistics: " + lockTbl.getStatistics());
+						}
+					});
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the statistics of the lock table shared by all the
+	 * transactions.
+	 * 
+	 * @return the statistics of the lock table
+	 */
+	public static LockTableStatistics getLockTableStatistics() {
+		return lockTbl.getStatistics();
+	}
+	
+	/**
+	 * The object in the lock table standing for all the indexes of a table.
+	 */
+	private static class TableIndexes {
+		private final String tableName;
+		
+		TableIndexes(String tableName) {
+			this.tableName = tableName;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (obj == null || obj.getClass() != TableIndexes.class)
+				return false;
+			return tableName.equals(((TableIndexes) obj).tableName);
+		}
+		
+		@Override
+		public int hashCode() {
+			return tableName.hashCode() * 31 + 17;
+		}
+		
+		@Override
+		public String toString() {
+			return "indexes of " + tableName;
+		}
+	}
+	
 	// For normal operations - using conservative locking 
 	private Set<Object> bookedObjs, readObjs, writeObjs;
 
 	// For Indexes - using crabbing locking
 	private Set<BlockId> readIndexBlks = new HashSet<BlockId>();
 	private Set<BlockId> writtenIndexBlks = new HashSet<BlockId>();
+	
+	// Whether the transaction has booked the indexes it accesses
+	private final boolean bookIndexes;
+	private boolean indexesBooked;
 
 	public ConservativeOrderedCcMgr(long txNumber) {
+		this(txNumber, ENABLE_INDEX_BOOKING);
+	}
+
+	ConservativeOrderedCcMgr(long txNumber, boolean bookIndexes) {
 		txNum = txNumber;
+		this.bookIndexes = bookIndexes;
 		bookedObjs = new HashSet<Object>();
 		readObjs = new HashSet<Object>();
 		writeObjs = new HashSet<Object>();
@@ -51,6 +147,7 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 			
 			bookedObjs.add(key);
 			readObjs.add(key);
+			bookIndexes(key, readObjs);
 		}
 	}
 
@@ -70,6 +167,8 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 			
 			bookedObjs.addAll(keys);
 			readObjs.addAll(keys);
+			for (PrimaryKey key : keys)
+				bookIndexes(key, readObjs);
 		}
 	}
 	
@@ -81,6 +180,7 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 			
 			bookedObjs.add(key);
 			writeObjs.add(key);
+			bookIndexes(key, writeObjs);
 		}
 	}
 	
@@ -100,6 +200,8 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 			
 			bookedObjs.addAll(keys);
 			writeObjs.addAll(keys);
+			for (PrimaryKey key : keys)
+				bookIndexes(key, writeObjs);
 		}
 	}
 	
@@ -119,6 +221,46 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 				lockTbl.sLock(obj, txNum);
 	}
 	
+	/**
+	 * Request the locks which the transaction has booked without blocking the
+	 * calling thread. The callback is invoked once the last lock is granted.
+	 * It may be invoked by the calling thread before this method returns, or
+	 * by the thread of another transaction that hands a lock over, after it
+	 * leaves the lock table. Therefore, the callback should be short (e.g.
+	 * submitting a task to an executor).
+	 * 
+	 * @param onLocksReady
+	 *            the callback invoked when all the booked locks are granted
+	 */
+	public void requestLocksAsync(final Runnable onLocksReady) {
+		bookedObjs.clear();
+		
+		// Starts from one, so that the callback will not be
+		// invoked before all the locks are requested
+		final AtomicInteger remaining = new AtomicInteger(1);
+		Runnable onGranted = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() == 0)
+					onLocksReady.run();
+			}
+		};
+		
+		for (Object obj : writeObjs) {
+			remaining.incrementAndGet();
+			lockTbl.lockAsync(obj, txNum, LockType.X_LOCK, onGranted);
+		}
+		
+		for (Object obj : readObjs) {
+			if (!writeObjs.contains(obj)) {
+				remaining.incrementAndGet();
+				lockTbl.lockAsync(obj, txNum, LockType.S_LOCK, onGranted);
+			}
+		}
+		
+		onGranted.run();
+	}
+	
 	@Override
 	public void onTxCommit(Transaction tx) {
 		releaseIndexLocks();
@@ -136,8 +278,8 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 		// Next-key lock algorithm is non-deterministic. It may
 		// cause deadlocks during the execution. Therefore,
 		// we release the locks earlier to prevent deadlocks.
-		// However, phantoms due to update may happen.
-		// TODO: We need a deterministic algorithm to handle this.
+		// However, phantoms due to update may happen, unless
+		// the indexes are booked (see ENABLE_INDEX_BOOKING).
 		releaseIndexLocks();
 	}
 
@@ -187,6 +329,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void modifyLeafBlock(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.xLock(blk, txNum);
 		writtenIndexBlks.add(blk);
 	}
@@ -198,6 +343,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void readLeafBlock(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.sLock(blk, txNum);
 		readIndexBlks.add(blk);
 	}
@@ -210,6 +358,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabDownDirBlockForModification(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.xLock(blk, txNum);
 		writtenIndexBlks.add(blk);
 	}
@@ -221,6 +372,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabDownDirBlockForRead(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.sLock(blk, txNum);
 		readIndexBlks.add(blk);
 	}
@@ -232,6 +386,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabBackDirBlockForModification(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.release(blk, txNum, ConservativeOrderedLockTable.LockType.X_LOCK);
 		writtenIndexBlks.remove(blk);
 	}
@@ -243,6 +400,9 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 	 *            the block id
 	 */
 	public void crabBackDirBlockForRead(BlockId blk) {
+		if (indexesBooked)
+			return;
+		
 		lockTbl.release(blk, txNum, ConservativeOrderedLockTable.LockType.S_LOCK);
 		readIndexBlks.remove(blk);
 	}
@@ -274,6 +434,24 @@ public class ConservativeOrderedCcMgr extends ConcurrencyMgr {
 		// do nothing
 	}
 	
+	/**
+	 * Books the indexes of the table of the given key, if index booking is
+	 * enabled. The indexes are booked once, like the keys, and locked with
+	 * the mode of the given set.
+	 */
+	private void bookIndexes(PrimaryKey key, Set<Object> lockedObjs) {
+		if (!bookIndexes)
+			return;
+		
+		TableIndexes indexes = new TableIndexes(key.getTableName());
+		if (!bookedObjs.contains(indexes)) {
+			lockTbl.requestLock(indexes, txNum);
+			bookedObjs.add(indexes);
+		}
+		lockedObjs.add(indexes);
+		indexesBooked = true;
+	}
+	
 	private void releaseLocks() {
 		for (Object obj : writeObjs)
 			lockTbl.release(obj, txNum, LockType.X_LOCK);
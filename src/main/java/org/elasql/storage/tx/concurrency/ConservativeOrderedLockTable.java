@@ -15,37 +15,100 @@
  ******************************************************************************/
 package org.elasql.storage.tx.concurrency;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+import org.elasql.procedure.StoredProcedureTaskExecutor;
+import org.elasql.util.ElasqlProperties;
+import org.elasql.util.Histogram;
 import org.vanilladb.core.storage.tx.concurrency.LockAbortException;
 
 public class ConservativeOrderedLockTable {
 
 	private static final int NUM_ANCHOR = 1009;
 	
-	enum LockType {
+	// The lockers whose queues have grown larger than this are not reused
+	private static final int MAX_POOLED_QUEUE_CAPACITY = 64;
+	
+	// Queue lengths up to 2^15 are distinguished
+	private static final int QUEUE_LENGTH_BUCKETS = 17;
+	
+	/**
+	 * Decides how waiting transactions get their locks. By default, every
+	 * waiting thread of an anchor is woken up on each release and fights for
+	 * the lock again. With direct handoff enabled, each object keeps its own
+	 * list of waiters, and the releasing thread grants the lock to the waiters
+	 * in the order of the request queue and wakes up only those threads.
+	 * It is always enabled when the transactions run on virtual threads, since
+	 * waiting on an anchor pins a virtual thread to its carrier.
+	 */
+	public static final boolean ENABLE_DIRECT_HANDOFF;
+
+	static {
+		ENABLE_DIRECT_HANDOFF = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				ConservativeOrderedLockTable.class.getName() + ".ENABLE_DIRECT_HANDOFF", false)
+				|| StoredProcedureTaskExecutor.isUsingVirtualThreads();
+	}
+	
+	/**
+	 * The max number of empty lockers kept by each lock stripe for reuse. The
+	 * pool of the whole table is bounded by this number times the number of
+	 * stripes (1009).
+	 */
+	public static final int LOCKERS_POOL_SIZE_PER_STRIPE;
+
+	static {
+		LOCKERS_POOL_SIZE_PER_STRIPE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				ConservativeOrderedLockTable.class.getName() + ".LOCKERS_POOL_SIZE_PER_STRIPE", 8);
+	}
+	
+	public enum LockType {
 		IS_LOCK, IX_LOCK, S_LOCK, SIX_LOCK, X_LOCK
 	}
 
 	private class Lockers {
 		static final long NONE = -1; // for sixLocker, xLocker and wbLocker
 		
-		List<Long> sLockers, ixLockers, isLockers;
+		LongArrayQueue sLockers, ixLockers, isLockers;
 		// only one tx can hold xLock(sixLock) on single item
 		long sixLocker, xLocker;
-		Queue<Long> requestQueue;
+		LongArrayQueue requestQueue;
+		// the transactions parked for this object, in the order they arrived
+		// (only used in direct handoff mode)
+		List<Waiter> waiters;
+		// the next lockers in the pool of an anchor
+		Lockers nextFree;
 
 		Lockers() {
-			sLockers = new LinkedList<Long>();
-			ixLockers = new LinkedList<Long>();
-			isLockers = new LinkedList<Long>();
+			sLockers = new LongArrayQueue();
+			ixLockers = new LongArrayQueue();
+			isLockers = new LongArrayQueue();
+			sixLocker = NONE;
+			xLocker = NONE;
+			requestQueue = new LongArrayQueue();
+		}
+		
+		boolean isReusable() {
+			return requestQueue.capacity() <= MAX_POOLED_QUEUE_CAPACITY
+					&& sLockers.capacity() <= MAX_POOLED_QUEUE_CAPACITY
+					&& ixLockers.capacity() <= MAX_POOLED_QUEUE_CAPACITY
+					&& isLockers.capacity() <= MAX_POOLED_QUEUE_CAPACITY;
+		}
+		
+		void reset() {
+			sLockers.clear();
+			ixLockers.clear();
+			isLockers.clear();
 			sixLocker = NONE;
 			xLocker = NONE;
-			requestQueue = new LinkedList<Long>();
+			requestQueue.clear();
+			if (waiters != null)
+				waiters.clear();
 		}
 		
 		@Override
@@ -56,22 +119,73 @@ public class ConservativeOrderedLockTable {
 					", SIX: " + sixLocker +
 					", X: " + xLocker +
 					", requests: " + requestQueue +
+					", waiters: " + waiters +
 					"}";
 		}
 	}
+	
+	private static class Waiter {
+		final long txNum;
+		final LockType lockType;
+		// either a parked thread or a callback is notified when granted
+		final Thread thread;
+		final Runnable callback;
+		final long waitStart = System.nanoTime();
+		volatile boolean granted;
+		
+		Waiter(long txNum, LockType lockType, Thread thread, Runnable callback) {
+			this.txNum = txNum;
+			this.lockType = lockType;
+			this.thread = thread;
+			this.callback = callback;
+		}
+		
+		@Override
+		public String toString() {
+			return txNum + "(" + lockType + ")";
+		}
+	}
+	
+	private static class Anchor {
+		// A stack of empty lockers, guarded by this anchor
+		Lockers freeLockers;
+		int freeCount;
+	}
 
 	private Map<Object, Lockers> lockerMap = new ConcurrentHashMap<Object, Lockers>();
 
 	// Lock-stripping
-	private final Object anchors[] = new Object[NUM_ANCHOR];
+	private final Anchor anchors[] = new Anchor[NUM_ANCHOR];
+	
+	private final boolean directHandoff;
+	
+	// Statistics
+	private final AtomicInteger peakEntries = new AtomicInteger();
+	private final Histogram queueLengths = new Histogram(QUEUE_LENGTH_BUCKETS);
+	private final LongAdder[] acquisitions = newCounters();
+	private final LongAdder[] waits = newCounters();
+	private final LongAdder[] waitNanos = newCounters();
 
 	/**
 	 * Create and initialize a conservative ordered lock table.
 	 */
 	public ConservativeOrderedLockTable() {
+		this(ENABLE_DIRECT_HANDOFF);
+	}
+
+	/**
+	 * Create and initialize a conservative ordered lock table.
+	 * 
+	 * @param directHandoff
+	 *            whether the locks are handed over to the waiting
+	 *            transactions directly
+	 */
+	ConservativeOrderedLockTable(boolean directHandoff) {
+		this.directHandoff = directHandoff;
+		
 		// Initialize anchors
 		for (int i = 0; i < anchors.length; ++i) {
-			anchors[i] = new Object();
+			anchors[i] = new Anchor();
 		}
 	}
 
@@ -85,10 +199,39 @@ public class ConservativeOrderedLockTable {
 	 *            the transaction that requests the lock
 	 */
 	void requestLock(Object obj, long txNum) {
-		synchronized (getAnchor(obj)) {
-			Lockers lockers = prepareLockers(obj);
+		Anchor anchor = getAnchor(obj);
+		synchronized (anchor) {
+			Lockers lockers = prepareLockers(obj, anchor);
 			lockers.requestQueue.add(txNum);
+			queueLengths.record(lockers.requestQueue.size());
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the statistics of this lock table.
+	 * 
+	 * @return the statistics
+	 */
+	public LockTableStatistics getStatistics() {
+		int pooledLockers = 0;
+		for (Anchor anchor : anchors) {
+			synchronized (anchor) {
+				pooledLockers += anchor.freeCount;
+			}
+		}
+		
+		int numOfTypes = LockType.values().length;
+		long[] acquisitionCounts = new long[numOfTypes];
+		long[] waitCounts = new long[numOfTypes];
+		long[] waitTimes = new long[numOfTypes];
+		for (int i = 0; i < numOfTypes; i++) {
+			acquisitionCounts[i] = acquisitions[i].sum();
+			waitCounts[i] = waits[i].sum();
+			waitTimes[i] = waitNanos[i].sum();
 		}
+		
+		return new LockTableStatistics(lockerMap.size(), peakEntries.get(), pooledLockers,
+				queueLengths.getCounts(), queueLengths.toString(), acquisitionCounts, waitCounts, waitTimes);
 	}
 
 	/**
@@ -104,29 +247,37 @@ public class ConservativeOrderedLockTable {
 	 * 
 	 */
 	void sLock(Object obj, long txNum) {
-		Object anchor = getAnchor(obj);
+		if (directHandoff) {
+			lockWithHandoff(obj, txNum, LockType.S_LOCK);
+			return;
+		}
+		
+		Anchor anchor = getAnchor(obj);
 
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
+		List<Runnable> callbacks = null;
+		try {
+			synchronized (anchor) {
+				Lockers lockers = prepareLockers(obj, anchor);
 
-			// check if it have already held the lock
-			if (hasSLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
+				// check if it have already held the lock
+				if (hasSLock(lockers, txNum)) {
+					lockers.requestQueue.remove(txNum);
+					callbacks = handOff(lockers, callbacks);
+					return;
+				}
 
-			try {
-				// For debug
+				try {
+					// For debug
 //				String name = Thread.currentThread().getName();
 				
-				/*
-				 * If this transaction is not the first one requesting this
-				 * object or it cannot get lock on this object, it must wait.
-				 */
-				Long head = lockers.requestQueue.peek();
-				while (!sLockable(lockers, txNum) || (head != null && head.longValue() != txNum)) {
+					/*
+					 * If this transaction is not the first one requesting this
+					 * object or it cannot get lock on this object, it must wait.
+					 */
+					long waitStart = 0;
+					while (!sLockable(lockers, txNum) || !isHeadOrEmpty(lockers, txNum)) {
 
-					// For debug
+						// For debug
 //					if (lockers.xLocker != -1) {
 //						Thread.currentThread().setName(String.format(
 //								"%s waits for slock of %s from tx.%d (xlock holder)",
@@ -134,36 +285,44 @@ public class ConservativeOrderedLockTable {
 //					} else {
 //						Thread.currentThread().setName(String.format(
 //								"%s waits for slock of %s from tx.%d (head of queue)",
-//								name, obj, head));
+//								name, obj, lockers.requestQueue.peek()));
 //					}
 					
-					anchor.wait();
+						if (waitStart == 0)
+							waitStart = System.nanoTime();
+						anchor.wait();
 
-					// Since a transaction may delete the lockers of an object
-					// after releasing them, it should call prepareLockers()
-					// here, instead of using lockers it obtains earlier.
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
+						// Since a transaction may delete the lockers of an object
+						// after releasing them, it should call prepareLockers()
+						// here, instead of using lockers it obtains earlier.
+						lockers = prepareLockers(obj, anchor);
+					}
 
-				// For debug
+					// For debug
 //				Thread.currentThread().setName(name);
 				
-				if (!sLockable(lockers, txNum))
-					throw new LockAbortException();
+					if (!sLockable(lockers, txNum))
+						throw new LockAbortException();
 
-				// get the s lock
-				lockers.requestQueue.poll();
-				lockers.sLockers.add(txNum);
+					// get the s lock
+					leaveQueue(lockers);
+					lockers.sLockers.add(txNum);
+					recordAcquisition(LockType.S_LOCK, waitStart);
+					callbacks = handOff(lockers, callbacks);
 
-				// Wake up other waiting transactions (on this object) to let
-				// them
-				// fight for the lockers on this object.
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new LockAbortException("Interrupted when waitting for lock");
+					// Wake up other waiting transactions (on this object) to let
+					// them
+					// fight for the lockers on this object.
+					anchor.notifyAll();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					throw new LockAbortException("Interrupted when waitting for lock");
+				}
 			}
+		} finally {
+			// Run the callbacks of the granted asynchronous requests
+			// after leaving the anchor
+			runCallbacks(callbacks);
 		}
 	}
 
@@ -180,27 +339,35 @@ public class ConservativeOrderedLockTable {
 	 * 
 	 */
 	void xLock(Object obj, long txNum) {
+		if (directHandoff) {
+			lockWithHandoff(obj, txNum, LockType.X_LOCK);
+			return;
+		}
+		
 		// See the comments in sLock(..) for the explanation of the algorithm
-		Object anchor = getAnchor(obj);
+		Anchor anchor = getAnchor(obj);
 
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
+		List<Runnable> callbacks = null;
+		try {
+			synchronized (anchor) {
+				Lockers lockers = prepareLockers(obj, anchor);
 
-			if (hasXLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
+				if (hasXLock(lockers, txNum)) {
+					lockers.requestQueue.remove(txNum);
+					callbacks = handOff(lockers, callbacks);
+					return;
+				}
 
-			try {
-				// For debug
+				try {
+					// For debug
 //				String name = Thread.currentThread().getName();
 				
-				// long timestamp = System.currentTimeMillis();
-				Long head = lockers.requestQueue.peek();
-				while ((!xLockable(lockers, txNum) || (head != null && head.longValue() != txNum))
-				/* && !waitingTooLong(timestamp) */) {
+					// long timestamp = System.currentTimeMillis();
+					long waitStart = 0;
+					while ((!xLockable(lockers, txNum) || !isHeadOrEmpty(lockers, txNum))
+					/* && !waitingTooLong(timestamp) */) {
 					
-					// For debug
+						// For debug
 //					if (lockers.xLocker != -1) {
 //						Thread.currentThread().setName(String.format(
 //								"%s waits for xlock of %s from tx.%d (xlock holder)",
@@ -212,28 +379,36 @@ public class ConservativeOrderedLockTable {
 //					} else {
 //						Thread.currentThread().setName(String.format(
 //								"%s waits for xlock of %s from tx.%d (head of queue)",
-//								name, obj, head));
+//								name, obj, lockers.requestQueue.peek()));
 //					}
 					
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
-				}
+						if (waitStart == 0)
+							waitStart = System.nanoTime();
+						anchor.wait();
+						lockers = prepareLockers(obj, anchor);
+					}
 
-				// For debug
+					// For debug
 //				Thread.currentThread().setName(name);
 				
-				// if (!xLockable(lockers, txNum))
-				// throw new LockAbortException();
-				// get the x lock
-				lockers.requestQueue.poll();
-				lockers.xLocker = txNum;
-
-				// An X lock blocks all other lockers, so it don't need to
-				// wake up anyone.
-			} catch (InterruptedException e) {
-				throw new LockAbortException("Interrupted when waitting for lock");
+					// if (!xLockable(lockers, txNum))
+					// throw new LockAbortException();
+					// get the x lock
+					leaveQueue(lockers);
+					lockers.xLocker = txNum;
+					recordAcquisition(LockType.X_LOCK, waitStart);
+					callbacks = handOff(lockers, callbacks);
+
+					// An X lock blocks all other lockers, so it don't need to
+					// wake up anyone.
+				} catch (InterruptedException e) {
+					throw new LockAbortException("Interrupted when waitting for lock");
+				}
 			}
+		} finally {
+			// Run the callbacks of the granted asynchronous requests
+			// after leaving the anchor
+			runCallbacks(callbacks);
 		}
 	}
 
@@ -250,35 +425,51 @@ public class ConservativeOrderedLockTable {
 	 * 
 	 */
 	void sixLock(Object obj, long txNum) {
+		if (directHandoff) {
+			lockWithHandoff(obj, txNum, LockType.SIX_LOCK);
+			return;
+		}
+		
 		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
+		Anchor anchor = getAnchor(obj);
 		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
+		List<Runnable> callbacks = null;
+		try {
+			synchronized (anchor) {
+				Lockers lockers = prepareLockers(obj, anchor);
 
-			if (hasSixLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!sixLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
+				if (hasSixLock(lockers, txNum)) {
+					lockers.requestQueue.remove(txNum);
+					callbacks = handOff(lockers, callbacks);
+					return;
 				}
 
-				// get the six lock
-				lockers.requestQueue.poll();
-				lockers.sixLocker = txNum;
+				try {
+					long waitStart = 0;
+					while (!sixLockable(lockers, txNum)
+							|| !isHeadOrEmpty(lockers, txNum)) {
+						if (waitStart == 0)
+							waitStart = System.nanoTime();
+						anchor.wait();
+						lockers = prepareLockers(obj, anchor);
+					}
+
+					// get the six lock
+					leaveQueue(lockers);
+					lockers.sixLocker = txNum;
+					recordAcquisition(LockType.SIX_LOCK, waitStart);
+					callbacks = handOff(lockers, callbacks);
 				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
+					anchor.notifyAll();
+				} catch (InterruptedException e) {
+					throw new LockAbortException(
+							"Interrupted when waitting for lock");
+				}
 			}
+		} finally {
+			// Run the callbacks of the granted asynchronous requests
+			// after leaving the anchor
+			runCallbacks(callbacks);
 		}
 	}
 
@@ -294,35 +485,51 @@ public class ConservativeOrderedLockTable {
 	 *            a transaction number
 	 */
 	void isLock(Object obj, long txNum) {
+		if (directHandoff) {
+			lockWithHandoff(obj, txNum, LockType.IS_LOCK);
+			return;
+		}
+		
 		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
+		Anchor anchor = getAnchor(obj);
 		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
+		List<Runnable> callbacks = null;
+		try {
+			synchronized (anchor) {
+				Lockers lockers = prepareLockers(obj, anchor);
 
-			if (hasIsLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
-
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!isLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
+				if (hasIsLock(lockers, txNum)) {
+					lockers.requestQueue.remove(txNum);
+					callbacks = handOff(lockers, callbacks);
+					return;
 				}
 
-				// get the is lock
-				lockers.requestQueue.poll();
-				lockers.isLockers.add(txNum);
+				try {
+					long waitStart = 0;
+					while (!isLockable(lockers, txNum)
+							|| !isHeadOrEmpty(lockers, txNum)) {
+						if (waitStart == 0)
+							waitStart = System.nanoTime();
+						anchor.wait();
+						lockers = prepareLockers(obj, anchor);
+					}
+
+					// get the is lock
+					leaveQueue(lockers);
+					lockers.isLockers.add(txNum);
+					recordAcquisition(LockType.IS_LOCK, waitStart);
+					callbacks = handOff(lockers, callbacks);
 				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
+					anchor.notifyAll();
+				} catch (InterruptedException e) {
+					throw new LockAbortException(
+							"Interrupted when waitting for lock");
+				}
 			}
+		} finally {
+			// Run the callbacks of the granted asynchronous requests
+			// after leaving the anchor
+			runCallbacks(callbacks);
 		}
 	}
 
@@ -338,35 +545,51 @@ public class ConservativeOrderedLockTable {
 	 *            a transaction number
 	 */
 	void ixLock(Object obj, long txNum) {
+		if (directHandoff) {
+			lockWithHandoff(obj, txNum, LockType.IX_LOCK);
+			return;
+		}
+		
 		// See the comments in sLock(..) for the explanation of the algorithm 
-		Object anchor = getAnchor(obj);
+		Anchor anchor = getAnchor(obj);
 		
-		synchronized (anchor) {
-			Lockers lockers = prepareLockers(obj);
-
-			if (hasIxLock(lockers, txNum)) {
-				lockers.requestQueue.remove(txNum);
-				return;
-			}
+		List<Runnable> callbacks = null;
+		try {
+			synchronized (anchor) {
+				Lockers lockers = prepareLockers(obj, anchor);
 
-			try {
-				Long head = lockers.requestQueue.peek();
-				while (!ixLockable(lockers, txNum)
-						|| (head != null && head.longValue() != txNum)) {
-					anchor.wait();
-					lockers = prepareLockers(obj);
-					head = lockers.requestQueue.peek();
+				if (hasIxLock(lockers, txNum)) {
+					lockers.requestQueue.remove(txNum);
+					callbacks = handOff(lockers, callbacks);
+					return;
 				}
 
-				// get the ix lock
-				lockers.requestQueue.poll();
-				lockers.ixLockers.add(txNum);
+				try {
+					long waitStart = 0;
+					while (!ixLockable(lockers, txNum)
+							|| !isHeadOrEmpty(lockers, txNum)) {
+						if (waitStart == 0)
+							waitStart = System.nanoTime();
+						anchor.wait();
+						lockers = prepareLockers(obj, anchor);
+					}
+
+					// get the ix lock
+					leaveQueue(lockers);
+					lockers.ixLockers.add(txNum);
+					recordAcquisition(LockType.IX_LOCK, waitStart);
+					callbacks = handOff(lockers, callbacks);
 				
-				anchor.notifyAll();
-			} catch (InterruptedException e) {
-				throw new LockAbortException(
-						"Interrupted when waitting for lock");
+					anchor.notifyAll();
+				} catch (InterruptedException e) {
+					throw new LockAbortException(
+							"Interrupted when waitting for lock");
+				}
 			}
+		} finally {
+			// Run the callbacks of the granted asynchronous requests
+			// after leaving the anchor
+			runCallbacks(callbacks);
 		}
 	}
 
@@ -383,24 +606,283 @@ public class ConservativeOrderedLockTable {
 	 *            the type of lock
 	 */
 	void release(Object obj, long txNum, LockType lockType) {
-		Object anchor = getAnchor(obj);
+		Anchor anchor = getAnchor(obj);
+		List<Runnable> callbacks;
 		synchronized (anchor) {
 			Lockers lks = lockerMap.get(obj);
 			
 			if (lks == null)
 				return;
 			
-			releaseLock(lks, txNum, lockType, anchor);
+			releaseLock(lks, txNum, lockType);
+			
+			// Hand the lock over to the parked transactions or the
+			// asynchronous requests
+			callbacks = handOff(lks, null);
 
 			// Remove the locker, if there is no other transaction
 			// holding it
-			if (!sLocked(lks) && !xLocked(lks) && !sixLocked(lks)
-					&& !isLocked(lks) && !ixLocked(lks)
-					&& lks.requestQueue.isEmpty())
-				lockerMap.remove(obj);
+			reclaimIfIdle(obj, lks, anchor);
 			
-			// There might be someone waiting for the lock
-			anchor.notifyAll();
+			// There might be someone waiting for the lock. In direct handoff
+			// mode, the waiters have been handed the lock over above.
+			if (!directHandoff)
+				anchor.notifyAll();
+		}
+		
+		runCallbacks(callbacks);
+	}
+	
+	/**
+	 * Requests the specified type of lock without blocking the calling
+	 * thread. The given callback is invoked once the lock is granted. If the
+	 * lock can be granted right away, the callback is invoked by the calling
+	 * thread before this method returns. Otherwise, it is invoked by the
+	 * thread handing the lock over, after that thread leaves the anchor of
+	 * the object. Since that thread is usually releasing the locks of another
+	 * transaction, the callback should be short.
+	 * 
+	 * @param obj
+	 *            an object to be locked
+	 * @param txNum
+	 *            a transaction number
+	 * @param lockType
+	 *            the type of lock
+	 * @param onGranted
+	 *            the callback invoked when the lock is granted
+	 */
+	void lockAsync(Object obj, long txNum, LockType lockType, Runnable onGranted) {
+		Anchor anchor = getAnchor(obj);
+		List<Runnable> callbacks;
+		
+		synchronized (anchor) {
+			Lockers lockers = prepareLockers(obj, anchor);
+			if (!tryGrant(lockers, txNum, lockType)) {
+				addWaiter(lockers, new Waiter(txNum, lockType, null, onGranted));
+				return;
+			}
+			callbacks = handOff(lockers, null);
+		}
+		
+		try {
+			onGranted.run();
+		} finally {
+			runCallbacks(callbacks);
+		}
+	}
+	
+	/**
+	 * Grants the specified type of lock in direct handoff mode. If the lock
+	 * cannot be granted right away, the calling thread registers itself as a
+	 * waiter of the object and parks until a releasing transaction hands the
+	 * lock over to it.
+	 */
+	private void lockWithHandoff(Object obj, long txNum, LockType lockType) {
+		Anchor anchor = getAnchor(obj);
+		Waiter waiter = null;
+		List<Runnable> callbacks = null;
+		
+		synchronized (anchor) {
+			Lockers lockers = prepareLockers(obj, anchor);
+			if (tryGrant(lockers, txNum, lockType)) {
+				callbacks = handOff(lockers, null);
+			} else {
+				waiter = new Waiter(txNum, lockType, Thread.currentThread(), null);
+				addWaiter(lockers, waiter);
+			}
+		}
+		
+		if (waiter == null) {
+			runCallbacks(callbacks);
+			return;
+		}
+		
+		// Park outside of the anchor so that the other transactions
+		// on the same anchor will not be blocked
+		while (!waiter.granted) {
+			LockSupport.park(this);
+			
+			if (Thread.interrupted()) {
+				synchronized (anchor) {
+					if (!waiter.granted) {
+						Lockers lockers = lockerMap.get(obj);
+						if (lockers != null) {
+							lockers.waiters.remove(waiter);
+							reclaimIfIdle(obj, lockers, anchor);
+						}
+						throw new LockAbortException("Interrupted when waitting for lock");
+					}
+				}
+				// The lock has been handed over, so we just keep the status
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Hands the lock of an object over to its waiters. The waiters are served
+	 * in the order of the request queue, and the ones that do not book the
+	 * object are served in their arrival order after the queue drains. It
+	 * stops at the first waiter that cannot get the lock, so the order of the
+	 * request queue will never be violated. The caller must hold the anchor
+	 * of the object.<br>
+	 * <br>
+	 * The parked threads are woken up right away, while the callbacks of the
+	 * asynchronous requests are only collected, and the caller must run them
+	 * by {@link #runCallbacks(List)} after leaving the anchor.
+	 * 
+	 * @param callbacks
+	 *            the list collecting the callbacks, or null if nothing has
+	 *            been collected yet
+	 * @return the list of the collected callbacks, or null if there is none
+	 */
+	private List<Runnable> handOff(Lockers lks, List<Runnable> callbacks) {
+		while (hasWaiters(lks)) {
+			int idx = 0;
+			if (!lks.requestQueue.isEmpty()) {
+				idx = indexOfWaiter(lks, lks.requestQueue.peek());
+				
+				// The head has not asked for the lock yet.
+				// It will check the lock by itself later.
+				if (idx == -1)
+					return callbacks;
+			}
+			
+			Waiter next = lks.waiters.get(idx);
+			if (!lockable(lks, next.txNum, next.lockType))
+				return callbacks;
+			
+			leaveQueue(lks);
+			lks.waiters.remove(idx);
+			grant(lks, next.txNum, next.lockType);
+			recordAcquisition(next.lockType, next.waitStart);
+			
+			next.granted = true;
+			if (next.thread != null) {
+				LockSupport.unpark(next.thread);
+			} else {
+				if (callbacks == null)
+					callbacks = new ArrayList<Runnable>();
+				callbacks.add(next.callback);
+			}
+		}
+		return callbacks;
+	}
+	
+	private void runCallbacks(List<Runnable> callbacks) {
+		if (callbacks == null)
+			return;
+		for (Runnable callback : callbacks)
+			callback.run();
+	}
+	
+	/**
+	 * Grants the lock if the transaction has held it, or if it is lockable
+	 * and the transaction is at the head of the request queue. The caller
+	 * should hand the lock over to the waiters after it is granted.
+	 * 
+	 * @return true if the lock is granted
+	 */
+	private boolean tryGrant(Lockers lks, long txNum, LockType lockType) {
+		// check if it have already held the lock
+		if (hasLock(lks, txNum, lockType)) {
+			lks.requestQueue.remove(txNum);
+			return true;
+		}
+		
+		if (lockable(lks, txNum, lockType) && isHeadOrEmpty(lks, txNum)) {
+			leaveQueue(lks);
+			grant(lks, txNum, lockType);
+			recordAcquisition(lockType, 0);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private void addWaiter(Lockers lks, Waiter waiter) {
+		if (lks.waiters == null)
+			lks.waiters = new ArrayList<Waiter>();
+		lks.waiters.add(waiter);
+	}
+	
+	private boolean hasWaiters(Lockers lks) {
+		return lks.waiters != null && !lks.waiters.isEmpty();
+	}
+	
+	private int indexOfWaiter(Lockers lks, long txNum) {
+		for (int i = 0; i < lks.waiters.size(); i++)
+			if (lks.waiters.get(i).txNum == txNum)
+				return i;
+		return -1;
+	}
+	
+	private boolean isHeadOrEmpty(Lockers lks, long txNum) {
+		return lks.requestQueue.isEmpty() || lks.requestQueue.peek() == txNum;
+	}
+	
+	/**
+	 * Removes the head of the request queue, which is either the transaction
+	 * getting the lock or nothing if it did not book the object.
+	 */
+	private void leaveQueue(Lockers lks) {
+		if (!lks.requestQueue.isEmpty())
+			lks.requestQueue.poll();
+	}
+	
+	private void grant(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			lks.xLocker = txNum;
+			return;
+		case SIX_LOCK:
+			lks.sixLocker = txNum;
+			return;
+		case S_LOCK:
+			lks.sLockers.add(txNum);
+			return;
+		case IS_LOCK:
+			lks.isLockers.add(txNum);
+			return;
+		case IX_LOCK:
+			lks.ixLockers.add(txNum);
+			return;
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+	
+	private boolean hasLock(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			return hasXLock(lks, txNum);
+		case SIX_LOCK:
+			return hasSixLock(lks, txNum);
+		case S_LOCK:
+			return hasSLock(lks, txNum);
+		case IS_LOCK:
+			return hasIsLock(lks, txNum);
+		case IX_LOCK:
+			return hasIxLock(lks, txNum);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+	
+	private boolean lockable(Lockers lks, long txNum, LockType lockType) {
+		switch (lockType) {
+		case X_LOCK:
+			return xLockable(lks, txNum);
+		case SIX_LOCK:
+			return sixLockable(lks, txNum);
+		case S_LOCK:
+			return sLockable(lks, txNum);
+		case IS_LOCK:
+			return isLockable(lks, txNum);
+		case IX_LOCK:
+			return ixLockable(lks, txNum);
+		default:
+			throw new IllegalArgumentException();
 		}
 	}
 
@@ -411,59 +893,97 @@ public class ConservativeOrderedLockTable {
 	 *            the target object
 	 * @return the anchor for obj
 	 */
-	private Object getAnchor(Object obj) {
+	private Anchor getAnchor(Object obj) {
 		int code = obj.hashCode();
 		code = Math.abs(code); // avoid negative value
 		return anchors[code % anchors.length];
 	}
 
-	private Lockers prepareLockers(Object obj) {
+	private Lockers prepareLockers(Object obj, Anchor anchor) {
 		Lockers lockers = lockerMap.get(obj);
 		if (lockers == null) {
-			lockers = new Lockers();
+			// Reuse an empty lockers of this anchor if there is one
+			lockers = anchor.freeLockers;
+			if (lockers != null) {
+				anchor.freeLockers = lockers.nextFree;
+				anchor.freeCount--;
+				lockers.nextFree = null;
+			} else
+				lockers = new Lockers();
 			lockerMap.put(obj, lockers);
+			
+			// Update the peak number of entries
+			int entries = lockerMap.size();
+			int peak = peakEntries.get();
+			while (entries > peak && !peakEntries.compareAndSet(peak, entries))
+				peak = peakEntries.get();
 		}
 		return lockers;
 	}
+	
+	/**
+	 * Records a lock acquisition for statistics.
+	 * 
+	 * @param waitStart
+	 *            the time (from {@link System#nanoTime()}) that the
+	 *            transaction started waiting, or 0 if it did not wait
+	 */
+	private void recordAcquisition(LockType lockType, long waitStart) {
+		int type = lockType.ordinal();
+		acquisitions[type].increment();
+		if (waitStart != 0) {
+			waits[type].increment();
+			waitNanos[type].add(System.nanoTime() - waitStart);
+		}
+	}
+	
+	private static LongAdder[] newCounters() {
+		LongAdder[] counters = new LongAdder[LockType.values().length];
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+	
+	/**
+	 * Removes the lockers of the object if no transaction holds, books or
+	 * waits for it, and keeps the lockers in the pool of the anchor for
+	 * reuse. The caller must hold the anchor.
+	 */
+	private void reclaimIfIdle(Object obj, Lockers lks, Anchor anchor) {
+		if (sLocked(lks) || xLocked(lks) || sixLocked(lks)
+				|| isLocked(lks) || ixLocked(lks)
+				|| !lks.requestQueue.isEmpty() || hasWaiters(lks))
+			return;
+		
+		lockerMap.remove(obj);
+		
+		if (anchor.freeCount < LOCKERS_POOL_SIZE_PER_STRIPE && lks.isReusable()) {
+			lks.reset();
+			lks.nextFree = anchor.freeLockers;
+			anchor.freeLockers = lks;
+			anchor.freeCount++;
+		}
+	}
 
-	private void releaseLock(Lockers lks, long txNum, LockType lockType,
-			Object anchor) {
+	// The caller wakes up the waiters, if there is any
+	private void releaseLock(Lockers lks, long txNum, LockType lockType) {
 		switch (lockType) {
 		case X_LOCK:
-			if (lks.xLocker == txNum) {
+			if (lks.xLocker == txNum)
 				lks.xLocker = -1;
-				anchor.notifyAll();
-			}
 			return;
 		case SIX_LOCK:
-			if (lks.sixLocker == txNum) {
+			if (lks.sixLocker == txNum)
 				lks.sixLocker = -1;
-				anchor.notifyAll();
-			}
 			return;
 		case S_LOCK:
-			List<Long> sl = lks.sLockers;
-			if (sl != null && sl.contains(txNum)) {
-				sl.remove((Long) txNum);
-				if (sl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.sLockers.remove(txNum);
 			return;
 		case IS_LOCK:
-			List<Long> isl = lks.isLockers;
-			if (isl != null && isl.contains(txNum)) {
-				isl.remove((Long) txNum);
-				if (isl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.isLockers.remove(txNum);
 			return;
 		case IX_LOCK:
-			List<Long> ixl = lks.ixLockers;
-			if (ixl != null && ixl.contains(txNum)) {
-				ixl.remove((Long) txNum);
-				if (ixl.isEmpty())
-					anchor.notifyAll();
-			}
+			lks.ixLockers.remove(txNum);
 			return;
 		default:
 			throw new IllegalArgumentException();
@@ -525,8 +1045,8 @@ public class ConservativeOrderedLockTable {
 
 	private boolean isTheOnlyIsLocker(Lockers lks, long txNum) {
 		if (lks != null) {
-			for (Object o : lks.isLockers)
-				if (!o.equals(txNum))
+			for (int i = 0; i < lks.isLockers.size(); i++)
+				if (lks.isLockers.get(i) != txNum)
 					return false;
 			return true;
 		}
@@ -535,8 +1055,8 @@ public class ConservativeOrderedLockTable {
 
 	private boolean isTheOnlyIxLocker(Lockers lks, long txNum) {
 		if (lks != null) {
-			for (Object o : lks.ixLockers)
-				if (!o.equals(txNum))
+			for (int i = 0; i < lks.ixLockers.size(); i++)
+				if (lks.ixLockers.get(i) != txNum)
 					return false;
 			return true;
 		}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.storage.tx.concurrency;
+
+import org.elasql.storage.tx.concurrency.ConservativeOrderedLockTable.LockType;
+
+/**
+ * A snapshot of the statistics of a {@link ConservativeOrderedLockTable}.
+ */
+public class LockTableStatistics {
+	
+	private final int liveEntries, peakEntries, pooledLockers;
+	private final long[] queueLengthCounts;
+	private final String queueLengthHistogram;
+	private final long[] acquisitions, waits, waitNanos;
+	
+	LockTableStatistics(int liveEntries, int peakEntries, int pooledLockers, long[] queueLengthCounts,
+			String queueLengthHistogram, long[] acquisitions, long[] waits, long[] waitNanos) {
+		this.liveEntries = liveEntries;
+		this.peakEntries = peakEntries;
+		this.pooledLockers = pooledLockers;
+		this.queueLengthCounts = queueLengthCounts;
+		this.queueLengthHistogram = queueLengthHistogram;
+		this.acquisitions = acquisitions;
+		this.waits = waits;
+		this.waitNanos = waitNanos;
+	}
+	
+	/**
+	 * Returns the number of objects that currently have lockers.
+	 */
+	public int getLiveEntries() {
+		return liveEntries;
+	}
+	
+	/**
+	 * Returns the max number of objects that have had lockers at the same
+	 * time.
+	 */
+	public int getPeakEntries() {
+		return peakEntries;
+	}
+	
+	/**
+	 * Returns the number of empty lockers kept for reuse.
+	 */
+	public int getPooledLockers() {
+		return pooledLockers;
+	}
+	
+	/**
+	 * Returns the histogram of the lengths of request queues, sampled each
+	 * time a transaction books an object.
+	 */
+	public String getQueueLengthHistogram() {
+		return queueLengthHistogram;
+	}
+	
+	public int getNumOfQueueLengthBuckets() {
+		return queueLengthCounts.length;
+	}
+	
+	/**
+	 * Returns the number of sampled request queues whose lengths fall in the
+	 * given bucket of the histogram. Bucket 0 counts the empty queues, bucket
+	 * i (i > 0) counts the lengths in [2^(i-1), 2^i), and the last bucket
+	 * also counts all the longer queues (see {@link org.elasql.util.Histogram}).
+	 */
+	public long getQueueLengthCount(int bucket) {
+		return queueLengthCounts[bucket];
+	}
+	
+	public long getAcquisitionCount(LockType lockType) {
+		return acquisitions[lockType.ordinal()];
+	}
+	
+	/**
+	 * Returns the number of acquisitions that could not be granted right away.
+	 */
+	public long getWaitCount(LockType lockType) {
+		return waits[lockType.ordinal()];
+	}
+	
+	/**
+	 * Returns the average time that an acquisition of the given type waits,
+	 * in microseconds. The acquisitions granted right away count as no
+	 * waiting, so it shows how much the lock type slows transactions down.
+	 */
+	public double getAverageWaitTime(LockType lockType) {
+		long count = acquisitions[lockType.ordinal()];
+		if (count == 0)
+			return 0.0;
+		return waitNanos[lockType.ordinal()] / 1000.0 / count;
+	}
+	
+	/**
+	 * Returns the average time that an acquisition of the given type waits,
+	 * in microseconds, among the ones that could not be granted right away.
+	 * It shows how long a conflict lasts.
+	 */
+	public double getAverageWaitTimeOfWaits(LockType lockType) {
+		long count = waits[lockType.ordinal()];
+		if (count == 0)
+			return 0.0;
+		return waitNanos[lockType.ordinal()] / 1000.0 / count;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("live entries: ").append(liveEntries);
+		sb.append(", peak entries: ").append(peakEntries);
+		sb.append(", pooled lockers: ").append(pooledLockers);
+		sb.append(", queue lengths: ").append(queueLengthHistogram);
+		for (LockType type : LockType.values()) {
+			if (acquisitions[type.ordinal()] == 0)
+				continue;
+			sb.append(String.format(", %s: %d acquired, %d waited, avg. wait %.2f us (%.2f us per wait)",
+					type, getAcquisitionCount(type), getWaitCount(type), getAverageWaitTime(type),
+					getAverageWaitTimeOfWaits(type)));
+		}
+		return sb.toString();
+	}
+}
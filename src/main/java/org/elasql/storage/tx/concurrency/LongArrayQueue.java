@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.storage.tx.concurrency;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of primitive longs backed by a growable ring buffer. It is
+ * used to keep the transaction numbers of lock holders and requests without
+ * boxing them or allocating a node for each element. This class is not
+ * thread-safe.
+ */
+class LongArrayQueue {
+	
+	// Must be a power of two, so that an index can wrap around by a mask
+	private static final int DEFAULT_CAPACITY = 4;
+	
+	private long[] elements;
+	private int head, size;
+	
+	LongArrayQueue() {
+		elements = new long[DEFAULT_CAPACITY];
+	}
+	
+	void add(long val) {
+		if (size == elements.length)
+			grow();
+		elements[(head + size) & (elements.length - 1)] = val;
+		size++;
+	}
+	
+	/**
+	 * Returns the first element without removing it.
+	 * 
+	 * @return the first element
+	 * @throws NoSuchElementException if the queue is empty
+	 */
+	long peek() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		return elements[head];
+	}
+	
+	/**
+	 * Removes and returns the first element.
+	 * 
+	 * @return the first element
+	 * @throws NoSuchElementException if the queue is empty
+	 */
+	long poll() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		long val = elements[head];
+		head = (head + 1) & (elements.length - 1);
+		size--;
+		return val;
+	}
+	
+	/**
+	 * Gets the i-th element counted from the head of the queue.
+	 */
+	long get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("index: " + i + ", size: " + size);
+		return elements[(head + i) & (elements.length - 1)];
+	}
+	
+	boolean contains(long val) {
+		return indexOf(val) != -1;
+	}
+	
+	/**
+	 * Removes the first occurrence of the given value.
+	 * 
+	 * @return true if the value was in the queue
+	 */
+	boolean remove(long val) {
+		int idx = indexOf(val);
+		if (idx == -1)
+			return false;
+		
+		// Shift the following elements forward
+		for (int i = idx; i < size - 1; i++)
+			elements[(head + i) & (elements.length - 1)] = elements[(head + i + 1) & (elements.length - 1)];
+		size--;
+		return true;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	int capacity() {
+		return elements.length;
+	}
+	
+	void clear() {
+		head = 0;
+		size = 0;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(get(i));
+		}
+		return sb.append("]").toString();
+	}
+	
+	private int indexOf(long val) {
+		for (int i = 0; i < size; i++)
+			if (elements[(head + i) & (elements.length - 1)] == val)
+				return i;
+		return -1;
+	}
+	
+	private void grow() {
+		long[] newElements = new long[elements.length * 2];
+		for (int i = 0; i < size; i++)
+			newElements[i] = elements[(head + i) & (elements.length - 1)];
+		elements = newElements;
+		head = 0;
+	}
+}
@@ -15,13 +15,12 @@
  *******************************************************************************/
 package org.elasql.storage.tx.recovery;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.util.AdmissionQueue;
 import org.elasql.util.ElasqlProperties;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.server.task.Task;
@@ -30,10 +29,16 @@ import org.vanilladb.core.storage.tx.recovery.RecoveryMgr;
 
 public class DdRecoveryMgr extends RecoveryMgr {
 
-	private static BlockingQueue<StoredProcedureCall> spcLogQueue = new LinkedBlockingQueue<StoredProcedureCall>();
-
 	public static final boolean DISABLE_STORAGE_LOGGING;
 	
+	/**
+	 * The max number of requests waiting for being logged. 0 means unbounded.
+	 * When the queue is full, the scheduler blocks until the logger catches up.
+	 */
+	public static final int LOG_QUEUE_CAPACITY;
+	
+	private static final AdmissionQueue<StoredProcedureCall> spcLogQueue;
+	
 	private static final Object spcLoggerSyncObj = new Object();
 	private static final Lock spcLoggerLock = new ReentrantLock();
 	private static final Condition spcLoggerCondition = spcLoggerLock.newCondition();
@@ -47,6 +52,10 @@ public class DdRecoveryMgr extends RecoveryMgr {
 		if (DISABLE_STORAGE_LOGGING)
 			RecoveryMgr.enableLogging(false);
 		
+		LOG_QUEUE_CAPACITY = ElasqlProperties.getLoader().getPropertyAsInteger(
+				DdRecoveryMgr.class.getName() + ".LOG_QUEUE_CAPACITY", AdmissionQueue.UNBOUNDED);
+		spcLogQueue = new AdmissionQueue<StoredProcedureCall>(LOG_QUEUE_CAPACITY, AdmissionQueue.BLOCK);
+		
 		VanillaDb.taskMgr().runTask(new Task() {
 			@Override
 			public void run() {
@@ -74,7 +83,20 @@ public class DdRecoveryMgr extends RecoveryMgr {
 
 	public static void logRequest(StoredProcedureCall spc) {
 		// TODO Commented for experiment
-		spcLogQueue.add(spc);
+		try {
+			spcLogQueue.admit(spc);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns the number of requests waiting for being logged.
+	 * 
+	 * @return the number of requests in the log queue
+	 */
+	public static int getLogQueueDepth() {
+		return spcLogQueue.size();
 	}
 
 	public DdRecoveryMgr(long txNum) {
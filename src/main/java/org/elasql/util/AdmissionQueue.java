@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.util;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A FIFO queue that admits at most a given number of elements. When it is
+ * full, a new element either waits for room ({@link #BLOCK}) or is rejected
+ * ({@link #SHED}). It also records its occupancy for monitoring.<br>
+ * <br>
+ * Note that a queue in front of a deterministic scheduler must never shed,
+ * since every node has to see the same sequence of requests.
+ *
+ * @param <E>
+ *            the type of elements
+ */
+public class AdmissionQueue<E> {
+
+	/**
+	 * The policies when the queue is full.<br>
+	 * BLOCK - the producer waits until there is room<br>
+	 * SHED - the element is rejected
+	 */
+	public static final int BLOCK = 0, SHED = 1;
+
+	public static final int UNBOUNDED = 0;
+
+	private final BlockingQueue<E> queue;
+	private final int capacity;
+	private final int policy;
+
+	private final AtomicInteger peakSize = new AtomicInteger();
+	private final LongAdder blockedCount = new LongAdder();
+	private final LongAdder shedCount = new LongAdder();
+
+	/**
+	 * Creates a queue.
+	 *
+	 * @param capacity
+	 *            the max number of elements, or {@link #UNBOUNDED} (or any
+	 *            non-positive number) for an unbounded queue
+	 * @param policy
+	 *            {@link #BLOCK} or {@link #SHED}
+	 */
+	public AdmissionQueue(int capacity, int policy) {
+		if (policy != BLOCK && policy != SHED)
+			throw new IllegalArgumentException("unknown policy: " + policy);
+
+		this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+		this.policy = policy;
+		this.queue = new LinkedBlockingQueue<E>(this.capacity);
+	}
+
+	/**
+	 * Adds the element to the tail of the queue. If the queue is full, it
+	 * waits for room or rejects the element depending on the policy.
+	 *
+	 * @param e
+	 *            the element
+	 * @return true if the element is admitted, false if it is shed
+	 * @throws InterruptedException
+	 *             if it is interrupted while waiting for room
+	 */
+	public boolean admit(E e) throws InterruptedException {
+		if (!queue.offer(e)) {
+			if (policy == SHED) {
+				shedCount.increment();
+				return false;
+			}
+
+			blockedCount.increment();
+			queue.put(e);
+		}
+
+		updatePeakSize();
+		return true;
+	}
+
+	public E take() throws InterruptedException {
+		return queue.take();
+	}
+
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+
+	/**
+	 * Removes at most the given number of available elements and adds them to
+	 * the given collection without waiting.
+	 *
+	 * @param c
+	 *            the collection to transfer elements into
+	 * @param maxElements
+	 *            the max number of elements to transfer
+	 * @return the number of elements transferred
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		return queue.drainTo(c, maxElements);
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public boolean isBounded() {
+		return capacity != Integer.MAX_VALUE;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the max number of elements that have been in the queue at the
+	 * same time.
+	 *
+	 * @return the peak size
+	 */
+	public int getPeakSize() {
+		return peakSize.get();
+	}
+
+	/**
+	 * Returns the number of elements that have waited for room.
+	 *
+	 * @return the number of blocked admissions
+	 */
+	public long getBlockedCount() {
+		return blockedCount.sum();
+	}
+
+	/**
+	 * Returns the number of rejected elements.
+	 *
+	 * @return the number of shed elements
+	 */
+	public long getShedCount() {
+		return shedCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("size: ").append(size());
+		if (isBounded())
+			sb.append("/").append(capacity);
+		sb.append(", peak: ").append(getPeakSize());
+		sb.append(", blocked: ").append(getBlockedCount());
+		sb.append(", shed: ").append(getShedCount());
+		return sb.toString();
+	}
+
+	private void updatePeakSize() {
+		int size = queue.size();
+		int peak = peakSize.get();
+		while (size > peak && !peakSize.compareAndSet(peak, size))
+			peak = peakSize.get();
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative values with power-of-two buckets.
+ * Bucket 0 counts the value 0, and bucket i (i > 0) counts the values in
+ * [2^(i-1), 2^i). The last bucket also counts all the larger values.
+ */
+public class Histogram {
+	
+	private final LongAdder[] buckets;
+	
+	public Histogram(int numOfBuckets) {
+		if (numOfBuckets < 2)
+			throw new IllegalArgumentException("a histogram needs at least 2 buckets");
+		
+		buckets = new LongAdder[numOfBuckets];
+		for (int i = 0; i < numOfBuckets; i++)
+			buckets[i] = new LongAdder();
+	}
+	
+	public void record(long value) {
+		buckets[bucketOf(value)].increment();
+	}
+	
+	public int getNumOfBuckets() {
+		return buckets.length;
+	}
+	
+	public long getCount(int bucket) {
+		return buckets[bucket].sum();
+	}
+	
+	/**
+	 * Returns a snapshot of the counts of all the buckets.
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++)
+			counts[i] = buckets[i].sum();
+		return counts;
+	}
+	
+	public long getTotalCount() {
+		long total = 0;
+		for (LongAdder bucket : buckets)
+			total += bucket.sum();
+		return total;
+	}
+	
+	/**
+	 * Returns the smallest value counted by the given bucket.
+	 */
+	public long getLowerBound(int bucket) {
+		return bucket == 0? 0 : 1L << (bucket - 1);
+	}
+	
+	public void reset() {
+		for (LongAdder bucket : buckets)
+			bucket.reset();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < buckets.length; i++) {
+			long count = buckets[i].sum();
+			if (count == 0)
+				continue;
+			
+			if (sb.length() > 1)
+				sb.append(", ");
+			long lower = getLowerBound(i);
+			if (i == buckets.length - 1)
+				sb.append(lower).append("+");
+			else if (i <= 1)
+				sb.append(lower);
+			else
+				sb.append(lower).append("-").append(getLowerBound(i + 1) - 1);
+			sb.append(": ").append(count);
+		}
+		return sb.append("}").toString();
+	}
+	
+	private int bucketOf(long value) {
+		if (value <= 0)
+			return 0;
+		int bucket = 64 - Long.numberOfLeadingZeros(value);
+		return Math.min(bucket, buckets.length - 1);
+	}
+}
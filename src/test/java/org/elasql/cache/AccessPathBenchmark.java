@@ -0,0 +1,105 @@
+package org.elasql.cache;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.index.IndexType;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Compares the time of point reads through the cached access paths of
+ * {@link VanillaCoreCrud} against the planned select queries, on a table
+ * indexed on the whole key and on a table indexed on a part of the key. Run
+ * it as a Java application; it is not a unit test. The database is created
+ * in the temporary directory.
+ */
+public class AccessPathBenchmark {
+
+	private static final int NUM_OF_RECORDS = 10000;
+	private static final int WARM_UP_READS = 200000;
+	private static final int READS = 1000000;
+
+	public static void main(String[] args) {
+		String dirKey = "org.vanilladb.core.storage.file.FileMgr.DB_FILES_DIR";
+		if (System.getProperty(dirKey) == null)
+			System.setProperty(dirKey, System.getProperty("java.io.tmpdir"));
+		VanillaDb.init("elasql_access_path_bench_" + System.currentTimeMillis());
+
+		PrimaryKey[] coveredKeys = createTable("bench_covered", Arrays.asList("k1", "k2"));
+		PrimaryKey[] partialKeys = createTable("bench_partial", Arrays.asList("k1"));
+
+		run("covering index", coveredKeys);
+		run("partial index", partialKeys);
+	}
+
+	private static void run(String name, PrimaryKey[] keys) {
+		Random random = new Random(0);
+		Transaction tx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, true);
+
+		for (int i = 0; i < WARM_UP_READS; i++) {
+			PrimaryKey key = keys[random.nextInt(keys.length)];
+			VanillaCoreCrud.read(key, tx);
+			VanillaCoreCrud.readByPlan(key, tx);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < READS; i++)
+			VanillaCoreCrud.read(keys[random.nextInt(keys.length)], tx);
+		long cached = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < READS; i++)
+			VanillaCoreCrud.readByPlan(keys[random.nextInt(keys.length)], tx);
+		long planned = System.nanoTime() - start;
+
+		tx.commit();
+
+		if (!VanillaCoreCrud.ENABLE_ACCESS_PATH_CACHE)
+			System.out.println("The access path cache is disabled, so both read by plans");
+		System.out.println(String.format("%s: access path %d ns/read, planned %d ns/read",
+				name, cached / READS, planned / READS));
+	}
+
+	/**
+	 * Creates a table with key fields k1 and k2 and a non-key field val,
+	 * indexed on the given fields, and loads it with records. Each k1 value
+	 * is shared by 10 records.
+	 */
+	private static PrimaryKey[] createTable(String tblName, List<String> indexedFlds) {
+		Transaction tx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+		Schema sch = new Schema();
+		sch.addField("k1", Type.INTEGER);
+		sch.addField("k2", Type.INTEGER);
+		sch.addField("val", Type.INTEGER);
+		VanillaDb.catalogMgr().createTable(tblName, sch, tx);
+		VanillaDb.catalogMgr().createIndex(tblName + "_idx", tblName, indexedFlds, IndexType.BTREE, tx);
+
+		PrimaryKey[] keys = new PrimaryKey[NUM_OF_RECORDS];
+		Map<PrimaryKey, CachedRecord> records = new HashMap<PrimaryKey, CachedRecord>();
+		for (int i = 0; i < NUM_OF_RECORDS; i++) {
+			PrimaryKeyBuilder builder = new PrimaryKeyBuilder(tblName);
+			builder.addFldVal("k1", new IntegerConstant(i / 10));
+			builder.addFldVal("k2", new IntegerConstant(i % 10));
+			keys[i] = builder.build();
+
+			Map<String, Constant> fldVals = new HashMap<String, Constant>();
+			fldVals.put("val", new IntegerConstant(i));
+			records.put(keys[i], CachedRecord.newRecordForInsertion(keys[i], fldVals));
+		}
+		VanillaCoreCrud.batchInsert(records, tx);
+		tx.commit();
+
+		return keys;
+	}
+}
@@ -1,13 +1,18 @@
 package org.elasql.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
+import org.elasql.sql.FieldNotFoundException;
 import org.elasql.sql.PrimaryKey;
 import org.elasql.sql.PrimaryKeyBuilder;
 import org.junit.Test;
@@ -50,4 +55,113 @@ public class CachedRecordTest {
 		
 		assertEquals("fails to deserialize the object of CachedRecord", rec, result);
 	}
+
+	@Test
+	public void testDirtyFields() {
+		CachedRecord rec = newRecord();
+		rec.setVal("test_field_str", new VarcharConstant("updated"));
+		assertTrue(rec.isDirty());
+		assertEquals(Arrays.asList("test_field_str"), rec.getDirtyFldNames());
+
+		// Removing a field also clears its dirty mark
+		rec.removeField("test_field_str");
+		assertNull(rec.getVal("test_field_str"));
+		assertTrue(rec.getDirtyFldNames().isEmpty());
+
+		rec.markAllNonKeyFieldsDirty();
+		assertEquals(Arrays.asList("test_field_int"), rec.getDirtyFldNames());
+	}
+
+	@Test(expected = FieldNotFoundException.class)
+	public void testSetMissingField() {
+		newRecord().setVal("test_field_missing", new IntegerConstant(3));
+	}
+
+	@Test
+	public void testCopy() throws IOException, ClassNotFoundException {
+		CachedRecord rec = newRecord();
+		CachedRecord copy = new CachedRecord(rec);
+		assertEquals(rec, copy);
+		assertEquals(rec.hashCode(), copy.hashCode());
+
+		// The copy must not share values with the original one
+		copy.setVal("test_field_int", new IntegerConstant(3));
+		copy.addFldVal("test_field_new", new IntegerConstant(4));
+		assertEquals(new IntegerConstant(2), rec.getVal("test_field_int"));
+		assertNull(rec.getVal("test_field_new"));
+		assertFalse(rec.isDirty());
+		assertFalse(rec.equals(copy));
+
+		// The dirty fields are kept after serialization
+		CachedRecord result = serializeAndDeserialize(copy);
+		assertEquals(copy, result);
+		assertEquals(copy.getDirtyFldNames(), result.getDirtyFldNames());
+	}
+
+	@Test
+	public void testModifySourceAfterCopy() {
+		CachedRecord rec = newRecord();
+		CachedRecord copy = new CachedRecord(rec);
+		CachedRecord copyOfCopy = new CachedRecord(copy);
+
+		rec.setVal("test_field_int", new IntegerConstant(3));
+		rec.removeField("test_field_str");
+		assertEquals(new IntegerConstant(2), copy.getVal("test_field_int"));
+		assertEquals(new VarcharConstant("test_val2"), copyOfCopy.getVal("test_field_str"));
+		assertTrue(copy.getDirtyFldNames().isEmpty());
+		assertEquals(copy, copyOfCopy);
+	}
+
+	@Test
+	public void testFieldsOutsideLayout() throws IOException, ClassNotFoundException {
+		PrimaryKeyBuilder keyBuilder = new PrimaryKeyBuilder("layout_table");
+		keyBuilder.addFldVal("layout_key", new IntegerConstant(1));
+		PrimaryKey key = keyBuilder.build();
+
+		// A record created before the layout is registered
+		CachedRecord oldRec = new CachedRecord(key);
+		oldRec.addFldVal("layout_field", new IntegerConstant(2));
+
+		RecordLayout.register("layout_table", Arrays.asList("layout_key", "layout_field"));
+		CachedRecord rec = new CachedRecord(key);
+		rec.addFldVal("layout_field", new IntegerConstant(2));
+		assertEquals(oldRec, rec);
+		assertEquals(oldRec.hashCode(), rec.hashCode());
+
+		// A field not in the schema does not change the layout
+		rec.addFldVal("exists", new IntegerConstant(1));
+		rec.setVal("exists", new IntegerConstant(0));
+		assertEquals(2, RecordLayout.forTable("layout_table").size());
+		assertEquals(new IntegerConstant(0), rec.getVal("exists"));
+		assertEquals(Arrays.asList("exists"), rec.getDirtyFldNames());
+
+		CachedRecord copy = new CachedRecord(rec);
+		copy.removeField("exists");
+		assertEquals(new IntegerConstant(0), rec.getVal("exists"));
+		assertTrue(copy.getDirtyFldNames().isEmpty());
+		assertEquals(oldRec, copy);
+
+		CachedRecord result = serializeAndDeserialize(rec);
+		assertEquals(rec, result);
+		assertEquals(rec.getDirtyFldNames(), result.getDirtyFldNames());
+	}
+
+	private CachedRecord newRecord() {
+		PrimaryKeyBuilder keyBuilder = new PrimaryKeyBuilder("test_table");
+		keyBuilder.addFldVal("test_key_int", new IntegerConstant(1));
+		CachedRecord rec = new CachedRecord(keyBuilder.build());
+		rec.addFldVal("test_field_int", new IntegerConstant(2));
+		rec.addFldVal("test_field_str", new VarcharConstant("test_val2"));
+		return rec;
+	}
+
+	private CachedRecord serializeAndDeserialize(CachedRecord rec) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			out.writeObject(rec);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+			return (CachedRecord) in.readObject();
+		}
+	}
 }
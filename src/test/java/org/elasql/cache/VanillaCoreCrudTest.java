@@ -0,0 +1,193 @@
+package org.elasql.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.index.IndexType;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Tests the reads and the batched writes of {@link VanillaCoreCrud} on
+ * tables whose keys have two fields, while the only index is on the first
+ * one. So the records of keys sharing the first field are found by each
+ * other.
+ */
+public class VanillaCoreCrudTest {
+
+	private static int tableCount = 0;
+
+	@BeforeClass
+	public static void init() {
+		// Keep the testing database in the temporary directory
+		String dirKey = "org.vanilladb.core.storage.file.FileMgr.DB_FILES_DIR";
+		if (System.getProperty(dirKey) == null)
+			System.setProperty(dirKey, System.getProperty("java.io.tmpdir"));
+		VanillaDb.init("elasql_crud_test_" + System.currentTimeMillis());
+	}
+
+	@Test
+	public void testReadThroughNonCoveringIndex() {
+		String tblName = createTableWithRecords();
+
+		Transaction tx = newTransaction();
+		assertFalse(AccessPath.get(newKey(tblName, 1, 1), tx).isIndexCoveringKey());
+		assertEquals(new IntegerConstant(11), VanillaCoreCrud.read(newKey(tblName, 1, 1), tx).getVal("val"));
+		assertEquals(new IntegerConstant(12), VanillaCoreCrud.read(newKey(tblName, 1, 2), tx).getVal("val"));
+		assertNull(VanillaCoreCrud.read(newKey(tblName, 1, 3), tx));
+		tx.commit();
+	}
+
+	@Test
+	public void testBatchReadKeysSharingIndexedField() {
+		String tblName = createTableWithRecords();
+
+		Transaction tx = newTransaction();
+		Set<PrimaryKey> keys = new HashSet<PrimaryKey>();
+		keys.add(newKey(tblName, 1, 1));
+		keys.add(newKey(tblName, 1, 2));
+		keys.add(newKey(tblName, 2, 1));
+		Map<PrimaryKey, CachedRecord> records = VanillaCoreCrud.batchRead(keys, tx);
+		tx.commit();
+
+		assertEquals(keys, records.keySet());
+		assertEquals(new IntegerConstant(11), records.get(newKey(tblName, 1, 1)).getVal("val"));
+		assertEquals(new IntegerConstant(12), records.get(newKey(tblName, 1, 2)).getVal("val"));
+		assertEquals(new IntegerConstant(21), records.get(newKey(tblName, 2, 1)).getVal("val"));
+	}
+
+	@Test
+	public void testBatchUpdateThroughNonCoveringIndex() {
+		String tblName = createTableWithRecords();
+
+		Transaction tx = newTransaction();
+		Map<PrimaryKey, CachedRecord> records = new HashMap<PrimaryKey, CachedRecord>();
+		for (int k2 = 1; k2 <= 2; k2++) {
+			PrimaryKey key = newKey(tblName, 1, k2);
+			CachedRecord rec = VanillaCoreCrud.read(key, tx);
+			rec.setVal("val", new IntegerConstant(-k2));
+			records.put(key, rec);
+		}
+		VanillaCoreCrud.batchUpdate(records, tx);
+		tx.commit();
+
+		tx = newTransaction();
+		assertEquals(new IntegerConstant(-1), VanillaCoreCrud.read(newKey(tblName, 1, 1), tx).getVal("val"));
+		assertEquals(new IntegerConstant(-2), VanillaCoreCrud.read(newKey(tblName, 1, 2), tx).getVal("val"));
+		assertEquals(new IntegerConstant(21), VanillaCoreCrud.read(newKey(tblName, 2, 1), tx).getVal("val"));
+		tx.commit();
+	}
+
+	@Test
+	public void testBatchDeleteThroughNonCoveringIndex() {
+		String tblName = createTableWithRecords();
+
+		Transaction tx = newTransaction();
+		VanillaCoreCrud.batchDelete(Arrays.asList(newKey(tblName, 1, 1), newKey(tblName, 1, 2)), tx);
+		tx.commit();
+
+		tx = newTransaction();
+		assertNull(VanillaCoreCrud.read(newKey(tblName, 1, 1), tx));
+		assertNull(VanillaCoreCrud.read(newKey(tblName, 1, 2), tx));
+		assertNotNull(VanillaCoreCrud.read(newKey(tblName, 2, 1), tx));
+		tx.commit();
+	}
+
+	@Test
+	public void testIndexCreatedAfterFirstRead() {
+		String tblName = createTable(false);
+
+		// The first read finds no index
+		Transaction tx = newTransaction();
+		assertNull(AccessPath.get(newKey(tblName, 1, 1), tx).index());
+		assertNull(VanillaCoreCrud.read(newKey(tblName, 1, 1), tx));
+		tx.commit();
+
+		tx = newTransaction();
+		VanillaDb.catalogMgr().createIndex(tblName + "_k1", tblName, Arrays.asList("k1"),
+				IndexType.BTREE, tx);
+		tx.commit();
+		insertRecords(tblName);
+
+		// The index created after the first read is used by the later ones
+		tx = newTransaction();
+		assertNotNull(AccessPath.get(newKey(tblName, 1, 1), tx).index());
+		Set<PrimaryKey> keys = new HashSet<PrimaryKey>();
+		keys.add(newKey(tblName, 1, 2));
+		keys.add(newKey(tblName, 2, 1));
+		Map<PrimaryKey, CachedRecord> records = VanillaCoreCrud.batchRead(keys, tx);
+		tx.commit();
+
+		assertEquals(new IntegerConstant(12), records.get(newKey(tblName, 1, 2)).getVal("val"));
+		assertEquals(new IntegerConstant(21), records.get(newKey(tblName, 2, 1)).getVal("val"));
+	}
+
+	/**
+	 * Creates a table with fields k1, k2 and val and an index on k1, and
+	 * inserts the records (1, 1, 11), (1, 2, 12) and (2, 1, 21).
+	 */
+	private static String createTableWithRecords() {
+		String tblName = createTable(true);
+		insertRecords(tblName);
+		return tblName;
+	}
+
+	private static String createTable(boolean withIndex) {
+		String tblName = "crud_test_" + (tableCount++);
+
+		Transaction tx = newTransaction();
+		Schema sch = new Schema();
+		sch.addField("k1", Type.INTEGER);
+		sch.addField("k2", Type.INTEGER);
+		sch.addField("val", Type.INTEGER);
+		VanillaDb.catalogMgr().createTable(tblName, sch, tx);
+		if (withIndex)
+			VanillaDb.catalogMgr().createIndex(tblName + "_k1", tblName, Arrays.asList("k1"),
+					IndexType.BTREE, tx);
+		tx.commit();
+
+		return tblName;
+	}
+
+	private static void insertRecords(String tblName) {
+		Transaction tx = newTransaction();
+		Map<PrimaryKey, CachedRecord> records = new HashMap<PrimaryKey, CachedRecord>();
+		int[][] rows = { { 1, 1 }, { 1, 2 }, { 2, 1 } };
+		for (int[] row : rows) {
+			PrimaryKey key = newKey(tblName, row[0], row[1]);
+			Map<String, Constant> fldVals = new HashMap<String, Constant>();
+			fldVals.put("val", new IntegerConstant(row[0] * 10 + row[1]));
+			records.put(key, CachedRecord.newRecordForInsertion(key, fldVals));
+		}
+		VanillaCoreCrud.batchInsert(records, tx);
+		tx.commit();
+	}
+
+	private static PrimaryKey newKey(String tblName, int k1, int k2) {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(tblName);
+		builder.addFldVal("k1", new IntegerConstant(k1));
+		builder.addFldVal("k2", new IntegerConstant(k2));
+		return builder.build();
+	}
+
+	private static Transaction newTransaction() {
+		return VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+	}
+}
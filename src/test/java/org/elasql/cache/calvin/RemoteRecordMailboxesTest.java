@@ -0,0 +1,129 @@
+package org.elasql.cache.calvin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class RemoteRecordMailboxesTest {
+
+	private static final long TX_0 = Elasql.START_TX_NUMBER;
+	private static final int RING_SIZE = 4;
+
+	@Test
+	public void testRecordsBeforeRegistration() {
+		RemoteRecordMailboxes mailboxes = new RemoteRecordMailboxes(RING_SIZE);
+		PrimaryKey key = newKey(1);
+		CachedRecord rec = newRecord(key);
+
+		// The record arrives before the transaction creates its inbox
+		mailboxes.deliver(TX_0, key, rec);
+		assertEquals(1, mailboxes.size());
+
+		CalvinCacheMgr cacheMgr = newCacheMgr();
+		mailboxes.register(TX_0, cacheMgr);
+		assertSame(rec, cacheMgr.readFromRemote(key));
+
+		// The later records go to the cache manager directly
+		PrimaryKey anotherKey = newKey(2);
+		CachedRecord anotherRec = newRecord(anotherKey);
+		mailboxes.deliver(TX_0, anotherKey, anotherRec);
+		assertSame(anotherRec, cacheMgr.readFromRemote(anotherKey));
+	}
+
+	@Test
+	public void testOutOfOrderCommits() {
+		RemoteRecordMailboxes mailboxes = new RemoteRecordMailboxes(RING_SIZE);
+		for (long txNum = TX_0; txNum < TX_0 + 3; txNum++)
+			mailboxes.register(txNum, newCacheMgr());
+
+		// The later transactions commit first
+		mailboxes.retire(TX_0 + 2);
+		mailboxes.retire(TX_0 + 1);
+		assertEquals(TX_0 - 1, mailboxes.getLowWaterMark());
+		assertEquals(3, mailboxes.size());
+
+		// The late records of a retired transaction are dropped
+		PrimaryKey key = newKey(1);
+		mailboxes.deliver(TX_0 + 1, key, newRecord(key));
+
+		mailboxes.retire(TX_0);
+		assertEquals(TX_0 + 2, mailboxes.getLowWaterMark());
+		assertEquals(0, mailboxes.size());
+	}
+
+	@Test
+	public void testReclamationBelowWatermark() {
+		RemoteRecordMailboxes mailboxes = new RemoteRecordMailboxes(RING_SIZE);
+		mailboxes.register(TX_0, newCacheMgr());
+		mailboxes.retire(TX_0);
+		assertEquals(TX_0, mailboxes.getLowWaterMark());
+		assertEquals(0, mailboxes.size());
+
+		// The records of the transactions below the low water mark do not
+		// create mailboxes again
+		PrimaryKey key = newKey(1);
+		mailboxes.deliver(TX_0, key, newRecord(key));
+		mailboxes.retire(TX_0);
+		assertEquals(0, mailboxes.size());
+
+		try {
+			mailboxes.register(TX_0, newCacheMgr());
+			fail("a retired transaction is registered");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, mailboxes.size());
+	}
+
+	@Test
+	public void testTransactionsBeyondRing() {
+		RemoteRecordMailboxes mailboxes = new RemoteRecordMailboxes(RING_SIZE);
+		for (long txNum = TX_0; txNum < TX_0 + RING_SIZE; txNum++)
+			mailboxes.register(txNum, newCacheMgr());
+
+		// The record of a transaction beyond the ring waits in the map
+		long farTxNum = TX_0 + RING_SIZE + 1;
+		PrimaryKey key = newKey(1);
+		CachedRecord rec = newRecord(key);
+		mailboxes.deliver(farTxNum, key, rec);
+		assertEquals(RING_SIZE + 1, mailboxes.size());
+
+		// The ring covers it after the first transactions retire, and the
+		// slots of the retired ones are reused
+		mailboxes.retire(TX_0);
+		mailboxes.retire(TX_0 + 1);
+		assertEquals(TX_0 + 1, mailboxes.getLowWaterMark());
+		CalvinCacheMgr cacheMgr = newCacheMgr();
+		mailboxes.register(farTxNum, cacheMgr);
+		assertSame(rec, cacheMgr.readFromRemote(key));
+		mailboxes.register(TX_0 + RING_SIZE, newCacheMgr());
+		assertEquals(RING_SIZE, mailboxes.size());
+	}
+
+	private static CalvinCacheMgr newCacheMgr() {
+		// Receiving the remote records needs no transaction
+		CalvinCacheMgr cacheMgr = new CalvinCacheMgr(null, null);
+		cacheMgr.createInboxForRemotes(4);
+		return cacheMgr;
+	}
+
+	private static PrimaryKey newKey(int id) {
+		return new PrimaryKey("tbl", "id", new IntegerConstant(id));
+	}
+
+	private static CachedRecord newRecord(PrimaryKey key) {
+		Map<String, Constant> fldVals = new HashMap<String, Constant>();
+		fldVals.put("val", new IntegerConstant(0));
+		return CachedRecord.newRecordWithFldVals(key, fldVals);
+	}
+}
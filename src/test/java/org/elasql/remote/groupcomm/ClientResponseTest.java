@@ -0,0 +1,29 @@
+package org.elasql.remote.groupcomm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vanilladb.core.remote.storedprocedure.SpResultSet;
+import org.vanilladb.core.sql.VarcharConstant;
+
+public class ClientResponseTest {
+
+	@Test
+	public void testRejection() {
+		StoredProcedureCall spc = new StoredProcedureCall(3, 7, 1, new Object[0]);
+		spc.setRequestId(42);
+
+		ClientResponse response = ClientResponse.newRejection(spc, "overloaded");
+		assertTrue(response.isRejected());
+		assertEquals(3, response.getClientId());
+		assertEquals(7, response.getRteId());
+		assertEquals(42, response.getRequestId());
+
+		SpResultSet rs = response.getResultSet().getResultSet();
+		assertFalse(rs.isCommitted());
+		assertEquals(new VarcharConstant("overloaded"),
+				rs.getRecords()[0].getVal(ClientResponse.REJECT_REASON_FIELD));
+	}
+}
@@ -0,0 +1,71 @@
+package org.elasql.remote.groupcomm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares the bytes per tuple and the encode/decode time of
+ * {@link TupleSetCodec} against Java serialization. Run it as a Java
+ * application; it is not a unit test.
+ */
+public class TupleSetCodecBenchmark {
+
+	private static final int TUPLES_PER_SET = 100;
+	private static final int WARM_UP_ROUNDS = 2000;
+	private static final int ROUNDS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		TupleSet ts = TupleSetCodecTest.newTupleSet(TUPLES_PER_SET);
+
+		for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+			TupleSetCodec.decode(TupleSetCodec.encode(ts));
+			javaDeserialize(javaSerialize(ts));
+		}
+
+		byte[] encoded = TupleSetCodec.encode(ts);
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			encoded = TupleSetCodec.encode(ts);
+		long codecEncode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			TupleSetCodec.decode(encoded);
+		long codecDecode = System.nanoTime() - start;
+
+		byte[] serialized = javaSerialize(ts);
+		start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			serialized = javaSerialize(ts);
+		long javaEncode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			javaDeserialize(serialized);
+		long javaDecode = System.nanoTime() - start;
+
+		report("TupleSetCodec", encoded.length, codecEncode, codecDecode);
+		report("Java serialization", serialized.length, javaEncode, javaDecode);
+	}
+
+	private static void report(String name, int bytes, long encodeNs, long decodeNs) {
+		long tuples = (long) TUPLES_PER_SET * ROUNDS;
+		System.out.println(String.format("%s: %.1f bytes/tuple, encode %d ns/tuple, decode %d ns/tuple",
+				name, (double) bytes / TUPLES_PER_SET, encodeNs / tuples, decodeNs / tuples));
+	}
+
+	private static byte[] javaSerialize(Object obj) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			out.writeObject(obj);
+		}
+		return bos.toByteArray();
+	}
+
+	private static Object javaDeserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+}
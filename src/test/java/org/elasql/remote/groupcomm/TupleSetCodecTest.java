@@ -0,0 +1,118 @@
+package org.elasql.remote.groupcomm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.junit.Test;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.VarcharConstant;
+
+public class TupleSetCodecTest {
+
+	static TupleSet newTupleSet(int numOfTuples) {
+		TupleSet ts = new TupleSet(3);
+		for (int i = 0; i < numOfTuples; i++) {
+			PrimaryKeyBuilder builder = new PrimaryKeyBuilder("warehouse");
+			builder.addFldVal("w_id", new IntegerConstant(i));
+			builder.addFldVal("w_key", new BigIntConstant(-i * 1000L));
+			PrimaryKey key = builder.build();
+
+			Map<String, Constant> fldVals = new HashMap<String, Constant>();
+			fldVals.put("w_name", new VarcharConstant("warehouse-" + i));
+			fldVals.put("w_tax", new DoubleConstant(i * 0.01));
+			fldVals.put("w_ytd", new IntegerConstant(-i));
+			CachedRecord rec = CachedRecord.newRecordWithFldVals(key, fldVals);
+			rec.setSrcTxNum(100 + i);
+			ts.addTuple(key, 100 + i, i % 2 == 0 ? -1 : 200 + i, rec);
+		}
+		return ts;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		TupleSet ts = newTupleSet(10);
+		ts.setMetadata("a range");
+
+		// Records in different states
+		CachedRecord updated = ts.getTupleSet().get(1).rec;
+		updated.setVal("w_ytd", new IntegerConstant(1));
+		ts.getTupleSet().get(2).rec.delete();
+		ts.getTupleSet().get(3).rec.setNewInserted();
+		ts.getTupleSet().get(4).rec.setTempRecord(true);
+
+		TupleSet result = new EncodedTupleSet(ts).decode();
+
+		assertEquals(ts.sinkId(), result.sinkId());
+		assertEquals(ts.getMetadata(), result.getMetadata());
+		List<Tuple> expected = ts.getTupleSet();
+		List<Tuple> actual = result.getTupleSet();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Tuple e = expected.get(i);
+			Tuple a = actual.get(i);
+			assertEquals(e.key, a.key);
+			assertEquals(e.srcTxNum, a.srcTxNum);
+			assertEquals(e.destTxNum, a.destTxNum);
+			assertEquals(e.rec, a.rec);
+			assertEquals(e.rec.toFldValMap(), a.rec.toFldValMap());
+			assertEquals(e.rec.getDirtyFldNames(), a.rec.getDirtyFldNames());
+			assertEquals(e.rec.isDirty(), a.rec.isDirty());
+			assertEquals(e.rec.isDeleted(), a.rec.isDeleted());
+			assertEquals(e.rec.isNewInserted(), a.rec.isNewInserted());
+			assertEquals(e.rec.isTemp(), a.rec.isTemp());
+		}
+	}
+
+	@Test
+	public void testSmallerThanJavaSerialization() throws IOException {
+		TupleSet ts = newTupleSet(100);
+		assertTrue(new EncodedTupleSet(ts).size() < javaSerializedSize(ts));
+	}
+
+	@Test
+	public void testFrames() throws IOException {
+		TupleSet ts = newTupleSet(250);
+		// A record without some fields of its table
+		ts.getTupleSet().get(7).rec.removeField("w_tax");
+		ts.getTupleSet().get(8).rec.setVal("w_name", new VarcharConstant("renamed"));
+
+		for (boolean compress : new boolean[] { false, true }) {
+			List<TupleSetFrame> frames = TupleSetFrame.split(ts, 100, compress);
+			assertEquals(3, frames.size());
+
+			Map<PrimaryKey, CachedRecord> decoded = new HashMap<PrimaryKey, CachedRecord>();
+			for (TupleSetFrame frame : frames)
+				for (Tuple t : frame.decode().getTupleSet())
+					decoded.put(t.key, t.rec);
+
+			assertEquals(ts.size(), decoded.size());
+			for (Tuple t : ts.getTupleSet()) {
+				CachedRecord rec = decoded.get(t.key);
+				assertEquals(t.rec, rec);
+				assertEquals(t.rec.getDirtyFldNames(), rec.getDirtyFldNames());
+				assertEquals(t.rec.isDirty(), rec.isDirty());
+			}
+		}
+	}
+
+	static int javaSerializedSize(Object obj) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			out.writeObject(obj);
+		}
+		return bos.size();
+	}
+}
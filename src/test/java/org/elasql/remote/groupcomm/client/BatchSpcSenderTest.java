@@ -0,0 +1,140 @@
+package org.elasql.remote.groupcomm.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.junit.Test;
+
+public class BatchSpcSenderTest {
+	
+	private static final long LONG_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long SHORT_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	
+	/**
+	 * Keeps the sent batches instead of sending them to the sequencer.
+	 */
+	private static class RecordingSender extends BatchSpcSender {
+		final BlockingQueue<StoredProcedureCall[]> sentBatches =
+				new LinkedBlockingQueue<StoredProcedureCall[]>();
+		
+		RecordingSender(int maxBatchSize, long maxWaitNanos, long targetLatencyNanos) {
+			super(0, null, maxBatchSize, maxWaitNanos, targetLatencyNanos);
+		}
+		
+		@Override
+		void send(StoredProcedureCall[] batch) {
+			sentBatches.add(batch);
+		}
+	}
+	
+	@Test
+	public void testCutOnSize() throws InterruptedException {
+		final RecordingSender sender = new RecordingSender(4, LONG_WAIT_NANOS, 0);
+		Thread worker = new Thread() {
+			@Override
+			public void run() {
+				sender.sendBatchRequestToDb();
+			}
+		};
+		worker.start();
+		
+		sender.enqueue(newCall(1));
+		assertNull(sender.sentBatches.poll(100, TimeUnit.MILLISECONDS));
+		
+		// The full batch wakes up the sender long before the deadline
+		for (int connId = 2; connId <= 4; connId++)
+			sender.enqueue(newCall(connId));
+		StoredProcedureCall[] batch = sender.sentBatches.poll(5, TimeUnit.SECONDS);
+		assertNotNull(batch);
+		assertEquals(4, batch.length);
+		for (int i = 0; i < batch.length; i++)
+			assertEquals(i + 1, batch[i].getConnectionId());
+		
+		worker.join(5000);
+		assertEquals(1, sender.getBatchSizeHistogram().getTotalCount());
+	}
+	
+	@Test
+	public void testCutOnDeadline() {
+		RecordingSender sender = new RecordingSender(100, SHORT_WAIT_NANOS, 0);
+		sender.enqueue(newCall(1));
+		sender.enqueue(newCall(2));
+		
+		long start = System.nanoTime();
+		sender.sendBatchRequestToDb();
+		long elapsed = System.nanoTime() - start;
+		
+		// The batch is cut at the deadline of its oldest call, before it is full
+		StoredProcedureCall[] batch = sender.sentBatches.poll();
+		assertNotNull(batch);
+		assertEquals(2, batch.length);
+		assertTrue(elapsed >= SHORT_WAIT_NANOS / 2);
+		assertTrue(elapsed < LONG_WAIT_NANOS);
+		assertEquals(2, sender.getQueueingDelayHistogram().getTotalCount());
+	}
+	
+	@Test
+	public void testAdaptiveBatchSize() {
+		RecordingSender sender = new RecordingSender(64, LONG_WAIT_NANOS, SHORT_WAIT_NANOS);
+		assertEquals(1, sender.getTargetBatchSize());
+		
+		// The calls arrive much faster than the target latency allows,
+		// so the target size reaches the max size
+		for (int round = 0; round < 10; round++) {
+			for (int connId = 0; connId < 50; connId++)
+				sender.enqueue(newCall(connId));
+			sender.sendBatchRequestToDb();
+		}
+		assertEquals(64, sender.getTargetBatchSize());
+		
+		// A single call waits for the target latency, not the max waiting
+		// time, and the smoothed rate only lowers the target size gradually
+		sender.enqueue(newCall(0));
+		long start = System.nanoTime();
+		sender.sendBatchRequestToDb();
+		long elapsed = System.nanoTime() - start;
+		assertTrue(elapsed >= SHORT_WAIT_NANOS / 2);
+		assertTrue(elapsed < LONG_WAIT_NANOS);
+		assertTrue(sender.getTargetBatchSize() > 1);
+	}
+	
+	@Test
+	public void testBatchSizeFallback() {
+		String commKey = BatchSpcSender.class.getName() + ".COMM_BATCH_SIZE";
+		String oldKey = BatchSpcSender.class.getName() + ".BATCH_SIZE";
+		String commValue = System.clearProperty(commKey);
+		String oldValue = System.clearProperty(oldKey);
+		try {
+			assertEquals(1, BatchSpcSender.loadCommBatchSize());
+			
+			// The old name is still honored
+			System.setProperty(oldKey, "7");
+			assertEquals(7, BatchSpcSender.loadCommBatchSize());
+			
+			// The new name wins over the old one
+			System.setProperty(commKey, "9");
+			assertEquals(9, BatchSpcSender.loadCommBatchSize());
+		} finally {
+			restoreProperty(commKey, commValue);
+			restoreProperty(oldKey, oldValue);
+		}
+	}
+	
+	private static void restoreProperty(String key, String value) {
+		if (value == null)
+			System.clearProperty(key);
+		else
+			System.setProperty(key, value);
+	}
+	
+	private static StoredProcedureCall newCall(int connId) {
+		return new StoredProcedureCall(0, connId, 0, new Object[0]);
+	}
+}
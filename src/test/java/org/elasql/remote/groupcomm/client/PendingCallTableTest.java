@@ -0,0 +1,67 @@
+package org.elasql.remote.groupcomm.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.elasql.remote.groupcomm.ElasqlSpResultSet;
+import org.junit.Test;
+
+public class PendingCallTableTest {
+	
+	private static final long TIMEOUT = 1000;
+	
+	@Test
+	public void testComplete() throws Exception {
+		PendingCallTable table = new PendingCallTable(TIMEOUT);
+		CompletableFuture<ElasqlSpResultSet> future = table.register(1, 0);
+		assertEquals(1, table.size());
+		
+		assertTrue(table.complete(1, null));
+		assertTrue(future.isDone());
+		assertNull(future.get());
+		assertEquals(0, table.size());
+		
+		// The responses from the other servers are ignored
+		assertFalse(table.complete(1, null));
+		assertEquals(0, table.expire(TIMEOUT * 2));
+	}
+	
+	@Test
+	public void testTimeout() throws Exception {
+		PendingCallTable table = new PendingCallTable(TIMEOUT);
+		CompletableFuture<ElasqlSpResultSet> early = table.register(1, 0);
+		CompletableFuture<ElasqlSpResultSet> late = table.register(2, TIMEOUT / 2);
+		
+		assertEquals(0, table.expire(TIMEOUT - 1));
+		assertEquals(1, table.expire(TIMEOUT));
+		assertEquals(1, table.size());
+		assertFalse(late.isDone());
+		try {
+			early.get();
+			fail("an expired call is not failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		
+		// A response coming after the expiration is ignored
+		assertFalse(table.complete(1, null));
+		assertTrue(table.complete(2, null));
+		assertEquals(0, table.size());
+	}
+	
+	@Test
+	public void testNoTimeout() {
+		PendingCallTable table = new PendingCallTable(0);
+		CompletableFuture<ElasqlSpResultSet> future = table.register(1, 0);
+		assertEquals(0, table.expire(Long.MAX_VALUE));
+		assertFalse(future.isDone());
+		assertEquals(1, table.size());
+	}
+}
@@ -0,0 +1,156 @@
+package org.elasql.remote.groupcomm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.remote.groupcomm.Tuple;
+import org.elasql.remote.groupcomm.TupleSet;
+import org.elasql.remote.groupcomm.TupleSetFrame;
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class TupleSetAggregatorTest {
+	
+	private static final long LONG_DELAY_US = 60_000_000;
+	
+	/**
+	 * Collects the sent sets instead of sending them.
+	 */
+	private static class CollectingAggregator extends TupleSetAggregator {
+		final BlockingQueue<Serializable> sent = new LinkedBlockingQueue<Serializable>();
+		
+		CollectingAggregator(int maxTuples, long maxDelayMicros) {
+			super(null, 0, maxTuples, maxDelayMicros);
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		@Override
+		void send(Serializable message) {
+			sent.add(message);
+		}
+		
+		TupleSet poll(long millis) throws InterruptedException {
+			return (TupleSet) pollMessage(millis);
+		}
+		
+		Serializable pollMessage(long millis) throws InterruptedException {
+			return sent.poll(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@Test
+	public void testMergeInOrder() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(4, LONG_DELAY_US);
+		aggregator.add(newSet(1, 2));
+		aggregator.add(newSet(2, 1));
+		assertNull("a set should wait to be merged", aggregator.poll(100));
+		
+		aggregator.add(newSet(3, 1));
+		TupleSet merged = aggregator.poll(5000);
+		assertEquals(4, merged.size());
+		assertEquals(txNums(1, 1, 2, 3), srcTxNums(merged));
+	}
+	
+	@Test
+	public void testFlushOnSize() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(3, LONG_DELAY_US);
+		aggregator.add(newSet(1, 5));
+		assertEquals(5, aggregator.poll(5000).size());
+		
+		aggregator.add(newSet(2, 2));
+		assertNull(aggregator.poll(100));
+		aggregator.add(newSet(3, 1));
+		assertEquals(txNums(2, 2, 3), srcTxNums(aggregator.poll(5000)));
+	}
+	
+	@Test
+	public void testFlushOnDelay() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(1000, 50_000);
+		long start = System.nanoTime();
+		aggregator.add(newSet(1, 2));
+		TupleSet merged = aggregator.poll(5000);
+		long elapsedMicros = (System.nanoTime() - start) / 1000;
+		
+		assertEquals(2, merged.size());
+		assertTrue("the set is sent before the max delay", elapsedMicros >= 50_000);
+	}
+	
+	@Test
+	public void testFlushForWaitingTx() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(1000, LONG_DELAY_US);
+		aggregator.add(newSet(1, 2));
+		aggregator.flushIfPushedBy(2);
+		assertNull("the set should wait for the other transactions", aggregator.poll(100));
+		
+		aggregator.flushIfPushedBy(1);
+		assertEquals(2, aggregator.poll(5000).size());
+	}
+	
+	@Test
+	public void testSendAloneAfterPending() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(1000, LONG_DELAY_US);
+		aggregator.add(newSet(1, 2));
+		TupleSet alone = newSet(2, 1);
+		alone.setMetadata("meta");
+		aggregator.sendAlone(alone);
+		
+		assertEquals(txNums(1, 1), srcTxNums(aggregator.poll(5000)));
+		assertSame(alone, aggregator.poll(5000));
+	}
+	
+	@Test
+	public void testFramesAfterPending() throws InterruptedException {
+		CollectingAggregator aggregator = new CollectingAggregator(1000, LONG_DELAY_US);
+		aggregator.add(newSet(1, 2));
+		
+		List<TupleSetFrame> frames = TupleSetFrame.split(newSet(2, 3), 2, false);
+		for (TupleSetFrame frame : frames)
+			aggregator.sendFrame(frame);
+		
+		// The chunk must not overtake the records pushed before it
+		assertEquals(txNums(1, 1), srcTxNums(aggregator.poll(5000)));
+		for (TupleSetFrame frame : frames)
+			assertSame(frame, aggregator.pollMessage(5000));
+	}
+	
+	private static TupleSet newSet(long srcTxNum, int count) {
+		TupleSet ts = new TupleSet(0);
+		for (int i = 0; i < count; i++) {
+			PrimaryKey key = new PrimaryKey("tbl", "id", new IntegerConstant(i));
+			Map<String, Constant> fldVals = new HashMap<String, Constant>();
+			fldVals.put("val", new IntegerConstant(i));
+			ts.addTuple(key, srcTxNum, srcTxNum + 100, CachedRecord.newRecordWithFldVals(key, fldVals));
+		}
+		return ts;
+	}
+	
+	private static List<Long> srcTxNums(TupleSet ts) {
+		List<Long> txNums = new ArrayList<Long>();
+		for (Tuple t : ts.getTupleSet())
+			txNums.add(t.srcTxNum);
+		return txNums;
+	}
+	
+	private static List<Long> txNums(long... values) {
+		List<Long> txNums = new ArrayList<Long>();
+		for (long v : values)
+			txNums.add(v);
+		return txNums;
+	}
+}
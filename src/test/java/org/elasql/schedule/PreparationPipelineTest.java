@@ -0,0 +1,105 @@
+package org.elasql.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.VanillaDb;
+
+public class PreparationPipelineTest {
+
+	@BeforeClass
+	public static void init() {
+		// The workers run on the task manager
+		VanillaDb.initTaskMgr();
+	}
+
+	@Test
+	public void testResultsInSubmissionOrder() throws Exception {
+		final int numOfInputs = 100;
+		PreparationPipeline<Integer, Integer> pipeline = new PreparationPipeline<Integer, Integer>(4, numOfInputs,
+				new PreparationPipeline.Preparer<Integer, Integer>() {
+					@Override
+					public Integer prepare(Integer input) throws Exception {
+						// The earlier inputs take longer
+						Thread.sleep((numOfInputs - input) % 5);
+						return input * 2;
+					}
+				});
+
+		for (int i = 0; i < numOfInputs; i++)
+			pipeline.submit(i);
+		for (int i = 0; i < numOfInputs; i++)
+			assertEquals(i * 2, (int) pipeline.take());
+		assertEquals(0, pipeline.getDepth());
+	}
+
+	@Test
+	public void testSubmitBlocksWhenFull() throws Exception {
+		final PreparationPipeline<Integer, Integer> pipeline = new PreparationPipeline<Integer, Integer>(1, 2,
+				new PreparationPipeline.Preparer<Integer, Integer>() {
+					@Override
+					public Integer prepare(Integer input) {
+						return input;
+					}
+				});
+		pipeline.submit(0);
+		pipeline.submit(1);
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pipeline.submit(2);
+					submitted.countDown();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		submitter.start();
+
+		// The third input waits until the first one is taken
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, pipeline.getDepth());
+		assertEquals(0, (int) pipeline.take());
+		assertTrue(submitted.await(5, TimeUnit.SECONDS));
+		assertEquals(1, (int) pipeline.take());
+		assertEquals(2, (int) pipeline.take());
+		assertEquals(2, pipeline.getPeakDepth());
+	}
+
+	@Test
+	public void testFailureReportedInOrder() throws Exception {
+		PreparationPipeline<Integer, Integer> pipeline = new PreparationPipeline<Integer, Integer>(2, 10,
+				new PreparationPipeline.Preparer<Integer, Integer>() {
+					@Override
+					public Integer prepare(Integer input) {
+						if (input == 1)
+							throw new IllegalArgumentException("bad input");
+						return input;
+					}
+				});
+		for (int i = 0; i < 3; i++)
+			pipeline.submit(i);
+
+		assertEquals(0, (int) pipeline.take());
+		try {
+			pipeline.take();
+			fail("the failure of input 1 is not reported");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+
+		// The pipeline goes on after a failure
+		assertEquals(2, (int) pipeline.take());
+	}
+}
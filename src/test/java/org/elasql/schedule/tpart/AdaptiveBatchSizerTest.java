@@ -0,0 +1,99 @@
+package org.elasql.schedule.tpart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+	private static final long DELAY_NANOS = AdaptiveBatchSizer.MAX_BATCH_DELAY_US * 1000;
+
+	@Test
+	public void testGrowUnderBacklog() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		int lastSize = sizer.getBatchSize();
+
+		for (int i = 0; i < 32; i++) {
+			StoredProcedureCall hint = sizer.nextHint(1, 5, 0);
+			if (hint == null) {
+				// Only the unchanged size is not hinted
+				assertEquals(lastSize, sizer.getBatchSize());
+				continue;
+			}
+			assertTrue(hint.isScheduleHintCall());
+			assertFalse(hint.isHintedCut());
+			assertTrue(hint.getHintedBatchSize() > lastSize);
+			lastSize = hint.getHintedBatchSize();
+		}
+		assertEquals(AdaptiveBatchSizer.MAX_BATCH_SIZE, lastSize);
+	}
+
+	@Test
+	public void testSteadyLowQueue() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		int size = sizer.getBatchSize();
+
+		// The requests come one at a time and fill each batch before its
+		// deadline, so neither a cut nor a new size is hinted
+		long interval = DELAY_NANOS / (size + 1);
+		long now = 0;
+		for (int i = 0; i < size * 20; i++) {
+			assertNull(sizer.nextHint(1, 0, now));
+			now += interval;
+		}
+		assertEquals(size, sizer.getBatchSize());
+	}
+
+	@Test
+	public void testCutOnDeadline() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		int size = sizer.getBatchSize();
+
+		assertEquals(-1, sizer.nanosToDeadline(0));
+		assertNull(sizer.nextHint(1, 0, 0));
+		assertEquals(DELAY_NANOS, sizer.nanosToDeadline(0));
+		assertNull(sizer.nextHint(0, 0, DELAY_NANOS - 1));
+
+		// No request comes before the deadline
+		StoredProcedureCall hint = sizer.nextHint(0, 0, DELAY_NANOS);
+		assertNotNull(hint);
+		assertTrue(hint.isHintedCut());
+		assertEquals(Math.max(size - Math.max(size / 8, 1), AdaptiveBatchSizer.MIN_BATCH_SIZE),
+				hint.getHintedBatchSize());
+		assertEquals(-1, sizer.nanosToDeadline(DELAY_NANOS));
+	}
+
+	@Test
+	public void testShrinkGradually() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		for (int i = 0; i < 32; i++)
+			sizer.nextHint(1, 5, 0);
+
+		long now = 0;
+		int lastSize = sizer.getBatchSize();
+		while (lastSize > AdaptiveBatchSizer.MIN_BATCH_SIZE) {
+			sizer.nextHint(1, 0, now);
+			now += DELAY_NANOS;
+			StoredProcedureCall hint = sizer.nextHint(0, 0, now);
+			assertTrue(hint.isHintedCut());
+
+			// Never shrinks by more than one eighth
+			assertTrue(hint.getHintedBatchSize() < lastSize);
+			assertTrue(hint.getHintedBatchSize() >= lastSize - Math.max(lastSize / 8, 1));
+			lastSize = hint.getHintedBatchSize();
+		}
+	}
+
+	@Test
+	public void testHintIsNoOpCall() {
+		StoredProcedureCall hint = StoredProcedureCall.getScheduleHintCall(10, true);
+		assertTrue(hint.isNoOpStoredProcCall());
+		assertTrue(hint.isScheduleHintCall());
+		assertFalse(StoredProcedureCall.getNoOpStoredProcCall(0).isScheduleHintCall());
+	}
+}
@@ -0,0 +1,129 @@
+package org.elasql.schedule.tpart.graph;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.BatchNodeInserter;
+import org.elasql.schedule.tpart.LocalFirstNodeInserter;
+import org.elasql.schedule.tpart.sink.Sinker;
+import org.elasql.schedule.tpart.sink.SunkPlan;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.elasql.storage.metadata.HashPartitionPlan;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.vanilladb.core.sql.IntegerConstant;
+
+/**
+ * Measures the time of inserting a batch of transactions into a
+ * {@link TGraph} and sinking it, for different batch sizes. Run it as a Java
+ * application; it is not a unit test.
+ */
+public class TGraphBenchmark {
+
+	private static final int[] BATCH_SIZES = { 10, 50, 100, 500, 1000 };
+	private static final int NUM_OF_KEYS = 100000;
+	private static final int READS_PER_TX = 10;
+	private static final int WRITES_PER_TX = 2;
+	private static final int WARM_UP_TXS = 2000000;
+	private static final int TXS = 5000000;
+
+	/**
+	 * A task with fixed read and write sets, which does not create a
+	 * transaction for its plan.
+	 */
+	private static class BenchmarkTask extends TPartStoredProcedureTask {
+
+		private Set<PrimaryKey> readSet = new HashSet<PrimaryKey>();
+		private Set<PrimaryKey> writeSet = new HashSet<PrimaryKey>();
+
+		BenchmarkTask(long txNum) {
+			super(-1, -1, txNum, null);
+		}
+
+		@Override
+		public Set<PrimaryKey> getReadSet() {
+			return readSet;
+		}
+
+		@Override
+		public Set<PrimaryKey> getWriteSet() {
+			return writeSet;
+		}
+
+		@Override
+		public double getWeight() {
+			return 1.0;
+		}
+
+		@Override
+		public void decideExceutionPlan(SunkPlan plan) {
+			// Do nothing
+		}
+	}
+
+	public static void main(String[] args) {
+		Elasql.initPartitionMetaMgr(new HashPartitionPlan() {
+			@Override
+			public int getPartition(PrimaryKey key) {
+				return Math.abs(key.hashCode() % PartitionMetaMgr.NUM_PARTITIONS);
+			}
+		});
+
+		PrimaryKey[] keys = new PrimaryKey[NUM_OF_KEYS];
+		for (int i = 0; i < NUM_OF_KEYS; i++) {
+			PrimaryKeyBuilder builder = new PrimaryKeyBuilder("bench");
+			builder.addFldVal("id", new IntegerConstant(i));
+			keys[i] = builder.build();
+		}
+
+		Random random = new Random(0);
+		for (int batchSize : BATCH_SIZES) {
+			List<TPartStoredProcedureTask> batch = newBatch(batchSize, keys, random);
+			TGraph graph = new TGraph();
+			BatchNodeInserter inserter = new LocalFirstNodeInserter();
+			Sinker sinker = new Sinker();
+
+			for (int i = 0; i < WARM_UP_TXS / batchSize; i++)
+				insertAndSink(graph, inserter, sinker, batch);
+
+			int rounds = TXS / batchSize;
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++)
+				insertAndSink(graph, inserter, sinker, batch);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println(String.format("batch size %d: %d ns/batch, %d ns/tx",
+					batchSize, elapsed / rounds, elapsed / rounds / batchSize));
+		}
+	}
+
+	private static List<TPartStoredProcedureTask> newBatch(int batchSize, PrimaryKey[] keys, Random random) {
+		List<TPartStoredProcedureTask> batch = new ArrayList<TPartStoredProcedureTask>();
+		for (int txNum = 1; txNum <= batchSize; txNum++) {
+			BenchmarkTask task = new BenchmarkTask(txNum);
+			while (task.readSet.size() < READS_PER_TX)
+				task.readSet.add(keys[random.nextInt(keys.length)]);
+			for (PrimaryKey key : task.readSet) {
+				if (task.writeSet.size() == WRITES_PER_TX)
+					break;
+				task.writeSet.add(key);
+			}
+			batch.add(task);
+		}
+		return batch;
+	}
+
+	private static void insertAndSink(TGraph graph, BatchNodeInserter inserter, Sinker sinker,
+			List<TPartStoredProcedureTask> batch) {
+		inserter.insertBatch(graph, batch);
+		Iterator<TPartStoredProcedureTask> plans = sinker.sink(graph);
+		while (plans.hasNext())
+			plans.next();
+	}
+}
@@ -0,0 +1,107 @@
+package org.elasql.storage.tx.concurrency;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.file.BlockId;
+
+public class ConservativeOrderedCcMgrTest {
+	
+	// The lock table is shared by all the managers, so each test uses its
+	// own tables and transaction numbers
+	
+	@Test
+	public void testWritersOfBookedTableInOrder() throws InterruptedException {
+		ConservativeOrderedCcMgr tx1 = new ConservativeOrderedCcMgr(101, true);
+		ConservativeOrderedCcMgr tx2 = new ConservativeOrderedCcMgr(102, true);
+		tx1.bookWriteKeys(Arrays.asList(newKey("booked_tbl", 1)));
+		tx2.bookWriteKeys(Arrays.asList(newKey("booked_tbl", 2)));
+		
+		tx1.requestLocks();
+		
+		// tx.2 writes another record, but it has to wait for the indexes
+		CountDownLatch locked = requestLocksInBackground(tx2);
+		assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+		
+		tx1.onTxCommit(null);
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		tx2.onTxCommit(null);
+	}
+	
+	@Test
+	public void testReadersOfBookedTableTogether() throws InterruptedException {
+		ConservativeOrderedCcMgr tx1 = new ConservativeOrderedCcMgr(201, true);
+		ConservativeOrderedCcMgr tx2 = new ConservativeOrderedCcMgr(202, true);
+		tx1.bookReadKeys(Arrays.asList(newKey("shared_tbl", 1)));
+		tx2.bookReadKeys(Arrays.asList(newKey("shared_tbl", 2)));
+		
+		tx1.requestLocks();
+		assertTrue(requestLocksInBackground(tx2).await(5, TimeUnit.SECONDS));
+		tx1.onTxCommit(null);
+		tx2.onTxCommit(null);
+	}
+	
+	@Test
+	public void testWritersWithoutBookingTogether() throws InterruptedException {
+		ConservativeOrderedCcMgr tx1 = new ConservativeOrderedCcMgr(301, false);
+		ConservativeOrderedCcMgr tx2 = new ConservativeOrderedCcMgr(302, false);
+		tx1.bookWriteKeys(Arrays.asList(newKey("unbooked_tbl", 1)));
+		tx2.bookWriteKeys(Arrays.asList(newKey("unbooked_tbl", 2)));
+		
+		tx1.requestLocks();
+		assertTrue(requestLocksInBackground(tx2).await(5, TimeUnit.SECONDS));
+		tx1.onTxCommit(null);
+		tx2.onTxCommit(null);
+	}
+	
+	@Test
+	public void testBookedTransactionSkipsCrabbing() throws InterruptedException {
+		ConservativeOrderedCcMgr booked = new ConservativeOrderedCcMgr(401, true);
+		booked.bookWriteKeys(Arrays.asList(newKey("crab_tbl", 1)));
+		booked.requestLocks();
+		
+		BlockId blk = new BlockId("crab_tbl_idx", 0);
+		booked.crabDownDirBlockForModification(blk);
+		booked.modifyLeafBlock(blk);
+		
+		// The block is not locked in the lock table
+		final ConservativeOrderedCcMgr crabber = new ConservativeOrderedCcMgr(402, false);
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				crabber.readLeafBlock(new BlockId("crab_tbl_idx", 0));
+				locked.countDown();
+			}
+		});
+		t.start();
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		
+		crabber.onTxCommit(null);
+		booked.onTxCommit(null);
+	}
+	
+	private static CountDownLatch requestLocksInBackground(final ConservativeOrderedCcMgr ccMgr) {
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ccMgr.requestLocks();
+				locked.countDown();
+			}
+		});
+		t.start();
+		return locked;
+	}
+	
+	private static PrimaryKey newKey(String tblName, int id) {
+		return new PrimaryKey(tblName, "id", new IntegerConstant(id));
+	}
+}
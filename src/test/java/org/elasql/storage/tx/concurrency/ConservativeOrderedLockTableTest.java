@@ -0,0 +1,245 @@
+package org.elasql.storage.tx.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.elasql.storage.tx.concurrency.ConservativeOrderedLockTable.LockType;
+import org.junit.Test;
+
+public class ConservativeOrderedLockTableTest {
+	
+	private static final String ITEM = "item";
+	
+	@Test
+	public void testRequestOrder() throws InterruptedException {
+		checkRequestOrder(new ConservativeOrderedLockTable(false));
+		checkRequestOrder(new ConservativeOrderedLockTable(true));
+	}
+	
+	@Test
+	public void testSharedLocksGrantedTogether() throws InterruptedException {
+		checkSharedLocks(new ConservativeOrderedLockTable(false));
+		checkSharedLocks(new ConservativeOrderedLockTable(true));
+	}
+	
+	@Test
+	public void testAsyncRequest() throws InterruptedException {
+		checkAsyncRequest(new ConservativeOrderedLockTable(false));
+		checkAsyncRequest(new ConservativeOrderedLockTable(true));
+	}
+	
+	@Test
+	public void testCallbackOutsideAnchor() throws InterruptedException {
+		checkCallbackOutsideAnchor(new ConservativeOrderedLockTable(false));
+		checkCallbackOutsideAnchor(new ConservativeOrderedLockTable(true));
+	}
+	
+	@Test
+	public void testReclamationAndStatistics() {
+		ConservativeOrderedLockTable lockTbl = new ConservativeOrderedLockTable(true);
+		lockTbl.requestLock(ITEM, 1);
+		lockTbl.xLock(ITEM, 1);
+		lockTbl.sLock("another item", 2);
+		assertEquals(2, lockTbl.getStatistics().getLiveEntries());
+		
+		lockTbl.release(ITEM, 1, LockType.X_LOCK);
+		lockTbl.release("another item", 2, LockType.S_LOCK);
+		
+		LockTableStatistics stats = lockTbl.getStatistics();
+		assertEquals(0, stats.getLiveEntries());
+		assertEquals(2, stats.getPeakEntries());
+		assertEquals(2, stats.getPooledLockers());
+		assertEquals(1, stats.getAcquisitionCount(LockType.X_LOCK));
+		assertEquals(1, stats.getAcquisitionCount(LockType.S_LOCK));
+		assertEquals(0, stats.getWaitCount(LockType.X_LOCK));
+		
+		// The booking of tx.1 is the only sample of the queue lengths
+		long samples = 0;
+		for (int bucket = 0; bucket < stats.getNumOfQueueLengthBuckets(); bucket++)
+			samples += stats.getQueueLengthCount(bucket);
+		assertEquals(1, samples);
+	}
+	
+	@Test
+	public void testWaitTimeStatistics() throws InterruptedException {
+		ConservativeOrderedLockTable lockTbl = new ConservativeOrderedLockTable(true);
+		for (long txNum = 1; txNum <= 3; txNum++)
+			lockTbl.requestLock(ITEM, txNum);
+		lockTbl.sLock(ITEM, 1);
+		lockTbl.sLock(ITEM, 2);
+		
+		// Only tx.3 waits
+		Thread tx3 = startXLocker(lockTbl, 3, Collections.synchronizedList(new ArrayList<Long>()));
+		Thread.sleep(100);
+		lockTbl.release(ITEM, 1, LockType.S_LOCK);
+		lockTbl.release(ITEM, 2, LockType.S_LOCK);
+		tx3.join(5000);
+		assertFalse(tx3.isAlive());
+		
+		LockTableStatistics stats = lockTbl.getStatistics();
+		assertEquals(1, stats.getAcquisitionCount(LockType.X_LOCK));
+		assertEquals(1, stats.getWaitCount(LockType.X_LOCK));
+		assertEquals(0, stats.getWaitCount(LockType.S_LOCK));
+		assertEquals(0.0, stats.getAverageWaitTime(LockType.S_LOCK), 0.0);
+		assertTrue(stats.getAverageWaitTimeOfWaits(LockType.X_LOCK) >= 50000);
+		assertEquals(stats.getAverageWaitTime(LockType.X_LOCK),
+				stats.getAverageWaitTimeOfWaits(LockType.X_LOCK), 0.001);
+	}
+	
+	@Test
+	public void testOnlySmallLockersPooled() {
+		ConservativeOrderedLockTable lockTbl = new ConservativeOrderedLockTable(true);
+		
+		// Grows the IS queue of the item beyond the pooled capacity
+		for (long txNum = 1; txNum <= 200; txNum++) {
+			lockTbl.requestLock(ITEM, txNum);
+			lockTbl.isLock(ITEM, txNum);
+		}
+		for (long txNum = 1; txNum <= 200; txNum++)
+			lockTbl.release(ITEM, txNum, LockType.IS_LOCK);
+		
+		LockTableStatistics stats = lockTbl.getStatistics();
+		assertEquals(0, stats.getLiveEntries());
+		assertEquals(0, stats.getPooledLockers());
+	}
+	
+	private void checkRequestOrder(final ConservativeOrderedLockTable lockTbl)
+			throws InterruptedException {
+		final List<Long> grantOrder = Collections.synchronizedList(new ArrayList<Long>());
+		for (long txNum = 1; txNum <= 3; txNum++)
+			lockTbl.requestLock(ITEM, txNum);
+		
+		// Start the later transactions first
+		Thread tx3 = startXLocker(lockTbl, 3, grantOrder);
+		Thread tx2 = startXLocker(lockTbl, 2, grantOrder);
+		Thread.sleep(100);
+		assertTrue("tx.2 and tx.3 should not get the lock before tx.1", grantOrder.isEmpty());
+		
+		lockTbl.xLock(ITEM, 1);
+		grantOrder.add(1L);
+		lockTbl.release(ITEM, 1, LockType.X_LOCK);
+		
+		tx2.join(5000);
+		tx3.join(5000);
+		assertFalse(tx2.isAlive());
+		assertFalse(tx3.isAlive());
+		assertEquals(Arrays.asList(1L, 2L, 3L), grantOrder);
+	}
+	
+	private void checkSharedLocks(final ConservativeOrderedLockTable lockTbl)
+			throws InterruptedException {
+		for (long txNum = 1; txNum <= 3; txNum++)
+			lockTbl.requestLock(ITEM, txNum);
+		lockTbl.xLock(ITEM, 1);
+		
+		// tx.2 keeps its lock until tx.3 gets a lock as well
+		final CountDownLatch bothLocked = new CountDownLatch(2);
+		Thread tx2 = startSLocker(lockTbl, 2, bothLocked);
+		Thread tx3 = startSLocker(lockTbl, 3, bothLocked);
+		Thread.sleep(100);
+		assertEquals(2, bothLocked.getCount());
+		
+		lockTbl.release(ITEM, 1, LockType.X_LOCK);
+		assertTrue("the shared locks should be granted together",
+				bothLocked.await(5, TimeUnit.SECONDS));
+		tx2.join(5000);
+		tx3.join(5000);
+	}
+	
+	private void checkAsyncRequest(final ConservativeOrderedLockTable lockTbl)
+			throws InterruptedException {
+		lockTbl.requestLock(ITEM, 1);
+		lockTbl.requestLock(ITEM, 2);
+		lockTbl.xLock(ITEM, 1);
+		
+		final CountDownLatch granted = new CountDownLatch(1);
+		lockTbl.lockAsync(ITEM, 2, LockType.S_LOCK, new Runnable() {
+			@Override
+			public void run() {
+				granted.countDown();
+			}
+		});
+		assertEquals("tx.2 should not get the lock before tx.1", 1, granted.getCount());
+		
+		lockTbl.release(ITEM, 1, LockType.X_LOCK);
+		assertTrue(granted.await(5, TimeUnit.SECONDS));
+		lockTbl.release(ITEM, 2, LockType.S_LOCK);
+	}
+	
+	private void checkCallbackOutsideAnchor(final ConservativeOrderedLockTable lockTbl)
+			throws InterruptedException {
+		lockTbl.requestLock(ITEM, 1);
+		lockTbl.requestLock(ITEM, 2);
+		lockTbl.xLock(ITEM, 1);
+		
+		// The callback waits for another thread touching the same object,
+		// which would never finish if the releasing thread held the anchor
+		final CountDownLatch requested = new CountDownLatch(1);
+		final Thread requester = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lockTbl.requestLock(ITEM, 3);
+				requested.countDown();
+			}
+		});
+		final List<Boolean> results = Collections.synchronizedList(new ArrayList<Boolean>());
+		lockTbl.lockAsync(ITEM, 2, LockType.S_LOCK, new Runnable() {
+			@Override
+			public void run() {
+				requester.start();
+				try {
+					results.add(requested.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					results.add(false);
+				}
+			}
+		});
+		
+		lockTbl.release(ITEM, 1, LockType.X_LOCK);
+		assertEquals(Arrays.asList(true), results);
+		lockTbl.release(ITEM, 2, LockType.S_LOCK);
+		lockTbl.sLock(ITEM, 3);
+		lockTbl.release(ITEM, 3, LockType.S_LOCK);
+	}
+	
+	private Thread startXLocker(final ConservativeOrderedLockTable lockTbl, final long txNum,
+			final List<Long> grantOrder) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lockTbl.xLock(ITEM, txNum);
+				grantOrder.add(txNum);
+				lockTbl.release(ITEM, txNum, LockType.X_LOCK);
+			}
+		});
+		t.start();
+		return t;
+	}
+	
+	private Thread startSLocker(final ConservativeOrderedLockTable lockTbl, final long txNum,
+			final CountDownLatch bothLocked) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lockTbl.sLock(ITEM, txNum);
+				bothLocked.countDown();
+				try {
+					bothLocked.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				lockTbl.release(ITEM, txNum, LockType.S_LOCK);
+			}
+		});
+		t.start();
+		return t;
+	}
+}
@@ -0,0 +1,131 @@
+package org.elasql.storage.tx.concurrency;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.elasql.storage.tx.concurrency.ConservativeOrderedLockTable.LockType;
+
+/**
+ * Measures the throughput and the allocation of the request queues and the
+ * lock table. The queues of transaction numbers are compared between
+ * {@link LongArrayQueue} and the boxed JDK queues, and the lock table is
+ * measured with booking, locking and releasing cycles in both the blocking
+ * and the direct handoff modes. Run it as a Java application; it is not a
+ * unit test. The allocation is only reported on JVMs supporting
+ * {@code com.sun.management.ThreadMXBean}.
+ */
+public class LockTableBenchmark {
+
+	private static final int QUEUE_LENGTH = 8;
+	private static final int QUEUE_ROUNDS = 2000000;
+	private static final int NUM_OF_KEYS = 10000;
+	private static final int LOCK_ROUNDS = 2000000;
+
+	public static void main(String[] args) {
+		// Warm up
+		for (int i = 0; i < 3; i++) {
+			runLongArrayQueue(QUEUE_ROUNDS / 10);
+			runBoxedQueue(new ArrayDeque<Long>(), QUEUE_ROUNDS / 10);
+			runBoxedQueue(new LinkedList<Long>(), QUEUE_ROUNDS / 10);
+			runLockTable(new ConservativeOrderedLockTable(false), LOCK_ROUNDS / 10);
+			runLockTable(new ConservativeOrderedLockTable(true), LOCK_ROUNDS / 10);
+		}
+
+		long ops = (long) QUEUE_ROUNDS * QUEUE_LENGTH;
+		long start = System.nanoTime();
+		long bytes = allocatedBytes();
+		runLongArrayQueue(QUEUE_ROUNDS);
+		report("LongArrayQueue", ops, System.nanoTime() - start, allocatedBytes() - bytes);
+
+		start = System.nanoTime();
+		bytes = allocatedBytes();
+		runBoxedQueue(new ArrayDeque<Long>(), QUEUE_ROUNDS);
+		report("ArrayDeque<Long>", ops, System.nanoTime() - start, allocatedBytes() - bytes);
+
+		start = System.nanoTime();
+		bytes = allocatedBytes();
+		runBoxedQueue(new LinkedList<Long>(), QUEUE_ROUNDS);
+		report("LinkedList<Long>", ops, System.nanoTime() - start, allocatedBytes() - bytes);
+
+		start = System.nanoTime();
+		bytes = allocatedBytes();
+		runLockTable(new ConservativeOrderedLockTable(false), LOCK_ROUNDS);
+		report("lock table (blocking)", LOCK_ROUNDS, System.nanoTime() - start, allocatedBytes() - bytes);
+
+		start = System.nanoTime();
+		bytes = allocatedBytes();
+		runLockTable(new ConservativeOrderedLockTable(true), LOCK_ROUNDS);
+		report("lock table (direct handoff)", LOCK_ROUNDS, System.nanoTime() - start,
+				allocatedBytes() - bytes);
+	}
+
+	private static void runLongArrayQueue(int rounds) {
+		LongArrayQueue queue = new LongArrayQueue();
+		long txNum = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < QUEUE_LENGTH; i++)
+				queue.add(txNum++);
+			// A transaction leaving from the middle of the queue
+			queue.remove(txNum - QUEUE_LENGTH / 2);
+			while (!queue.isEmpty())
+				queue.poll();
+		}
+	}
+
+	private static void runBoxedQueue(Queue<Long> queue, int rounds) {
+		long txNum = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < QUEUE_LENGTH; i++)
+				queue.add(txNum++);
+			queue.remove(txNum - QUEUE_LENGTH / 2);
+			while (!queue.isEmpty())
+				queue.poll();
+		}
+	}
+
+	/**
+	 * Each round books a key, locks it and releases it, as a transaction
+	 * without conflicts does. The keys are reused, so the table keeps
+	 * recycling its lockers.
+	 */
+	private static void runLockTable(ConservativeOrderedLockTable lockTbl, int rounds) {
+		String[] keys = new String[NUM_OF_KEYS];
+		for (int i = 0; i < NUM_OF_KEYS; i++)
+			keys[i] = "key" + i;
+
+		for (int txNum = 0; txNum < rounds; txNum++) {
+			String key = keys[txNum % NUM_OF_KEYS];
+			lockTbl.requestLock(key, txNum);
+			if (txNum % 2 == 0) {
+				lockTbl.xLock(key, txNum);
+				lockTbl.release(key, txNum, LockType.X_LOCK);
+			} else {
+				lockTbl.sLock(key, txNum);
+				lockTbl.release(key, txNum, LockType.S_LOCK);
+			}
+		}
+	}
+
+	private static void report(String name, long ops, long nanos, long bytes) {
+		if (bytes < 0)
+			System.out.println(String.format("%s: %.1f ns/op", name, (double) nanos / ops));
+		else
+			System.out.println(String.format("%s: %.1f ns/op, %.1f bytes/op",
+					name, (double) nanos / ops, (double) bytes / ops));
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread so far, or -1 if the
+	 * JVM does not support it.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,104 @@
+package org.elasql.storage.tx.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class LongArrayQueueTest {
+	
+	@Test
+	public void testFifo() {
+		LongArrayQueue queue = new LongArrayQueue();
+		for (long i = 0; i < 3; i++)
+			queue.add(i);
+		
+		assertEquals(3, queue.size());
+		assertEquals(0, queue.peek());
+		for (long i = 0; i < 3; i++)
+			assertEquals(i, queue.poll());
+		assertTrue(queue.isEmpty());
+		
+		try {
+			queue.poll();
+			fail("an empty queue is polled");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testWrapAround() {
+		LongArrayQueue queue = new LongArrayQueue();
+		int capacity = queue.capacity();
+		
+		// Move the head to the end of the buffer, so that the following
+		// elements wrap around to the beginning
+		for (long i = 0; i < capacity - 1; i++)
+			queue.add(i);
+		for (long i = 0; i < capacity - 1; i++)
+			queue.poll();
+		
+		for (long i = 10; i < 10 + capacity; i++)
+			queue.add(i);
+		assertEquals(capacity, queue.capacity());
+		assertEquals("[10, 11, 12, 13]", queue.toString());
+		for (int i = 0; i < capacity; i++)
+			assertEquals(10 + i, queue.get(i));
+		for (long i = 10; i < 10 + capacity; i++)
+			assertEquals(i, queue.poll());
+	}
+	
+	@Test
+	public void testGrowWhileWrapped() {
+		LongArrayQueue queue = new LongArrayQueue();
+		int capacity = queue.capacity();
+		queue.add(-1);
+		queue.add(-2);
+		queue.poll();
+		queue.poll();
+		
+		// Wrapped around before growing
+		for (long i = 0; i < capacity * 3; i++)
+			queue.add(i);
+		assertEquals(capacity * 4, queue.capacity());
+		assertEquals(capacity * 3, queue.size());
+		for (long i = 0; i < capacity * 3; i++)
+			assertEquals(i, queue.poll());
+	}
+	
+	@Test
+	public void testRemoveFromMiddle() {
+		LongArrayQueue queue = new LongArrayQueue();
+		int capacity = queue.capacity();
+		
+		// Wrap the elements around, so that the removal shifts them
+		// across the end of the buffer
+		for (int i = 0; i < capacity - 2; i++)
+			queue.add(-1);
+		for (int i = 0; i < capacity - 2; i++)
+			queue.poll();
+		for (long i = 1; i <= capacity; i++)
+			queue.add(i);
+		
+		assertTrue(queue.remove(2));
+		assertFalse(queue.remove(2));
+		assertFalse(queue.contains(2));
+		assertEquals(capacity - 1, queue.size());
+		assertEquals("[1, 3, 4]", queue.toString());
+		
+		// The freed slot is reused without growing
+		queue.add(5);
+		assertEquals(capacity, queue.capacity());
+		assertEquals("[1, 3, 4, 5]", queue.toString());
+		
+		assertTrue(queue.remove(1));
+		assertTrue(queue.remove(5));
+		assertEquals("[3, 4]", queue.toString());
+		assertEquals(3, queue.peek());
+	}
+}
@@ -0,0 +1,81 @@
+package org.elasql.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AdmissionQueueTest {
+
+	private static final int CAPACITY = 16;
+	private static final int NUM_REQUESTS = 2000;
+
+	@Test
+	public void testBlockingUnderOverload() throws InterruptedException {
+		final AdmissionQueue<Integer> queue = new AdmissionQueue<Integer>(CAPACITY, AdmissionQueue.BLOCK);
+
+		// A producer much faster than the consumer
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < NUM_REQUESTS; i++)
+						assertTrue(queue.admit(i));
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		producer.start();
+
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			assertEquals("the requests are out of order", i, (int) queue.take());
+			if (i % 100 == 0)
+				Thread.sleep(1);
+		}
+		producer.join();
+
+		assertTrue(queue.getPeakSize() <= CAPACITY);
+		assertTrue("the producer never blocks", queue.getBlockedCount() > 0);
+		assertEquals(0, queue.getShedCount());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testSheddingUnderOverload() throws InterruptedException {
+		AdmissionQueue<Integer> queue = new AdmissionQueue<Integer>(CAPACITY, AdmissionQueue.SHED);
+		int admitted = 0;
+
+		// Nobody consumes until all the requests are offered
+		for (int i = 0; i < NUM_REQUESTS; i++)
+			if (queue.admit(i))
+				admitted++;
+
+		assertEquals(CAPACITY, admitted);
+		assertEquals(NUM_REQUESTS - CAPACITY, queue.getShedCount());
+		assertEquals(CAPACITY, queue.getPeakSize());
+		assertFalse(queue.admit(-1));
+
+		// The admitted ones are kept in order
+		List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(CAPACITY, queue.drainTo(drained, NUM_REQUESTS));
+		for (int i = 0; i < CAPACITY; i++)
+			assertEquals(i, (int) drained.get(i));
+
+		// There is room again
+		assertTrue(queue.admit(0));
+	}
+
+	@Test
+	public void testUnbounded() throws InterruptedException {
+		AdmissionQueue<Integer> queue = new AdmissionQueue<Integer>(AdmissionQueue.UNBOUNDED, AdmissionQueue.SHED);
+		for (int i = 0; i < NUM_REQUESTS; i++)
+			assertTrue(queue.admit(i));
+		assertFalse(queue.isBounded());
+		assertEquals(NUM_REQUESTS, queue.getPeakSize());
+	}
+}